@@ -0,0 +1,84 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.ContextHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static au.com.ds.ef.ChainFlow.Events.*;
+import static au.com.ds.ef.ChainFlow.States.*;
+
+/**
+ * Linear flow S0 -> S1 -> ... -> S8 where every whenEnter handler triggers the next hop,
+ * and the same walk written as a hand-coded switch for comparison.
+ */
+public class ChainFlow {
+    public static final int HOPS = 8;
+
+    public enum States implements StateEnum {
+        S0, S1, S2, S3, S4, S5, S6, S7, S8
+    }
+
+    public enum Events implements EventEnum {
+        next
+    }
+
+    public static class ChainContext extends StatefulContext {
+        private int entered;
+
+        public void entered() {
+            entered++;
+        }
+
+        public int getEntered() {
+            return entered;
+        }
+    }
+
+    public static EasyFlow<ChainContext> build() {
+        States[] states = States.values();
+        List<Transition> transitions = new ArrayList<Transition>();
+        for (int i = 0; i < HOPS; i++) {
+            transitions.add(new Transition(next, states[i], states[i + 1], i == HOPS - 1));
+        }
+
+        EasyFlow<ChainContext> flow = FlowBuilder.fromTransitions(S0, transitions, false);
+
+        ContextHandler<ChainContext> onEnter = new ContextHandler<ChainContext>() {
+            @Override
+            public void call(ChainContext context) throws Exception {
+                context.entered();
+                context.trigger(next);
+            }
+        };
+
+        for (int i = 0; i < HOPS; i++) {
+            flow.whenEnter(states[i], onEnter);
+        }
+
+        return flow.whenEnter(S8, new ContextHandler<ChainContext>() {
+            @Override
+            public void call(ChainContext context) throws Exception {
+                context.entered();
+            }
+        });
+    }
+
+    public static int runSwitch(ChainContext context) {
+        States state = S0;
+        while (true) {
+            context.entered();
+            switch (state) {
+                case S0: state = S1; break;
+                case S1: state = S2; break;
+                case S2: state = S3; break;
+                case S3: state = S4; break;
+                case S4: state = S5; break;
+                case S5: state = S6; break;
+                case S6: state = S7; break;
+                case S7: state = S8; break;
+                case S8: return context.getEntered();
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package au.com.ds.ef;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bulk snapshot of {@link #CONTEXTS} contexts into a direct buffer and back with {@link ContextCodec},
+ * reported per context.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ContextCodecBenchmark {
+    public static final int CONTEXTS = 10000;
+
+    private final ContextCodec<StatefulContext> codec = ContextCodec.of(ChainFlow.States.class, ChainFlow.Events.class);
+    private final List<StatefulContext> contexts = new ArrayList<StatefulContext>();
+    private final List<StatefulContext> decoded = new ArrayList<StatefulContext>(CONTEXTS);
+    private ByteBuffer buffer;
+    private ByteBuffer snapshot;
+
+    @Setup
+    public void setUp() {
+        ChainFlow.States[] states = ChainFlow.States.values();
+        for (int i = 0; i < CONTEXTS; i++) {
+            StatefulContext context = new StatefulContext();
+            context.setState(states[i % states.length]);
+            contexts.add(context);
+        }
+
+        buffer = ByteBuffer.allocateDirect(CONTEXTS * 16);
+        codec.encodeAll(contexts, 0, buffer);
+        buffer.flip();
+        snapshot = buffer.duplicate();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CONTEXTS)
+    public int encode() {
+        buffer.clear();
+        return codec.encodeAll(contexts, 0, buffer);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CONTEXTS)
+    public int decode() {
+        decoded.clear();
+        return codec.decodeAll(snapshot.duplicate(), decoded);
+    }
+}
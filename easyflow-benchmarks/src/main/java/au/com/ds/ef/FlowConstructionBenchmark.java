@@ -0,0 +1,26 @@
+package au.com.ds.ef;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of defining a flow: transitions, validation and handler registration.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FlowConstructionBenchmark {
+    @Benchmark
+    public EasyFlow<?> jsonParserFlow() {
+        return JsonArrayParserTest.buildFlow();
+    }
+
+    @Benchmark
+    public EasyFlow<?> chainFlow() {
+        return ChainFlow.build();
+    }
+}
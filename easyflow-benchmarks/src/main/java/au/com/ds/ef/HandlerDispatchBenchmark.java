@@ -0,0 +1,88 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.ChainFlow.ChainContext;
+import au.com.ds.ef.call.ContextHandler;
+import au.com.ds.ef.call.EventHandler;
+import au.com.ds.ef.call.StateHandler;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static au.com.ds.ef.ChainFlow.Events.next;
+import static au.com.ds.ef.ChainFlow.States.*;
+import static au.com.ds.ef.HandlerCollection.EventType.*;
+
+/**
+ * Cost of looking up and calling handlers in {@link HandlerCollection}, without any executor involved.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HandlerDispatchBenchmark {
+    private HandlerCollection handlers;
+    private ChainContext context;
+
+    @Setup
+    public void setUp() {
+        context = new ChainContext();
+        handlers = new HandlerCollection();
+
+        ContextHandler<ChainContext> contextHandler = new ContextHandler<ChainContext>() {
+            @Override
+            public void call(ChainContext context) throws Exception {
+                context.entered();
+            }
+        };
+
+        StateHandler<ChainContext> stateHandler = new StateHandler<ChainContext>() {
+            @Override
+            public void call(StateEnum state, ChainContext context) throws Exception {
+                context.entered();
+            }
+        };
+
+        handlers.setHandler(STATE_ENTER, S1, null, contextHandler);
+        handlers.setHandler(STATE_LEAVE, S1, null, contextHandler);
+        handlers.setHandler(EVENT_TRIGGER, null, next, contextHandler);
+        handlers.setHandler(ANY_STATE_ENTER, null, null, stateHandler);
+        handlers.setHandler(ANY_EVENT_TRIGGER, null, null, new EventHandler<ChainContext>() {
+            @Override
+            public void call(EventEnum event, StateEnum from, StateEnum to, ChainContext context) throws Exception {
+                context.entered();
+            }
+        });
+    }
+
+    @Benchmark
+    public int enterWithHandlers() throws Exception {
+        handlers.callOnStateEntered(S1, context);
+        return context.getEntered();
+    }
+
+    @Benchmark
+    public int enterAnyHandlerOnly() throws Exception {
+        handlers.callOnStateEntered(S2, context);
+        return context.getEntered();
+    }
+
+    @Benchmark
+    public int leaveWithHandler() throws Exception {
+        handlers.callOnStateLeaved(S1, context);
+        return context.getEntered();
+    }
+
+    @Benchmark
+    public int leaveWithoutHandlers() throws Exception {
+        handlers.callOnStateLeaved(S2, context);
+        return context.getEntered();
+    }
+
+    @Benchmark
+    public int eventTriggered() throws Exception {
+        handlers.callOnEventTriggered(next, S1, S2, context);
+        return context.getEntered();
+    }
+}
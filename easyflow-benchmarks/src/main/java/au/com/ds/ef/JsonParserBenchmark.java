@@ -0,0 +1,118 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.JsonArrayParserTest.Item;
+import au.com.ds.ef.JsonArrayParserTest.ParserContext;
+import au.com.ds.ef.JsonArrayParserTest.States;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static au.com.ds.ef.JsonArrayParserTest.States.*;
+
+/**
+ * End-to-end parse of a JSON array with the flow of JsonArrayParserTest (from EasyFlow's test-jar),
+ * where every character costs 2-3 transitions. The switch baseline runs the same state machine without EasyFlow.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonParserBenchmark {
+    private static final String JSON =
+        "['Item 1', ['Item 3', 'Item 4', ['Item 5', 'Item 6']], 'Item 2', [], ['Item 7', 'Item 8', 'Item 9']]";
+
+    private EasyFlow<ParserContext> flow;
+
+    @Setup
+    public void setUp() {
+        flow = JsonArrayParserTest.buildFlow();
+    }
+
+    @Benchmark
+    public Item easyFlow() {
+        ParserContext context = new ParserContext(JSON);
+        flow.start(context);
+        return context.getResult();
+    }
+
+    @Benchmark
+    public Item switchBaseline() {
+        return parseWithSwitch(new ParserContext(JSON));
+    }
+
+    /**
+     * The flow's state machine as a plain switch loop, with the enter handlers inlined
+     */
+    static Item parseWithSwitch(ParserContext context) {
+        States state = GETTING_CHAR;
+        while (true) {
+            switch (state) {
+                case GETTING_CHAR:
+                    state = context.getNextChar() == 0 ? VALIDATING : PROCESSING_CHAR;
+                    break;
+                case PROCESSING_CHAR:
+                    char c = context.getThisChar();
+                    if (context.isStartedValue() && c != '\'') {
+                        state = CONTINUING_VALUE;
+                        break;
+                    }
+
+                    switch (c) {
+                        case '[':
+                            state = STARTING_ARRAY;
+                            break;
+                        case ']':
+                            state = ENDING_ARRAY;
+                            break;
+                        case '\'':
+                            state = context.isStartedValue() ? ENDING_VALUE : STARTING_VALUE;
+                            break;
+                        case ' ':
+                        case ',':
+                            state = PROCESSING_SPACE;
+                            break;
+                        default:
+                            state = ERROR;
+                    }
+                    break;
+                case STARTING_ARRAY:
+                    context.pushStack();
+                    state = GETTING_CHAR;
+                    break;
+                case ENDING_ARRAY:
+                    if (context.getStackLevel() > 0) {
+                        context.popStack();
+                        state = GETTING_CHAR;
+                    } else {
+                        state = ERROR;
+                    }
+                    break;
+                case STARTING_VALUE:
+                    context.startValue();
+                    state = GETTING_CHAR;
+                    break;
+                case CONTINUING_VALUE:
+                    context.appendToValue();
+                    state = GETTING_CHAR;
+                    break;
+                case ENDING_VALUE:
+                    context.endValue();
+                    state = GETTING_CHAR;
+                    break;
+                case PROCESSING_SPACE:
+                    state = GETTING_CHAR;
+                    break;
+                case VALIDATING:
+                    state = context.getStackLevel() != 0 || context.isStartedValue() ? ERROR : DONE;
+                    break;
+                case ERROR:
+                    context.resetResult();
+                    return null;
+                case DONE:
+                    return context.getResult();
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.ChainFlow.ChainContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link #CONTEXTS} contexts of one flow running concurrently on a shared thread pool,
+ * reported per transition. <code>pool</code> submits tasks straight to the pool,
+ * <code>mailbox</code> goes through {@link MailboxExecutor} which keeps per-context ordering.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ManyContextsBenchmark {
+    public static final int CONTEXTS = 1000;
+
+    @Param({"pool", "mailbox"})
+    public String executor;
+
+    private ExecutorService pool;
+    private EasyFlow<ChainContext> flow;
+
+    @Setup
+    public void setUp() {
+        pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        flow = ChainFlow.build();
+        flow.executor("mailbox".equals(executor) ? new MailboxExecutor(pool) : pool);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CONTEXTS * ChainFlow.HOPS)
+    public ChainContext[] sharedPool() {
+        ChainContext[] contexts = new ChainContext[CONTEXTS];
+        for (int i = 0; i < CONTEXTS; i++) {
+            contexts[i] = new ChainContext();
+            flow.start(contexts[i]);
+        }
+
+        for (ChainContext context : contexts) {
+            flow.waitForCompletion(context);
+        }
+
+        return contexts;
+    }
+}
@@ -0,0 +1,44 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.ChainFlow.ChainContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single context walking {@link ChainFlow} from start to its final state,
+ * reported per transition (trigger + leave + enter).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TriggerBenchmark {
+    @Param({"sync", "async"})
+    public String executor;
+
+    private EasyFlow<ChainContext> flow;
+
+    @Setup
+    public void setUp() {
+        flow = ChainFlow.build();
+        flow.executor("sync".equals(executor) ? new SyncExecutor() : new AsyncExecutor());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ChainFlow.HOPS)
+    public ChainContext easyFlow() {
+        ChainContext context = new ChainContext();
+        flow.start(context);
+        flow.waitForCompletion(context);
+        return context;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ChainFlow.HOPS)
+    public int switchBaseline() {
+        return ChainFlow.runSwitch(new ChainContext());
+    }
+}
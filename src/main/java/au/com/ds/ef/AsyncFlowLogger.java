@@ -0,0 +1,187 @@
+package au.com.ds.ef;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands log records over to a background thread which formats and writes them through the delegate,
+ * so flow executor threads never pay for formatting or I/O.
+ * <p>
+ * Info records are dropped (and counted) when the queue is full; errors are then written by the calling thread.
+ * Arguments are formatted later on the logger thread, so they should not change after being logged.
+ * {@link #close()} writes what is queued and stops the thread; records logged afterwards are written directly.
+ */
+public class AsyncFlowLogger implements FlowLogger, AutoCloseable {
+    private static final int DEFAULT_CAPACITY = 8192;
+
+    private static final class Record {
+        private final String message;
+        private final Object[] args;
+        private final Throwable error;
+        // set for a flush marker, counted down once the records queued before it are written
+        private final CountDownLatch flushed;
+
+        private Record(String message, Object[] args, Throwable error) {
+            this.message = message;
+            this.args = args;
+            this.error = error;
+            this.flushed = null;
+        }
+
+        private Record(CountDownLatch flushed) {
+            this.message = null;
+            this.args = null;
+            this.error = null;
+            this.flushed = flushed;
+        }
+    }
+
+    private final FlowLogger delegate;
+    private final BlockingQueue<Record> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    public AsyncFlowLogger() {
+        this(new FlowLoggerImpl());
+    }
+
+    public AsyncFlowLogger(FlowLogger delegate) {
+        this(delegate, DEFAULT_CAPACITY);
+    }
+
+    public AsyncFlowLogger(FlowLogger delegate, int capacity) {
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<Record>(capacity);
+
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "EasyFlow-logger");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public boolean isInfoEnabled() {
+        return delegate.isInfoEnabled();
+    }
+
+    @Override
+    public void info(String message, Object... o) {
+        if (closed) {
+            delegate.info(message, o);
+        } else if (!queue.offer(new Record(message, o, null))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void error(String message, Throwable e) {
+        if (closed || !queue.offer(new Record(message, null, e))) {
+            delegate.error(message, e);
+        }
+    }
+
+    /**
+     * Waits until the records logged so far have been written
+     */
+    public void flush() throws InterruptedException {
+        if (closed) {
+            return;
+        }
+
+        CountDownLatch flushed = new CountDownLatch(1);
+        queue.put(new Record(flushed));
+        while (!flushed.await(100, TimeUnit.MILLISECONDS)) {
+            // closed meanwhile, the marker may be left behind the stopped writer
+            if (!writer.isAlive()) {
+                drain();
+            }
+        }
+    }
+
+    /**
+     * Writes the queued records and stops the logger thread. If the calling thread is interrupted meanwhile,
+     * it writes what is left itself and keeps its interrupt status.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+
+        boolean interrupted = false;
+        try {
+            flush();
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        closed = true;
+        writer.interrupt();
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        // records that raced with closing, or weren't flushed
+        drain();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        for (Record record = queue.poll(); record != null; record = queue.poll()) {
+            write(record);
+        }
+    }
+
+    /**
+     * @return number of info records discarded because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    private void write() {
+        while (true) {
+            Record record;
+            try {
+                record = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            write(record);
+        }
+    }
+
+    private void write(Record record) {
+        if (record.flushed != null) {
+            record.flushed.countDown();
+            return;
+        }
+
+        try {
+            if (record.error != null) {
+                delegate.error(record.message, record.error);
+            } else {
+                delegate.info(record.message, record.args);
+            }
+        } catch (RuntimeException e) {
+            try {
+                delegate.error("Failed to write log record: " + record.message, e);
+            } catch (RuntimeException ignored) {
+                // the delegate can't write at all, there's nowhere left to report it
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package au.com.ds.ef;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Compact binary snapshots of contexts, for checkpointing large numbers of them without Java serialization.
+ * <p>
+ * A record holds a header byte with the terminated/stopped flags, the id (as a varint number for contexts created
+ * with the default constructor), state and last event ordinals as varints, followed by whatever {@link Fields} writes.
+ * A context in its first state with no user fields takes 4-6 bytes.
+ * <p>
+ * Restored contexts are resumed with {@link EasyFlow#start(boolean, StatefulContext)}, which re-enters their state.
+ */
+public class ContextCodec<C extends StatefulContext> {
+    /**
+     * Creates contexts on restore and moves user fields to and from snapshots
+     */
+    public interface Fields<C extends StatefulContext> {
+        C newContext();
+
+        void write(C context, ByteBuffer buffer);
+
+        void read(C context, ByteBuffer buffer);
+    }
+
+    private static final int TERMINATED = 1;
+    private static final int STOPPED = 2;
+    private static final int NUMBER_ID = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final StateEnum[] states;
+    private final EventEnum[] events;
+    private final Fields<C> fields;
+
+    public ContextCodec(Class<? extends StateEnum> stateClass, Class<? extends EventEnum> eventClass, Fields<C> fields) {
+        this.states = constants(stateClass);
+        this.events = constants(eventClass);
+        this.fields = fields;
+    }
+
+    /**
+     * @return codec for plain {@link StatefulContext}s, which have no fields of their own
+     */
+    public static ContextCodec<StatefulContext> of(Class<? extends StateEnum> stateClass, Class<? extends EventEnum> eventClass) {
+        return new ContextCodec<StatefulContext>(stateClass, eventClass, new Fields<StatefulContext>() {
+            @Override
+            public StatefulContext newContext() {
+                return new StatefulContext();
+            }
+
+            @Override
+            public void write(StatefulContext context, ByteBuffer buffer) {
+            }
+
+            @Override
+            public void read(StatefulContext context, ByteBuffer buffer) {
+            }
+        });
+    }
+
+    private static <T> T[] constants(Class<? extends T> enumClass) {
+        T[] constants = (T[]) enumClass.getEnumConstants();
+        if (constants == null) {
+            throw new IllegalArgumentException(enumClass.getName() + " is not an enum");
+        }
+        return constants;
+    }
+
+    /**
+     * Writes context to buffer. If it doesn't fit, buffer's position is left unchanged.
+     * @throws BufferOverflowException if there isn't enough room for the context
+     */
+    public void encode(C context, ByteBuffer buffer) {
+        int start = buffer.position();
+        try {
+            long number = context.getNumber();
+            int header = (number != 0 ? NUMBER_ID : 0) |
+                (context.isTerminated() ? TERMINATED : 0) |
+                (context.isStopped() ? STOPPED : 0);
+
+            buffer.put((byte) header);
+            if (number != 0) {
+                putVarLong(buffer, number);
+            } else {
+                byte[] id = context.getId().getBytes(UTF_8);
+                putVarLong(buffer, id.length);
+                buffer.put(id);
+            }
+
+            putOrdinal(buffer, (Enum<?>) context.getState());
+            putOrdinal(buffer, (Enum<?>) context.getLastEvent());
+            fields.write(context, buffer);
+        } catch (BufferOverflowException e) {
+            buffer.position(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Writes contexts starting from index from while they fit into buffer
+     * @return number of contexts written
+     */
+    public int encodeAll(List<? extends C> contexts, int from, ByteBuffer buffer) {
+        int i = from;
+        try {
+            for (; i < contexts.size(); i++) {
+                encode(contexts.get(i), buffer);
+            }
+        } catch (BufferOverflowException e) {
+            // the rest goes into the next buffer
+        }
+        return i - from;
+    }
+
+    /**
+     * @return context read from buffer; it isn't bound to a flow yet
+     * @throws BufferUnderflowException if buffer ends in the middle of a record
+     */
+    public C decode(ByteBuffer buffer) {
+        int header = buffer.get();
+        long number = 0;
+        String id = null;
+        if ((header & NUMBER_ID) != 0) {
+            number = getVarLong(buffer);
+        } else {
+            byte[] bytes = new byte[(int) getVarLong(buffer)];
+            buffer.get(bytes);
+            id = new String(bytes, UTF_8);
+        }
+
+        int state = (int) getVarLong(buffer);
+        int lastEvent = (int) getVarLong(buffer);
+
+        C context = fields.newContext();
+        context.restore(number, id,
+            state == 0 ? null : states[state - 1],
+            lastEvent == 0 ? null : events[lastEvent - 1],
+            (header & TERMINATED) != 0, (header & STOPPED) != 0);
+        fields.read(context, buffer);
+        return context;
+    }
+
+    /**
+     * Reads contexts until buffer has no bytes left
+     * @return number of contexts read
+     */
+    public int decodeAll(ByteBuffer buffer, Collection<? super C> contexts) {
+        int count = 0;
+        while (buffer.hasRemaining()) {
+            contexts.add(decode(buffer));
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Reads a context and resumes it in flow with {@link EasyFlow#start(boolean, StatefulContext)}.
+     * Terminated contexts are bound to the flow but their handlers are not called.
+     */
+    public C restore(ByteBuffer buffer, EasyFlow<C> flow) {
+        C context = decode(buffer);
+        flow.start(true, context);
+        return context;
+    }
+
+    private static void putOrdinal(ByteBuffer buffer, Enum<?> value) {
+        putVarLong(buffer, value == null ? 0 : value.ordinal() + 1);
+    }
+
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package au.com.ds.ef;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Live contexts of one or more flows, by id and by state, see {@link EasyFlow#registry(ContextRegistry)}.
+ * <p>
+ * A context is added when it enters its first state, moved between per-state sets as it enters new states and
+ * removed when it terminates or is stopped. Contexts are tracked by identity, so ones created with the same
+ * explicit id don't replace each other. All indexes are concurrent hash maps, so updates only contend within
+ * a hash bin and counts are O(1). Index updates for one context are ordered by a lock on its own entry.
+ * <p>
+ * The per-state index follows the states contexts have entered, so it may briefly lag behind
+ * {@link StatefulContext#getState()}, which changes as soon as a trigger is accepted.
+ */
+public class ContextRegistry<C extends StatefulContext> {
+    private static final class Entry<C> {
+        private final C context;
+        private StateEnum state;
+        private boolean removed;
+
+        private Entry(C context) {
+            this.context = context;
+        }
+    }
+
+    // StatefulContext's equals and hashCode are identity based
+    private final ConcurrentMap<C, Entry<C>> contexts = new ConcurrentHashMap<C, Entry<C>>();
+    // contexts created with an explicit id by that id, the others by number, so their lazy ids aren't built
+    private final ConcurrentMap<String, C> ids = new ConcurrentHashMap<String, C>();
+    private final ConcurrentMap<Long, C> numbers = new ConcurrentHashMap<Long, C>();
+    private final ConcurrentMap<StateEnum, Set<C>> states = new ConcurrentHashMap<StateEnum, Set<C>>();
+
+    void entered(C context, StateEnum state) {
+        Entry<C> entry = contexts.get(context);
+        if (entry == null) {
+            Entry<C> created = new Entry<C>(context);
+            entry = contexts.putIfAbsent(context, created);
+            if (entry == null) {
+                entry = created;
+                long number = context.getNumber();
+                if (number != 0) {
+                    numbers.put(number, context);
+                } else {
+                    ids.putIfAbsent(context.getId(), context);
+                }
+            }
+        }
+
+        synchronized (entry) {
+            if (entry.removed) {
+                return;
+            }
+
+            if (entry.state != null) {
+                index(entry.state).remove(context);
+            }
+            entry.state = state;
+            index(state).add(context);
+        }
+
+        // the context may have been stopped while it was being added
+        if (context.isTerminated()) {
+            removed(context);
+        }
+    }
+
+    void removed(C context) {
+        Entry<C> entry = contexts.remove(context);
+        if (entry != null) {
+            long number = context.getNumber();
+            if (number != 0) {
+                numbers.remove(number, context);
+            } else {
+                ids.remove(context.getId(), context);
+            }
+            synchronized (entry) {
+                entry.removed = true;
+                if (entry.state != null) {
+                    index(entry.state).remove(context);
+                }
+            }
+        }
+    }
+
+    private Set<C> index(StateEnum state) {
+        Set<C> index = states.get(state);
+        if (index == null) {
+            Set<C> created = Collections.newSetFromMap(new ConcurrentHashMap<C, Boolean>());
+            index = states.putIfAbsent(state, created);
+            if (index == null) {
+                index = created;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return live context with id, or null; if several live contexts share an explicit id,
+     * the first one added while it stays live
+     */
+    public C get(String id) {
+        C context = ids.get(id);
+        if (context != null) {
+            return context;
+        }
+
+        // ids built from numbers start with the number, unless a subclass builds them differently
+        int end = id.indexOf(':');
+        if (end > 0) {
+            try {
+                context = numbers.get(Long.parseLong(id.substring(0, end)));
+                if (context != null && context.getId().equals(id)) {
+                    return context;
+                }
+            } catch (NumberFormatException e) {
+                // not built from a number
+            }
+        }
+
+        for (C numbered : numbers.values()) {
+            if (numbered.getId().equals(id)) {
+                return numbered;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return contexts.size();
+    }
+
+    /**
+     * @return number of live contexts in state
+     */
+    public int count(StateEnum state) {
+        Set<C> index = states.get(state);
+        return index == null ? 0 : index.size();
+    }
+
+    /**
+     * @return live view of the contexts in state; iteration is weakly consistent and never throws
+     * {@link java.util.ConcurrentModificationException}
+     */
+    public Collection<C> inState(StateEnum state) {
+        return Collections.unmodifiableSet(index(state));
+    }
+
+    /**
+     * @return copy of all live contexts
+     */
+    public List<C> getAll() {
+        List<C> all = new ArrayList<C>(contexts.size());
+        for (Entry<C> entry : contexts.values()) {
+            all.add(entry.context);
+        }
+        return all;
+    }
+
+    /**
+     * Stops all live contexts
+     * @return number of contexts stopped
+     */
+    public int stopAll() {
+        int stopped = 0;
+        for (Entry<C> entry : contexts.values()) {
+            entry.context.stop();
+            removed(entry.context);
+            stopped++;
+        }
+        return stopped;
+    }
+}
@@ -1,5 +1,8 @@
 package au.com.ds.ef;
 
+import au.com.ds.ef.call.AsyncContextHandler;
+import au.com.ds.ef.call.AsyncEventHandler;
+import au.com.ds.ef.call.AsyncStateHandler;
 import au.com.ds.ef.call.ContextHandler;
 import au.com.ds.ef.call.EventHandler;
 import au.com.ds.ef.call.ExecutionErrorHandler;
@@ -7,13 +10,41 @@ import au.com.ds.ef.call.StateHandler;
 import au.com.ds.ef.err.ExecutionError;
 import au.com.ds.ef.err.LogicViolationError;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 import static au.com.ds.ef.HandlerCollection.EventType;
 
 public class EasyFlow<C extends StatefulContext> {
+    // flow whose task the current thread is running
+    private static final ThreadLocal<EasyFlow<?>> RUNNING = new ThreadLocal<EasyFlow<?>>();
+
+    /**
+     * Used by flows without an executor of their own; its pool is sized to the number of cores
+     * and its threads are daemons, so it never needs shutting down
+     */
+    private static class DefaultExecutor {
+        private static final Executor INSTANCE = new MailboxExecutor();
+    }
+
     public class DefaultErrorHandler implements ExecutionErrorHandler<StatefulContext> {
         @Override
         public void call(ExecutionError error, StatefulContext context) {
@@ -28,31 +59,109 @@ public class EasyFlow<C extends StatefulContext> {
         }
     }
 
-    private StateEnum startState;
+    // stateless, so one instance serves every flow
+    private static final FlowLogger DEFAULT_LOG = new FlowLoggerImpl();
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    // only unset for flows made with the deprecated constructor before their transitions are set
+    private FlowDefinition definition;
+    private final StateEnum startState;
     private TransitionCollection transitions;
 
     private Executor executor;
 
     private HandlerCollection handlers = new HandlerCollection();
+    private boolean defaultErrorHandler = true;
     private boolean trace = false;
-    private FlowLogger log = new FlowLoggerImpl();
+    private FlowLogger log = DEFAULT_LOG;
+    private FlowMetrics metrics = FlowMetrics.NONE;
+    private TransitionJournal journal;
+    private ContextRegistry<C> registry;
+    private TimingWheel timer;
+    private InboundQueue inbound;
+    private Set<EventEnum> coalesced = Collections.emptySet();
+    // unstarted tasks of coalesced events, by context and event
+    private final ConcurrentMap<PendingKey, EventTask> pending = new ConcurrentHashMap<PendingKey, EventTask>();
+    // tasks submitted and not finished yet, waiters for it to reach 0 wait on the counter
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int quiescenceWaiters;
+    private volatile boolean shutdown;
 
+    /**
+     * @see FlowDefinition#newFlow()
+     */
+    protected EasyFlow(FlowDefinition definition) {
+        this.definition = definition;
+        this.startState = definition.getStartState();
+        this.transitions = definition.getTransitionCollection();
+        setUpHandlers();
+    }
+
+    /**
+     * @deprecated use {@link FlowBuilder#define} and {@link FlowDefinition#newFlow()}, or set transitions
+     * with {@link #setTransitions} right after construction
+     */
+    @Deprecated
     protected EasyFlow(StateEnum startState) {
         this.startState = startState;
-        this.handlers.setHandler(HandlerCollection.EventType.ERROR, null, null, new DefaultErrorHandler());
+        setUpHandlers();
     }
 
+    /**
+     * Transitions are no longer collected per thread, so there are none to process.
+     * @deprecated use {@link #setTransitions} or {@link FlowBuilder}
+     * @throws UnsupportedOperationException always
+     */
+    @Deprecated
     protected void processAllTransitions(boolean skipValidation) {
-        transitions = new TransitionCollection(Transition.consumeTransitions(), !skipValidation);
+        throw new UnsupportedOperationException(
+            "Transitions are no longer collected per thread, pass them to setTransitions or FlowBuilder");
     }
 
+    /**
+     * @deprecated use {@link FlowBuilder#define} and {@link FlowDefinition#newFlow()}
+     */
+    @Deprecated
     protected void setTransitions(Collection<Transition> collection, boolean skipValidation) {
         transitions = new TransitionCollection(collection, !skipValidation);
+        definition = new FlowDefinition(startState, transitions);
+    }
+
+    private void setUpHandlers() {
+        this.handlers.setHandler(HandlerCollection.EventType.ERROR, null, null, new DefaultErrorHandler());
+        // handlers following an async one run as tasks of the flow, while the context's mailbox is suspended
+        this.handlers.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                inFlight.incrementAndGet();
+                try {
+                    executor.execute(track(task));
+                } catch (RuntimeException e) {
+                    finished();
+                    throw e;
+                }
+            }
+        });
+        // forked independent handlers are part of their hook's task: triggers they make aren't external either
+        this.handlers.setTracker(new Function<Runnable, Runnable>() {
+            @Override
+            public Runnable apply(Runnable task) {
+                inFlight.incrementAndGet();
+                return track(task);
+            }
+        });
+    }
+
+    /**
+     * @return definition this flow runs, which can be shared with new flows
+     */
+    public FlowDefinition getDefinition() {
+        return definition;
     }
 
     private void prepare() {
         if (executor == null) {
-            executor = new AsyncExecutor();
+            executor = DefaultExecutor.INSTANCE;
         }
     }
 
@@ -60,99 +169,697 @@ public class EasyFlow<C extends StatefulContext> {
         start(false, context);
     }
 
+    /**
+     * @throws RejectedExecutionException if the flow is shut down and this isn't called from one of its handlers
+     */
     public void start(boolean enterInitialState, final C context) {
+        if (shutdown && isExternal()) {
+            throw new RejectedExecutionException("Flow is shut down, can't start " + context);
+        }
         prepare();
         context.setFlow(this);
 
-        if (context.getState() == null) {
-            setCurrentState(startState, false, context);
-        } else if (enterInitialState) {
-            setCurrentState(context.getState(), true, context);
+        Claim claim = new Claim(context);
+        claim.lock();
+        try {
+            if (context.compareAndSetState(null, startState)) {
+                if (record(null, null, startState, context, claim)) {
+                    dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            changeState(null, startState, context);
+                        }
+                    }, context, claim);
+                }
+                return;
+            }
+        } finally {
+            claim.unlock();
+        }
+
+        if (enterInitialState) {
+            setCurrentState(null, context.getState(), context);
         }
     }
 
-    protected void setCurrentState(final StateEnum state, final boolean enterInitialState, final C context) {
+    /**
+     * Runs leave handlers of stateFrom (if not null) and enter handlers of stateTo.
+     * The context must already be in stateTo
+     */
+    protected void setCurrentState(final StateEnum stateFrom, final StateEnum stateTo, final C context) {
         execute(new Runnable() {
             @Override
             public void run() {
-                if (!enterInitialState) {
-                    StateEnum prevState = context.getState();
-                    if (prevState != null) {
-                        leave(prevState, context);
+                changeState(stateFrom, stateTo, context);
+            }
+        }, context);
+    }
+
+    /**
+     * @return stage which completes once async handlers are done, null if there were none to wait for
+     */
+    private CompletionStage<Void> changeState(StateEnum stateFrom, final StateEnum stateTo, final C context) {
+        CompletionStage<Void> left = stateFrom != null ? leave(stateFrom, context) : null;
+        if (left == null) {
+            return changedState(stateTo, context);
+        }
+
+        return left.thenCompose(new Function<Void, CompletionStage<Void>>() {
+            @Override
+            public CompletionStage<Void> apply(Void value) {
+                CompletionStage<Void> entered = changedState(stateTo, context);
+                return entered != null ? entered : DONE;
+            }
+        });
+    }
+
+    private CompletionStage<Void> changedState(StateEnum stateTo, C context) {
+        if (registry != null && !context.isTerminated()) {
+            registry.entered(context, stateTo);
+        }
+        return enter(stateTo, context);
+    }
+
+    protected void execute(Runnable task, final C context) {
+        dispatch(task, context, null);
+    }
+
+    /**
+     * @param claim held for the transition task covers, if any; handed to task so it is let go
+     * if the executor runs task right away
+     * @return false if the context is terminated and task was not submitted
+     */
+    private boolean dispatch(Runnable task, C context, Claim claim) {
+        if (context.isTerminated()) {
+            return false;
+        }
+
+        if (claim != null) {
+            claim.task = task;
+            task = claim;
+        }
+
+        if (isMetered()) {
+            task = measureQueueDelay(task);
+        }
+        task = track(task);
+
+        inFlight.incrementAndGet();
+        try {
+            if (executor instanceof MailboxExecutor) {
+                ((MailboxExecutor) executor).execute(task, context);
+            } else {
+                executor.execute(task);
+            }
+        } catch (RuntimeException e) {
+            finished();
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Counts task as finished once it has run, and marks the thread meanwhile, so triggers made from handlers
+     * don't take inbound slots and are still accepted after {@link #shutdown()}.
+     * Otherwise a handler blocked on a full queue could wait for its own task to finish.
+     */
+    private Runnable track(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                EasyFlow<?> outer = RUNNING.get();
+                RUNNING.set(EasyFlow.this);
+                try {
+                    task.run();
+                } finally {
+                    RUNNING.set(outer);
+                    finished();
+                }
+            }
+        };
+    }
+
+    /**
+     * What a hook does after its async handlers are done
+     */
+    private abstract class Continuation {
+        abstract void succeeded();
+
+        abstract void failed(Exception e);
+    }
+
+    /**
+     * Suspends the context's tasks until stage completes, then runs then as the context's next task.
+     * Must be called from a task of the context.
+     * @return stage which completes once then has run
+     */
+    private CompletionStage<Void> whenHandled(CompletionStage<Void> stage, final C context, final Continuation then) {
+        final CompletableFuture<Void> done = new CompletableFuture<Void>();
+        inFlight.incrementAndGet();
+        if (executor instanceof MailboxExecutor) {
+            ((MailboxExecutor) executor).suspend(context);
+        }
+
+        stage.whenComplete(new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void value, final Throwable failure) {
+                Runnable continuation = track(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (failure == null) {
+                                then.succeeded();
+                            } else {
+                                then.failed(unwrap(failure));
+                            }
+                        } finally {
+                            done.complete(null);
+                        }
                     }
+                });
+
+                if (executor instanceof MailboxExecutor) {
+                    ((MailboxExecutor) executor).resume(continuation, context);
+                } else {
+                    executor.execute(continuation);
                 }
+            }
+        });
+        return done;
+    }
+
+    private static Exception unwrap(Throwable failure) {
+        if (failure instanceof CompletionException && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        return failure instanceof Exception ? (Exception) failure : new ExecutionException(failure);
+    }
 
-                context.setState(state);
-                enter(state, context);
+    private void finished() {
+        if (inFlight.decrementAndGet() == 0 && quiescenceWaiters > 0) {
+            synchronized (inFlight) {
+                inFlight.notifyAll();
             }
-        }, context);
+        }
     }
 
-    protected void execute(Runnable task, final C context) {
-        if (!context.isTerminated()) {
-            executor.execute(task);
+    private boolean isExternal() {
+        return RUNNING.get() != this;
+    }
+
+    private boolean hasLimits() {
+        return inbound != null || (executor instanceof MailboxExecutor && ((MailboxExecutor) executor).isBounded());
+    }
+
+    /**
+     * @return true if a trigger made on the current thread must be admitted to the inbound queues
+     */
+    private boolean isLimited() {
+        return hasLimits() && isExternal();
+    }
+
+    /**
+     * Stops the flow from accepting new contexts and events from outside. Contexts in flight drain: tasks already
+     * submitted run, and events triggered by the flow's own handlers and state timeouts are still accepted.
+     * Triggers rejected because of it behave as for an invalid event, except that
+     * {@link #trigger(EventEnum, StatefulContext)} throws {@link RejectedExecutionException}.
+     */
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Waits until none of this flow's tasks are queued or running. Contexts waiting for an event don't count.
+     * @return false if the timeout elapsed first
+     */
+    public boolean awaitQuiescence(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (inFlight) {
+            quiescenceWaiters++;
+            try {
+                while (inFlight.get() > 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(inFlight, remaining);
+                }
+                return true;
+            } finally {
+                quiescenceWaiters--;
+            }
         }
     }
 
-    public <C1 extends StatefulContext> EasyFlow<C1> whenEvent(EventEnum event, ContextHandler<C1> onEvent) {
-        handlers.setHandler(EventType.EVENT_TRIGGER, null, event, onEvent);
+    /**
+     * @return true if a trigger made on the current thread must be refused because the flow is shut down
+     */
+    private boolean isClosed() {
+        return shutdown && isExternal();
+    }
+
+    /**
+     * Takes slots for task in the flow's and the context's inbound queues
+     * @return false if either queue refused it
+     */
+    private boolean admit(InboundTask task, C context) {
+        InboundQueue contextQueue = executor instanceof MailboxExecutor ?
+            ((MailboxExecutor) executor).getInbound(context) : null;
+
+        if (inbound != null && !inbound.acquire(task)) {
+            return false;
+        }
+        if (contextQueue != null && !contextQueue.acquire(task)) {
+            if (inbound != null) {
+                inbound.release();
+            }
+            return false;
+        }
+
+        task.setQueues(inbound, contextQueue);
+        return true;
+    }
+
+    private boolean submit(InboundTask task, boolean limited, C context, Claim claim) {
+        if (limited) {
+            task.ready();
+        }
+        if (!dispatch(task, context, claim)) {
+            if (limited) {
+                task.cancel();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private void submit(EventTask task, boolean limited, C context, EventEnum event, Claim claim) {
+        if (!coalesced.isEmpty() && coalesced.contains(event)) {
+            PendingKey key = new PendingKey(context, event);
+            if (pending.putIfAbsent(key, task) == null) {
+                task.key = key;
+                task.ready();
+            }
+        }
+
+        if (!submit(task, limited, context, claim)) {
+            task.untrack();
+        }
+    }
+
+    /**
+     * @return true if event was merged into an identical trigger still waiting for the context,
+     * false if it has to be triggered on its own
+     */
+    private boolean coalesce(EventEnum event, C context) {
+        if (coalesced.isEmpty() || !coalesced.contains(event)) {
+            return false;
+        }
+
+        EventTask task = pending.get(new PendingKey(context, event));
+        if (task == null) {
+            return false;
+        }
+
+        // the merged trigger must be one the context would accept right now
+        StateEnum state = context.getState();
+        if (task.transition.getStateTo() != state || context.isTerminated()
+            || transitions.getTransition(state, event, context) == null) {
+            return false;
+        }
+
+        // a task that is still waiting once the state has been read can't have started before it was:
+        // its handlers cover the merged trigger
+        if (!task.isWaiting()) {
+            return false;
+        }
+
+        metrics.coalesced(event);
+        return true;
+    }
+
+    /**
+     * Keeps other threads from claiming transitions of a context from when one is claimed until its task is queued.
+     * Let go once the task is queued or, if the executor runs it right away, once it starts.
+     */
+    private static final class Claim extends AtomicBoolean implements Runnable {
+        private static final long serialVersionUID = 1L;
+
+        private final StatefulContext context;
+        private Runnable task;
+
+        private Claim(StatefulContext context) {
+            this.context = context;
+        }
+
+        void lock() {
+            context.lockClaims();
+            set(true);
+        }
+
+        void unlock() {
+            if (compareAndSet(true, false)) {
+                context.unlockClaims();
+            }
+        }
+
+        @Override
+        public void run() {
+            unlock();
+            task.run();
+        }
+    }
+
+    private static final class PendingKey {
+        private final StatefulContext context;
+        private final EventEnum event;
+
+        private PendingKey(StatefulContext context, EventEnum event) {
+            this.context = context;
+            this.event = event;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PendingKey)) return false;
+            PendingKey that = (PendingKey) o;
+            return context == that.context && event.equals(that.event);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(context) + event.hashCode();
+        }
+    }
+
+    private Runnable measureQueueDelay(final Runnable task) {
+        final long queued = System.nanoTime();
+        return new Runnable() {
+            @Override
+            public void run() {
+                metrics.queueDelay(System.nanoTime() - queued);
+                task.run();
+            }
+        };
+    }
+
+    /**
+     * @return this flow typed for the context of the handlers being registered, which the flow itself doesn't depend on
+     */
+    @SuppressWarnings("unchecked")
+    private <C1 extends StatefulContext> EasyFlow<C1> self() {
         return (EasyFlow<C1>) this;
     }
 
+    // handlers of the same hook are called in the order they were added, consecutive ones marked with
+    // Handlers.independent run in parallel on the handler pool and are joined before the next one
+
+    public <C1 extends StatefulContext> EasyFlow<C1> whenEvent(EventEnum event, ContextHandler<C1> onEvent) {
+        handlers.addHandler(EventType.EVENT_TRIGGER, null, event, onEvent);
+        return self();
+    }
+
     public <C1 extends StatefulContext> EasyFlow<C1> whenEvent(EventHandler<C1> onEvent) {
-        handlers.setHandler(EventType.ANY_EVENT_TRIGGER, null, null, onEvent);
-        return (EasyFlow<C1>) this;
+        handlers.addHandler(EventType.ANY_EVENT_TRIGGER, null, null, onEvent);
+        return self();
     }
 
     public <C1 extends StatefulContext> EasyFlow<C1> whenEnter(StateEnum state, ContextHandler<C1> onEnter) {
-        handlers.setHandler(EventType.STATE_ENTER, state, null, onEnter);
-        return (EasyFlow<C1>) this;
+        handlers.addHandler(EventType.STATE_ENTER, state, null, onEnter);
+        return self();
     }
 
     public <C1 extends StatefulContext> EasyFlow<C1> whenEnter(StateHandler<C1> onEnter) {
-        handlers.setHandler(EventType.ANY_STATE_ENTER, null, null, onEnter);
-        return (EasyFlow<C1>) this;
+        handlers.addHandler(EventType.ANY_STATE_ENTER, null, null, onEnter);
+        return self();
     }
 
     public <C1 extends StatefulContext> EasyFlow<C1> whenLeave(StateEnum state, ContextHandler<C1> onEnter) {
-        handlers.setHandler(EventType.STATE_LEAVE, state, null, onEnter);
-        return (EasyFlow<C1>) this;
+        handlers.addHandler(EventType.STATE_LEAVE, state, null, onEnter);
+        return self();
     }
 
     public <C1 extends StatefulContext> EasyFlow<C1> whenLeave(StateHandler<C1> onEnter) {
-        handlers.setHandler(EventType.ANY_STATE_LEAVE, null, null, onEnter);
-        return (EasyFlow<C1>) this;
+        handlers.addHandler(EventType.ANY_STATE_LEAVE, null, null, onEnter);
+        return self();
+    }
+
+    // async handlers hold no thread while their stage is pending: the rest of the hook and, with a MailboxExecutor,
+    // the context's next tasks wait for it to complete. A stage completed exceptionally is handled as a failed handler
+
+    public <C1 extends StatefulContext> EasyFlow<C1> whenEventAsync(EventEnum event, AsyncContextHandler<C1> onEvent) {
+        handlers.addHandler(EventType.EVENT_TRIGGER, null, event, onEvent);
+        return self();
+    }
+
+    public <C1 extends StatefulContext> EasyFlow<C1> whenEventAsync(AsyncEventHandler<C1> onEvent) {
+        handlers.addHandler(EventType.ANY_EVENT_TRIGGER, null, null, onEvent);
+        return self();
+    }
+
+    public <C1 extends StatefulContext> EasyFlow<C1> whenEnterAsync(StateEnum state, AsyncContextHandler<C1> onEnter) {
+        handlers.addHandler(EventType.STATE_ENTER, state, null, onEnter);
+        return self();
+    }
+
+    public <C1 extends StatefulContext> EasyFlow<C1> whenEnterAsync(AsyncStateHandler<C1> onEnter) {
+        handlers.addHandler(EventType.ANY_STATE_ENTER, null, null, onEnter);
+        return self();
+    }
+
+    public <C1 extends StatefulContext> EasyFlow<C1> whenLeaveAsync(StateEnum state, AsyncContextHandler<C1> onLeave) {
+        handlers.addHandler(EventType.STATE_LEAVE, state, null, onLeave);
+        return self();
+    }
+
+    public <C1 extends StatefulContext> EasyFlow<C1> whenLeaveAsync(AsyncStateHandler<C1> onLeave) {
+        handlers.addHandler(EventType.ANY_STATE_LEAVE, null, null, onLeave);
+        return self();
     }
 
+    /**
+     * The first error handler replaces the default one, which logs the error
+     */
     public <C1 extends StatefulContext> EasyFlow<C1> whenError(ExecutionErrorHandler<C1> onError) {
-        handlers.setHandler(EventType.ERROR, null, null, onError);
-        return (EasyFlow<C1>) this;
+        if (defaultErrorHandler) {
+            defaultErrorHandler = false;
+            handlers.setHandler(EventType.ERROR, null, null, onError);
+        } else {
+            handlers.addHandler(EventType.ERROR, null, null, onError);
+        }
+        return self();
     }
 
     public <C1 extends StatefulContext> EasyFlow<C1> whenFinalState(StateHandler<C1> onFinalState) {
-        handlers.setHandler(EventType.FINAL_STATE, null, null, onFinalState);
-        return (EasyFlow<C1>) this;
+        handlers.addHandler(EventType.FINAL_STATE, null, null, onFinalState);
+        return self();
+    }
+
+    /**
+     * Sets the pool independent handlers run on, {@link ForkJoinPool#commonPool()} by default
+     */
+    public <C1 extends StatefulContext> EasyFlow<C1> handlerPool(ForkJoinPool pool) {
+        handlers.setPool(pool);
+        return self();
     }
 
     public void waitForCompletion(C context) {
       context.awaitTermination();
     }
 
+    /**
+     * @return stage which completes with the context's final state, see {@link StatefulContext#getCompletion()}
+     */
+    public CompletionStage<StateEnum> completionOf(C context) {
+        return context.getCompletion();
+    }
+
+    /**
+     * @return future which completes when all contexts have terminated, or exceptionally if any of them failed
+     */
+    public CompletableFuture<Void> completionOfAll(Collection<? extends C> contexts) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[contexts.size()];
+        int i = 0;
+        for (C context : contexts) {
+            futures[i++] = context.getCompletion().toCompletableFuture();
+        }
+
+        return CompletableFuture.allOf(futures);
+    }
+
     public <C1 extends StatefulContext> EasyFlow<C1> executor(Executor executor) {
         this.executor = executor;
-        return (EasyFlow<C1>) this;
+        return self();
     }
 
     public <C1 extends StatefulContext> EasyFlow<C1> trace() {
         trace = true;
-        return (EasyFlow<C1>) this;
+        return self();
     }
 
     public <C1 extends StatefulContext> EasyFlow<C1> logger(FlowLogger log) {
         this.log = log;
-        return (EasyFlow<C1>) this;
+        return self();
+    }
+
+    /**
+     * Sets the listener for counts and timings of this flow, {@link FlowMetrics#NONE} by default
+     */
+    public <C1 extends StatefulContext> EasyFlow<C1> metrics(FlowMetrics metrics) {
+        this.metrics = metrics;
+        return self();
+    }
+
+    /**
+     * Records every transition accepted from now on in journal, which must be open. States and events must be
+     * constants of one enum type each. If a transition can't be journaled, the trigger is not accepted
+     * and the context fails with the journal's exception.
+     */
+    public <C1 extends StatefulContext> EasyFlow<C1> journal(TransitionJournal journal) {
+        if (!transitions.isCompiled()) {
+            throw new IllegalArgumentException("Journaled flows need states and events of one enum type each");
+        }
+        this.journal = journal;
+        return self();
+    }
+
+    /**
+     * Keeps track of this flow's live contexts in registry, starting with the ones which enter a state next
+     */
+    public <C1 extends StatefulContext> EasyFlow<C1> registry(ContextRegistry<C> registry) {
+        this.registry = registry;
+        return self();
+    }
+
+    /**
+     * Limits the number of accepted triggers of this flow waiting to be processed, see {@link OverflowPolicy}.
+     * Triggers made from this flow's handlers and state timeouts are not limited.
+     * Per-context limits are set on {@link MailboxExecutor}.
+     */
+    public <C1 extends StatefulContext> EasyFlow<C1> queueLimit(int capacity, OverflowPolicy policy) {
+        this.inbound = new InboundQueue(capacity, policy);
+        return self();
+    }
+
+    /**
+     * Merges a trigger of event into an identical one still waiting for the same context: one which hasn't started
+     * processing and whose transition led to the context's current state, provided event is valid in that state.
+     * The merged trigger is reported as accepted but doesn't claim a transition, take an inbound slot or run handlers
+     * of its own. Otherwise it is triggered as usual, and rejected if it isn't valid.
+     * Applies to {@link #trigger}, {@link #safeTrigger(EventEnum, StatefulContext)} and {@link #tryTrigger}.
+     */
+    public <C1 extends StatefulContext> EasyFlow<C1> coalesce(EventEnum... events) {
+        Set<EventEnum> set = new HashSet<EventEnum>(coalesced);
+        Collections.addAll(set, events);
+        coalesced = set;
+        return self();
     }
 
+    /**
+     * @return number of accepted triggers of this flow waiting to be processed, always 0 without a queue limit
+     */
+    public int getQueueSize() {
+        return inbound == null ? 0 : inbound.size();
+    }
+
+    /**
+     * @return number of accepted triggers for the context waiting to be processed,
+     * always 0 unless the executor is a {@link MailboxExecutor} with a capacity
+     */
+    public int getQueueSize(C context) {
+        return executor instanceof MailboxExecutor ? ((MailboxExecutor) executor).getInboundSize(context) : 0;
+    }
+
+    /**
+     * Sets the wheel state timeouts are scheduled on, {@link TimingWheel#shared()} by default
+     */
+    public <C1 extends StatefulContext> EasyFlow<C1> timer(TimingWheel timer) {
+        this.timer = timer;
+        return self();
+    }
+
+    private void scheduleTimeout(final StateEnum state, final C context) {
+        StateTimeout timeout = transitions.getTimeout(state);
+        if (timeout == null || context.getState() != state) {
+            return;
+        }
+
+        TimingWheel wheel = timer;
+        if (wheel == null) {
+            wheel = TimingWheel.shared();
+        }
+
+        final EventEnum event = timeout.getEvent();
+        context.setTimeout(wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // does nothing if the context has moved on meanwhile
+                    tryTrigger(event, state, context, false);
+                } catch (RuntimeException e) {
+                    // for example the executor rejecting the task, nobody else would hear of it
+                    doOnError(new ExecutionError(context.getState(), event, e, "Execution Error in [timeout]", context));
+                }
+            }
+        }, timeout.getMillis(), TimeUnit.MILLISECONDS));
+    }
+
+    private void cancelTimeout(C context) {
+        TimingWheel.Timeout timeout = context.getTimeout();
+        if (timeout != null) {
+            context.setTimeout(null);
+            timeout.cancel();
+        }
+    }
+
+    void doOnStop(C context) {
+        cancelTimeout(context);
+        if (registry != null) {
+            registry.removed(context);
+        }
+    }
+
+    /**
+     * Journals a transition the context has just been moved by, see {@link #journalFailed}
+     * @return false if it couldn't be journaled
+     */
+    private boolean record(StateEnum stateFrom, EventEnum event, StateEnum stateTo, C context, Claim claim) {
+        if (journal != null) {
+            try {
+                journal.append(context, stateFrom, event, stateTo);
+            } catch (RuntimeException e) {
+                journalFailed(stateFrom, stateTo, event, e, context, claim);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean record(Transition transition, C context, Claim claim) {
+        return record(transition.getStateFrom(), transition.getEvent(), transition.getStateTo(), context, claim);
+    }
+
+    /**
+     * Moves the context back from the state it has claimed and fails it on the triggering thread:
+     * a context whose transitions can't be journaled can't go on. Error handlers run after claim is let go.
+     */
+    private void journalFailed(StateEnum stateFrom, StateEnum claimed, EventEnum event, RuntimeException e, C context,
+                               Claim claim) {
+        if (stateFrom != null) {
+            context.compareAndSetState(claimed, stateFrom);
+        }
+        claim.unlock();
+        doOnError(new ExecutionError(context.getState(), event, e, "Execution Error in [journal]", context));
+    }
+
+    /**
+     * @return false if event is not valid in the context's state, if an inbound queue with
+     * {@link OverflowPolicy#REJECT} is full or if the flow is shut down
+     */
     public boolean safeTrigger(final EventEnum event, final C context) {
         try {
             return trigger(event, true, context);
@@ -161,10 +868,191 @@ public class EasyFlow<C extends StatefulContext> {
         }
     }
 
+    /**
+     * @throws RejectedExecutionException if an inbound queue with {@link OverflowPolicy#REJECT} is full
+     * or the flow is shut down
+     */
     public void trigger(final EventEnum event, final C context) throws LogicViolationError {
         trigger(event, false, context);
     }
 
+    /**
+     * Triggers event only if the context's state doesn't change between reading it and claiming the transition.
+     * Unlike {@link #safeTrigger(EventEnum, StatefulContext)} it doesn't retry when another thread wins the race.
+     */
+    public TriggerResult tryTrigger(final EventEnum event, final C context) {
+        return tryTrigger(event, context.getState(), context);
+    }
+
+    /**
+     * Triggers event only if the context is in expectedState.
+     * @return {@link TriggerResult#LOST_RACE} if the context has already left expectedState
+     */
+    public TriggerResult tryTrigger(final EventEnum event, final StateEnum expectedState, final C context) {
+        if (isClosed()) {
+            return TriggerResult.REJECTED;
+        }
+        return tryTrigger(event, expectedState, context, isLimited());
+    }
+
+    private TriggerResult tryTrigger(EventEnum event, StateEnum expectedState, C context, boolean limited) {
+        if (context.isTerminated()) {
+            return TriggerResult.REJECTED;
+        }
+
+        Transition transition = transitions.getTransition(expectedState, event, context);
+        if (transition == null) {
+            return context.getState() == expectedState ? TriggerResult.REJECTED : TriggerResult.LOST_RACE;
+        }
+
+        if (context.getState() == expectedState && coalesce(event, context)) {
+            return TriggerResult.ACCEPTED;
+        }
+
+        EventTask task = new EventTask(context);
+        if (limited && !admit(task, context)) {
+            return TriggerResult.QUEUE_FULL;
+        }
+
+        Claim claim = new Claim(context);
+        claim.lock();
+        try {
+            if (!context.compareAndSetState(expectedState, transition.getStateTo())) {
+                if (limited) {
+                    task.cancel();
+                }
+                return TriggerResult.LOST_RACE;
+            }
+
+            if (!record(transition, context, claim)) {
+                if (limited) {
+                    task.cancel();
+                }
+                return TriggerResult.REJECTED;
+            }
+            task.transition = transition;
+            submit(task, limited, context, event, claim);
+            return TriggerResult.ACCEPTED;
+        } finally {
+            claim.unlock();
+        }
+    }
+
+    /**
+     * Triggers event for every context. Each accepted event is processed as one task per context,
+     * covering event, leave and enter handlers.
+     * @return for each context (in iteration order) whether event was accepted in its current state
+     * and admitted to the inbound queues
+     */
+    public boolean[] safeTrigger(final EventEnum event, final Collection<? extends C> contexts) {
+        boolean[] accepted = new boolean[contexts.size()];
+        if (isClosed()) {
+            return accepted;
+        }
+
+        boolean limited = isLimited();
+        int i = 0;
+        for (C context : contexts) {
+            BatchTask task = new BatchTask(context);
+            if (!limited || admit(task, context)) {
+                Claim claim = new Claim(context);
+                try {
+                    Transition transition = claimTransition(event, context, claim);
+                    if (transition != null) {
+                        accepted[i] = true;
+                        task.batch = Collections.singletonList(transition);
+                        submit(task, limited, context, claim);
+                    } else if (limited) {
+                        task.cancel();
+                    }
+                } finally {
+                    claim.unlock();
+                }
+            }
+            i++;
+        }
+
+        return accepted;
+    }
+
+    /**
+     * Triggers events for the context one after another, as one task. Each event is checked against
+     * the state the previous accepted event leads to; events which are not valid there are skipped.
+     * Processing stops early if the context terminates. The events take one slot in the inbound queues.
+     * @return for each event whether it was accepted
+     */
+    public boolean[] safeTrigger(final List<? extends EventEnum> events, final C context) {
+        if (isClosed()) {
+            return new boolean[events.size()];
+        }
+
+        BatchTask task = new BatchTask(context);
+        boolean limited = isLimited();
+        if (limited && !admit(task, context)) {
+            return new boolean[events.size()];
+        }
+
+        while (true) {
+            boolean[] accepted = new boolean[events.size()];
+            if (context.isTerminated()) {
+                if (limited) {
+                    task.cancel();
+                }
+                return accepted;
+            }
+
+            List<Transition> batch = new ArrayList<Transition>(events.size());
+            StateEnum stateFrom = context.getState();
+            StateEnum state = stateFrom;
+            int i = 0;
+            for (EventEnum event : events) {
+                Transition transition = transitions.getTransition(state, event, context);
+                if (transition != null) {
+                    accepted[i] = true;
+                    batch.add(transition);
+                    state = transition.getStateTo();
+                }
+                i++;
+            }
+
+            if (batch.isEmpty()) {
+                if (limited) {
+                    task.cancel();
+                }
+                return accepted;
+            }
+
+            Claim claim = new Claim(context);
+            claim.lock();
+            try {
+                if (context.compareAndSetState(stateFrom, state)) {
+                    if (journal != null) {
+                        try {
+                            for (Transition transition : batch) {
+                                journal.append(context, transition.getStateFrom(), transition.getEvent(), transition.getStateTo());
+                            }
+                        } catch (RuntimeException e) {
+                            journalFailed(stateFrom, state, batch.get(0).getEvent(), e, context, claim);
+                            if (limited) {
+                                task.cancel();
+                            }
+                            return new boolean[events.size()];
+                        }
+                    }
+                    task.batch = batch;
+                    submit(task, limited, context, claim);
+                    return accepted;
+                }
+            } finally {
+                claim.unlock();
+            }
+        }
+    }
+
+    TransitionCollection getTransitionCollection() {
+        return transitions;
+    }
+
     public List<Transition> getAvailableTransitions(StateEnum stateFrom) {
         return transitions.getTransitions(stateFrom);
     }
@@ -177,93 +1065,380 @@ public class EasyFlow<C extends StatefulContext> {
     }
 
     private boolean trigger(final EventEnum event, final boolean safe, final C context) throws LogicViolationError {
-        if (context.isTerminated()) {
-            return false;
+        if (isClosed()) {
+            if (safe) {
+                return false;
+            }
+            throw new RejectedExecutionException("Flow is shut down, Event: " + event + " for " + context);
+        }
+
+        if (coalesce(event, context)) {
+            return true;
+        }
+
+        EventTask task = new EventTask(context);
+        boolean limited = isLimited();
+        if (limited && !admit(task, context)) {
+            if (safe) {
+                return false;
+            }
+            throw new RejectedExecutionException("Inbound queue full, Event: " + event + " for " + context);
         }
 
-        final StateEnum stateFrom = context.getState();
-        final Transition transition = transitions.getTransition(stateFrom, event);
+        Claim claim = new Claim(context);
+        final Transition transition;
+        try {
+            transition = claimTransition(event, context, claim);
+            if (transition != null) {
+                task.transition = transition;
+                submit(task, limited, context, event, claim);
+            } else if (limited) {
+                task.cancel();
+            }
+        } finally {
+            claim.unlock();
+        }
 
-        if (transition != null) {
-            execute(new Runnable() {
+        if (transition == null && !safe && !context.isTerminated()) {
+            throw new LogicViolationError("Invalid Event: " + event +
+                " triggered while in State: " + context.getState() + " for " + context);
+        }
+
+        return transition != null;
+    }
+
+    /**
+     * Moves the context to the state event leads to from its current one, retrying if another thread changes it first
+     * @return claimed transition, with claim still held, or null if event is not valid in the current state,
+     * the context is terminated or the transition couldn't be journaled
+     */
+    private Transition claimTransition(EventEnum event, C context, Claim claim) {
+        while (!context.isTerminated()) {
+            StateEnum stateFrom = context.getState();
+            Transition transition = transitions.getTransition(stateFrom, event, context);
+            if (transition == null) {
+                return null;
+            }
+
+            claim.lock();
+            if (context.compareAndSetState(stateFrom, transition.getStateTo())) {
+                return record(transition, context, claim) ? transition : null;
+            }
+            claim.unlock();
+        }
+
+        return null;
+    }
+
+    /**
+     * Processes one accepted event, covering event, leave and enter handlers
+     */
+    private final class EventTask extends InboundTask {
+        private final C context;
+        private Transition transition;
+        // set while the task is registered for coalescing
+        private PendingKey key;
+
+        private EventTask(C context) {
+            this.context = context;
+        }
+
+        // once the task starts, later triggers get tasks of their own
+        private void untrack() {
+            if (key != null) {
+                pending.remove(key, this);
+            }
+        }
+
+        @Override
+        void process() {
+            untrack();
+            CompletionStage<Void> fired = fire(transition, context);
+            if (fired == null) {
+                fired();
+            } else {
+                fired.thenRun(new Runnable() {
+                    @Override
+                    public void run() {
+                        fired();
+                    }
+                });
+            }
+        }
+
+        private void fired() {
+            if (!context.isTerminated()) {
+                changeState(transition.getStateFrom(), transition.getStateTo(), context);
+            }
+        }
+
+        @Override
+        void dropped() {
+            untrack();
+            skipped(transition.getStateTo(), context);
+        }
+    }
+
+    /**
+     * Processes accepted events one after another, covering event, leave and enter handlers
+     */
+    private final class BatchTask extends InboundTask {
+        private final C context;
+        private List<Transition> batch;
+
+        private BatchTask(C context) {
+            this.context = context;
+        }
+
+        @Override
+        void process() {
+            process(0);
+        }
+
+        /**
+         * Processes the batch from index on, until async handlers have to be waited for
+         */
+        private void process(int index) {
+            for (int i = index; i < batch.size(); i++) {
+                if (context.isTerminated()) {
+                    return;
+                }
+
+                final int fired = i;
+                CompletionStage<Void> stage = fire(batch.get(i), context);
+                if (stage != null) {
+                    stage.thenRun(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (changeState(fired)) {
+                                process(fired + 1);
+                            }
+                        }
+                    });
+                    return;
+                }
+                if (!changeState(i)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Changes state for the transition at index after its event handlers, then goes on with the batch
+         * @return true if the rest of the batch can be processed right away
+         */
+        private boolean changeState(int index) {
+            if (context.isTerminated()) {
+                return false;
+            }
+
+            Transition transition = batch.get(index);
+            CompletionStage<Void> stage = EasyFlow.this.changeState(transition.getStateFrom(), transition.getStateTo(), context);
+            if (stage == null) {
+                return true;
+            }
+
+            final int next = index + 1;
+            stage.thenRun(new Runnable() {
                 @Override
                 public void run() {
-                    try {
-                        StateEnum stateTo = transition.getStateTo();
-                        if (isTrace())
-                            log.info("when triggered %s in %s for %s <<<", event, stateFrom, context);
+                    process(next);
+                }
+            });
+            return false;
+        }
+
+        @Override
+        void dropped() {
+            skipped(batch.get(batch.size() - 1).getStateTo(), context);
+        }
+    }
 
-                        handlers.callOnEventTriggered(event, stateFrom, stateTo, context);
-                        context.setLastEvent(event);
+    /**
+     * Keeps the registry and termination in line with the state a dropped task's context has already moved to
+     */
+    private void skipped(StateEnum state, C context) {
+        if (registry != null && !context.isTerminated()) {
+            registry.entered(context, state);
+        }
+        if (transitions.isFinal(state)) {
+            doOnTerminate(state, context);
+        }
+    }
 
-                        if (isTrace())
-                            log.info("when triggered %s in %s for %s >>>", event, stateFrom, context);
+    /**
+     * Calls event handlers. A failed handler terminates the context.
+     * @return stage which completes once async handlers are done, null if there were none to wait for
+     */
+    private CompletionStage<Void> fire(final Transition transition, final C context) {
+        final EventEnum event = transition.getEvent();
+        final StateEnum stateFrom = transition.getStateFrom();
+        try {
+            if (isTrace())
+                log.info("when triggered %s in %s for %s <<<", event, stateFrom, context);
+
+            final long started = isMetered() ? System.nanoTime() : 0;
+            if (isMetered()) {
+                metrics.transition(transition);
+            }
+            CompletionStage<Void> stage = handlers.callOnEventTriggered(event, stateFrom, transition.getStateTo(), context);
+            if (stage != null) {
+                return whenHandled(stage, context, new Continuation() {
+                    @Override
+                    void succeeded() {
+                        fired(event, stateFrom, started, context);
+                    }
 
-                        setCurrentState(stateTo, false, context);
-                    } catch (Exception e) {
+                    @Override
+                    void failed(Exception e) {
                         doOnError(new ExecutionError(stateFrom, event, e,
                             "Execution Error in [trigger]", context));
                     }
-                }
-            }, context);
-        } else if (!safe){
-            throw new LogicViolationError("Invalid Event: " + event +
-                " triggered while in State: " + context.getState() + " for " + context);
+                });
+            }
+
+            fired(event, stateFrom, started, context);
+        } catch (Exception e) {
+            doOnError(new ExecutionError(stateFrom, event, e,
+                "Execution Error in [trigger]", context));
         }
+        return null;
+    }
 
-        return transition != null;
+    private void fired(EventEnum event, StateEnum stateFrom, long started, C context) {
+        if (isMetered()) {
+            metrics.handler(FlowMetrics.Hook.EVENT, event, System.nanoTime() - started);
+        }
+        context.setLastEvent(event);
+
+        if (isTrace())
+            log.info("when triggered %s in %s for %s >>>", event, stateFrom, context);
     }
 
-    private void enter(final StateEnum state, final C context) {
+    /**
+     * @return stage which completes once async handlers are done, null if there were none to wait for
+     */
+    private CompletionStage<Void> enter(final StateEnum state, final C context) {
         if (context.isTerminated()) {
-            return;
+            return null;
         }
 
+        scheduleTimeout(state, context);
+
         try {
             // first enter state
             if (isTrace())
                 log.info("when enter %s for %s <<<", state, context);
 
-            handlers.callOnStateEntered(state, context);
-
-            if (isTrace())
-                log.info("when enter %s for %s >>>", state, context);
+            final long started = isMetered() ? System.nanoTime() : 0;
+            if (isMetered()) {
+                context.setEnteredAt(started);
+            }
+            CompletionStage<Void> stage = handlers.callOnStateEntered(state, context);
+            if (stage != null) {
+                return whenHandled(stage, context, new Continuation() {
+                    @Override
+                    void succeeded() {
+                        entered(state, started, context);
+                    }
 
-            if (transitions.isFinal(state)) {
-                doOnTerminate(state, context);
+                    @Override
+                    void failed(Exception e) {
+                        doOnError(new ExecutionError(state, null, e,
+                            "Execution Error in [whenEnter] handler", context));
+                    }
+                });
             }
+
+            entered(state, started, context);
         } catch (Exception e) {
             doOnError(new ExecutionError(state, null, e,
                 "Execution Error in [whenEnter] handler", context));
         }
+        return null;
     }
 
-    private void leave(StateEnum state, final C context) {
+    private void entered(StateEnum state, long started, C context) {
+        if (isMetered()) {
+            metrics.handler(FlowMetrics.Hook.ENTER, state, System.nanoTime() - started);
+        }
+
+        if (isTrace())
+            log.info("when enter %s for %s >>>", state, context);
+
+        if (transitions.isFinal(state)) {
+            doOnTerminate(state, context);
+        }
+    }
+
+    /**
+     * @return stage which completes once async handlers are done, null if there were none to wait for
+     */
+    private CompletionStage<Void> leave(final StateEnum state, final C context) {
+        cancelTimeout(context);
         if (context.isTerminated()) {
-            return;
+            return null;
         }
 
         try {
             if (isTrace())
                 log.info("when leave %s for %s <<<", state, context);
 
-            handlers.callOnStateLeaved(state, context);
+            final long started = isMetered() ? System.nanoTime() : 0;
+            if (isMetered()) {
+                long enteredAt = context.getEnteredAt();
+                if (enteredAt != 0) {
+                    metrics.dwell(state, started - enteredAt);
+                }
+            }
+            CompletionStage<Void> stage = handlers.callOnStateLeaved(state, context);
+            if (stage != null) {
+                return whenHandled(stage, context, new Continuation() {
+                    @Override
+                    void succeeded() {
+                        left(state, started, context);
+                    }
 
-            if (isTrace())
-                log.info("when leave %s for %s >>>", state, context);
+                    @Override
+                    void failed(Exception e) {
+                        doOnError(new ExecutionError(state, null, e,
+                            "Execution Error in [whenLeave] handler", context));
+                    }
+                });
+            }
+
+            left(state, started, context);
         } catch (Exception e) {
             doOnError(new ExecutionError(state, null, e,
                 "Execution Error in [whenLeave] handler", context));
         }
+        return null;
+    }
+
+    private void left(StateEnum state, long started, C context) {
+        if (isMetered()) {
+            metrics.handler(FlowMetrics.Hook.LEAVE, state, System.nanoTime() - started);
+        }
+
+        if (isTrace())
+            log.info("when leave %s for %s >>>", state, context);
     }
 
     protected boolean isTrace() {
-        return trace;
+        return trace && log.isInfoEnabled();
+    }
+
+    private boolean isMetered() {
+        return metrics != FlowMetrics.NONE;
     }
 
     protected void doOnError(final ExecutionError error) {
+        C context = error.getContext();
+        metrics.error(error.getState());
         handlers.callOnError(error);
-        doOnTerminate(error.getState(), (C) error.getContext());
+        context.setFailed();
+        doOnTerminate(error.getState(), context);
+        context.completeFailed(error);
     }
 
     protected StateEnum getStartState() {
@@ -276,7 +1451,13 @@ public class EasyFlow<C extends StatefulContext> {
                 if (isTrace())
                     log.info("terminating context %s", context);
 
+                cancelTimeout(context);
+                // deregister first, so waiters for termination don't find it still registered
+                if (registry != null) {
+                    registry.removed(context);
+                }
                 context.setTerminated();
+                metrics.terminated(state);
                 handlers.callOnFinalState(state, context);
             } catch (Exception e) {
                 log.error("Execution Error in [whenTerminate] handler", e);
@@ -1,28 +1,43 @@
 package au.com.ds.ef;
 
 import java.util.Collection;
+import java.util.concurrent.TimeUnit;
 
 public class FlowBuilder<C extends StatefulContext> {
-	private EasyFlow<C> flow;
+	private StateEnum startState;
+	private StateTimeout startTimeout;
 
     public static class ToHolder {
         private EventEnum event;
+        private Guard<?> guard;
 
         private ToHolder(EventEnum event) {
             this.event = event;
         }
 
+        /**
+         * Takes the transition only if guard passes. Several guarded transitions may leave a state on the same event,
+         * as long as at most one of their guards passes for any context; a transition of the event without a guard
+         * is taken if none passes. The event is rejected if no transition is taken. The same guard used twice for
+         * a state and event is reported when the flow is built; guards which merely overlap are reported with
+         * a {@link au.com.ds.ef.err.DefinitionError} when an event finds more than one passing.
+         */
+        public <C extends StatefulContext> ToHolder when(Guard<C> guard) {
+            this.guard = guard;
+            return this;
+        }
+
         public Transition to(StateEnum state) {
-            return new Transition(event, state, false);
+            return new Transition(event, state, false).guard(guard);
         }
 
         public Transition finish(StateEnum state) {
-            return new Transition(event, state, true);
+            return new Transition(event, state, true).guard(guard);
         }
     }
 
 	private FlowBuilder(StateEnum startState) {
-        flow = new EasyFlow<C>(startState);
+        this.startState = startState;
 	}
 
 	public static <C extends StatefulContext> FlowBuilder<C> from(StateEnum startState) {
@@ -31,25 +46,51 @@ public class FlowBuilder<C extends StatefulContext> {
 
 	public static <C extends StatefulContext> EasyFlow<C> fromTransitions(StateEnum startState,
                                                                           Collection<Transition> transitions, boolean skipValidation) {
-        EasyFlow<C> flow = new EasyFlow<C>(startState);
-        flow.setTransitions(transitions, skipValidation);
-        return flow;
+        return new FlowDefinition(startState, new TransitionCollection(transitions, !skipValidation)).newFlow();
+    }
+
+    /**
+     * Builds a flow from dispatcher's transitions. The definition isn't validated again, generated dispatchers
+     * are checked when they are compiled; the flow's transition table is checked against the dispatcher instead.
+     */
+    public static <C extends StatefulContext> EasyFlow<C> fromDispatcher(StateEnum startState, FlowDispatcher dispatcher) {
+        return new FlowDefinition(startState, new TransitionCollection(dispatcher)).newFlow();
     }
 
     public static ToHolder on(EventEnum event) {
         return new ToHolder(event);
     }
 
+    /**
+     * Fires event if a context is still in the start state after duration, see {@link Transition#timeout}
+     */
+    public FlowBuilder<C> timeout(long duration, TimeUnit unit, EventEnum event) {
+        startTimeout = new StateTimeout(duration, unit, event);
+        return this;
+    }
+
     public <C1 extends StatefulContext> EasyFlow<C1> transit(Transition... transitions) {
         return transit(false, transitions);
     }
 
 	public <C1 extends StatefulContext> EasyFlow<C1> transit(boolean skipValidation, Transition... transitions) {
-        for (Transition transition : transitions) {
-            transition.setStateFrom(flow.getStartState());
+        return define(skipValidation, transitions).newFlow();
+	}
+
+    /**
+     * Validates and compiles the transitions into a definition which can be cached and shared between flows
+     */
+    public FlowDefinition define(Transition... transitions) {
+        return define(false, transitions);
+    }
+
+    public FlowDefinition define(boolean skipValidation, Transition... transitions) {
+        TransitionCollection collection = new TransitionCollection(
+            Transition.collect(startState, transitions), !skipValidation);
+        if (startTimeout != null) {
+            collection.setTimeout(startState, startTimeout, !skipValidation);
         }
-		flow.processAllTransitions(skipValidation);
 
-        return (EasyFlow<C1>) flow;
-	}
+        return new FlowDefinition(startState, collection);
+    }
 }
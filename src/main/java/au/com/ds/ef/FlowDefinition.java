@@ -0,0 +1,41 @@
+package au.com.ds.ef;
+
+import java.util.List;
+
+/**
+ * Compiled, validated transitions of a flow with its start state and state timeouts. It is immutable, so one
+ * definition can be built once, cached and shared by any number of flows, each with its own handlers, executor
+ * and logger, see {@link #newFlow()}.
+ */
+public final class FlowDefinition {
+    private final StateEnum startState;
+    private final TransitionCollection transitions;
+
+    FlowDefinition(StateEnum startState, TransitionCollection transitions) {
+        this.startState = startState;
+        this.transitions = transitions;
+    }
+
+    /**
+     * @return new flow running this definition, with no handlers registered
+     */
+    public <C extends StatefulContext> EasyFlow<C> newFlow() {
+        return new EasyFlow<C>(this);
+    }
+
+    public StateEnum getStartState() {
+        return startState;
+    }
+
+    public List<Transition> getAvailableTransitions(StateEnum stateFrom) {
+        return transitions.getTransitions(stateFrom);
+    }
+
+    public boolean isFinal(StateEnum state) {
+        return transitions.isFinal(state);
+    }
+
+    TransitionCollection getTransitionCollection() {
+        return transitions;
+    }
+}
@@ -0,0 +1,22 @@
+package au.com.ds.ef;
+
+import java.util.List;
+
+/**
+ * Definition of a flow known at build time, usually generated and checked by
+ * {@link au.com.ds.ef.apt.EnumFlowProcessor}. Use it with {@link FlowBuilder#fromDispatcher}, which builds
+ * the flow's transition table from it and checks the table against its lookups once; triggers don't call it.
+ */
+public interface FlowDispatcher {
+    /**
+     * @return transition for event in state, or null if event is not valid there
+     */
+    Transition getTransition(StateEnum state, EventEnum event);
+
+    boolean isFinal(StateEnum state);
+
+    /**
+     * @return all transitions, for lookups by state and for tooling
+     */
+    List<Transition> getTransitions();
+}
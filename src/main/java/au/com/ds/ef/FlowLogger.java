@@ -8,4 +8,11 @@ package au.com.ds.ef;
 public interface FlowLogger {
     void info(String message, Object... o);
     void error(String message, Throwable e);
+
+    /**
+     * Lets callers skip building log arguments when info output is discarded anyway
+     */
+    default boolean isInfoEnabled() {
+        return true;
+    }
 }
@@ -1,8 +1,12 @@
 package au.com.ds.ef;
 
-import java.lang.reflect.Method;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static java.lang.String.format;
+import static java.lang.invoke.MethodType.methodType;
 
 /**
  * User: andrey
@@ -10,49 +14,141 @@ import static java.lang.String.format;
  * Time: 10:43 PM
  */
 public class FlowLoggerImpl implements FlowLogger {
-    private Object logger;
-    private Method infoMethod;
-    private Method errorMethod;
+    private static final int MAX_CACHED_PATTERNS = 1024;
+    private static final Object[] NO_ARGS = new Object[0];
+
+    /**
+     * Slf4j is looked up once and bound through method handles, so logging doesn't go through reflection.
+     * All handles are null if slf4j is not on the classpath.
+     */
+    private static final class Slf4j {
+        private static final MethodHandle IS_INFO_ENABLED;
+        private static final MethodHandle INFO;
+        private static final MethodHandle ERROR;
+
+        static {
+            MethodHandle isInfoEnabled = null;
+            MethodHandle info = null;
+            MethodHandle error = null;
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                Class<?> factoryClass = Class.forName("org.slf4j.LoggerFactory");
+                Class<?> loggerClass = Class.forName("org.slf4j.Logger");
+                Object logger = lookup.findStatic(factoryClass, "getLogger", methodType(loggerClass, String.class))
+                    .invoke(EasyFlow.class.getName());
+
+                isInfoEnabled = lookup.findVirtual(loggerClass, "isInfoEnabled", methodType(boolean.class)).bindTo(logger);
+                info = lookup.findVirtual(loggerClass, "info", methodType(void.class, String.class, Object[].class)).bindTo(logger);
+                error = lookup.findVirtual(loggerClass, "error", methodType(void.class, String.class, Throwable.class)).bindTo(logger);
+            } catch (Throwable e) {
+                isInfoEnabled = null;
+                info = null;
+                error = null;
+            }
+
+            IS_INFO_ENABLED = isInfoEnabled;
+            INFO = info;
+            ERROR = error;
+
+            if (INFO != null) {
+                new FlowLoggerImpl().info("Using slf4j logging...");
+            } else {
+                new FlowLoggerImpl().info("Slf4j is not found on the classpath. Falling back to System.out");
+            }
+        }
+    }
+
+    // format string -> slf4j pattern, or the format string itself if it can't be converted
+    private static final ConcurrentMap<String, String> patterns = new ConcurrentHashMap<String, String>();
 
     public FlowLoggerImpl() {
-        try {
+    }
+
+    @Override
+    public boolean isInfoEnabled() {
+        if (Slf4j.IS_INFO_ENABLED == null) {
+            return true;
+        }
 
-            Class<?> factoryClass = Class.forName("org.slf4j.LoggerFactory");
-            Class<?> loggerClass = Class.forName("org.slf4j.Logger");
-            Method factoryMethod = factoryClass.getDeclaredMethod("getLogger", String.class);
-            logger = factoryMethod.invoke(null, EasyFlow.class.getName());
-            infoMethod = loggerClass.getDeclaredMethod("info", String.class);
-            errorMethod = loggerClass.getDeclaredMethod("error", String.class, Throwable.class);
-            info("Using slf4j logging...");
-        } catch (Exception e) {
-            info("Slf4j is not found on the classpath. Falling back to System.out");
+        try {
+            return (boolean) Slf4j.IS_INFO_ENABLED.invokeExact();
+        } catch (Throwable e) {
+            return true;
         }
     }
 
     @Override
     public void info(String message, Object... o) {
-        String formattedMessage = format(message, o);
-        if (infoMethod != null) {
+        if (Slf4j.INFO != null) {
             try {
-                infoMethod.invoke(logger, formattedMessage);
-            } catch (Exception e) {
+                if (!(boolean) Slf4j.IS_INFO_ENABLED.invokeExact()) {
+                    return;
+                }
+
+                String pattern = toPattern(message);
+                if (pattern != message || o.length == 0) {
+                    // slf4j substitutes the arguments, and only if the message is actually written
+                    Slf4j.INFO.invokeExact(pattern, o);
+                } else {
+                    Slf4j.INFO.invokeExact(format(message, o), NO_ARGS);
+                }
+            } catch (Throwable e) {
                 e.printStackTrace();
             }
         } else {
-            System.out.println("INFO " + EasyFlow.class.getName() + " " + formattedMessage);
+            System.out.println("INFO " + EasyFlow.class.getName() + " " + format(message, o));
         }
     }
 
     @Override
     public void error(String message, Throwable e) {
-        if (errorMethod != null) {
+        if (Slf4j.ERROR != null) {
             try {
-                errorMethod.invoke(logger, message, e);
-            } catch (Exception e2) {
+                Slf4j.ERROR.invokeExact(message, e);
+            } catch (Throwable e2) {
             }
         } else {
             System.err.println("ERROR " + EasyFlow.class.getName() + " " + message);
             e.printStackTrace();
         }
     }
+
+    /**
+     * @return slf4j pattern for a format string which only uses plain %s placeholders,
+     * otherwise the format string itself
+     */
+    static String toPattern(String message) {
+        String pattern = patterns.get(message);
+        if (pattern == null) {
+            pattern = convert(message);
+            if (patterns.size() < MAX_CACHED_PATTERNS) {
+                patterns.putIfAbsent(message, pattern);
+            }
+        }
+
+        return pattern;
+    }
+
+    private static String convert(String message) {
+        if (message.indexOf('%') < 0 || message.contains("{}")) {
+            return message;
+        }
+
+        StringBuilder sb = new StringBuilder(message.length());
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '%') {
+                if (i + 1 < message.length() && message.charAt(i + 1) == 's') {
+                    sb.append("{}");
+                    i++;
+                } else {
+                    return message;
+                }
+            } else {
+                sb.append(c);
+            }
+        }
+
+        return sb.toString();
+    }
 }
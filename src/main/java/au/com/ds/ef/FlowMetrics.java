@@ -0,0 +1,56 @@
+package au.com.ds.ef;
+
+/**
+ * Receives timings and counts from a running flow, see {@link EasyFlow#metrics(FlowMetrics)}.
+ * Callbacks run on flow threads, so implementations must be thread safe and cheap.
+ * Times are in nanoseconds.
+ */
+public interface FlowMetrics {
+    enum Hook {
+        EVENT,
+        ENTER,
+        LEAVE
+    }
+
+    /**
+     * Default which records nothing; flows using it don't read the clock at all
+     */
+    FlowMetrics NONE = new FlowMetrics() {
+    };
+
+    /**
+     * Called when a transition is applied, before its event handlers run
+     */
+    default void transition(Transition transition) {
+    }
+
+    /**
+     * Time a flow task spent waiting in the executor before it started running
+     */
+    default void queueDelay(long nanos) {
+    }
+
+    /**
+     * Time spent in the handlers of hook, key is the event for {@link Hook#EVENT} and the state otherwise
+     */
+    default void handler(Hook hook, Object key, long nanos) {
+    }
+
+    /**
+     * Time between entering state and starting to leave it
+     */
+    default void dwell(StateEnum state, long nanos) {
+    }
+
+    /**
+     * Called when event is merged into an identical one still waiting for its context, see {@link EasyFlow#coalesce}
+     */
+    default void coalesced(EventEnum event) {
+    }
+
+    default void error(StateEnum state) {
+    }
+
+    default void terminated(StateEnum state) {
+    }
+}
@@ -0,0 +1,173 @@
+package au.com.ds.ef;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link FlowMetrics} which keeps everything in memory: counters are {@link LongAdder}s and timings
+ * are {@link Histogram}s, so recording from many threads doesn't contend.
+ * One collector can be shared by several flows.
+ */
+public class FlowMetricsCollector implements FlowMetrics {
+    // by state and event (Transition's equality), then by target state, which tells guarded transitions apart
+    private final ConcurrentMap<Transition, ConcurrentMap<StateEnum, LongAdder>> transitions =
+        new ConcurrentHashMap<Transition, ConcurrentMap<StateEnum, LongAdder>>();
+    private final ConcurrentMap<StateEnum, Histogram> dwellTimes = new ConcurrentHashMap<StateEnum, Histogram>();
+    private final Map<Hook, ConcurrentMap<Object, Histogram>> handlerTimes =
+        new EnumMap<Hook, ConcurrentMap<Object, Histogram>>(Hook.class);
+    private final ConcurrentMap<EventEnum, LongAdder> coalesced = new ConcurrentHashMap<EventEnum, LongAdder>();
+    private final ConcurrentMap<StateEnum, LongAdder> errors = new ConcurrentHashMap<StateEnum, LongAdder>();
+    private final ConcurrentMap<StateEnum, LongAdder> terminations = new ConcurrentHashMap<StateEnum, LongAdder>();
+    private final Histogram queueDelay = new Histogram();
+
+    public FlowMetricsCollector() {
+        for (Hook hook : Hook.values()) {
+            handlerTimes.put(hook, new ConcurrentHashMap<Object, Histogram>());
+        }
+    }
+
+    @Override
+    public void transition(Transition transition) {
+        ConcurrentMap<StateEnum, LongAdder> targets = transitions.get(transition);
+        if (targets == null) {
+            ConcurrentMap<StateEnum, LongAdder> created = new ConcurrentHashMap<StateEnum, LongAdder>();
+            targets = transitions.putIfAbsent(transition, created);
+            if (targets == null) {
+                targets = created;
+            }
+        }
+        counter(targets, transition.getStateTo()).increment();
+    }
+
+    @Override
+    public void queueDelay(long nanos) {
+        queueDelay.record(nanos);
+    }
+
+    @Override
+    public void handler(Hook hook, Object key, long nanos) {
+        histogram(handlerTimes.get(hook), key).record(nanos);
+    }
+
+    @Override
+    public void dwell(StateEnum state, long nanos) {
+        histogram(dwellTimes, state).record(nanos);
+    }
+
+    @Override
+    public void coalesced(EventEnum event) {
+        counter(coalesced, event).increment();
+    }
+
+    @Override
+    public void error(StateEnum state) {
+        counter(errors, state).increment();
+    }
+
+    @Override
+    public void terminated(StateEnum state) {
+        counter(terminations, state).increment();
+    }
+
+    /**
+     * @return number of times event was applied in stateFrom, whichever state it led to
+     */
+    public long getTransitionCount(StateEnum stateFrom, EventEnum event) {
+        ConcurrentMap<StateEnum, LongAdder> targets = transitions.get(new Transition(event, stateFrom, null));
+        long count = 0;
+        if (targets != null) {
+            for (LongAdder counter : targets.values()) {
+                count += counter.sum();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return number of times event was applied in stateFrom and led to stateTo, which only differs
+     * from {@link #getTransitionCount(StateEnum, EventEnum)} for guarded transitions
+     */
+    public long getTransitionCount(StateEnum stateFrom, EventEnum event, StateEnum stateTo) {
+        ConcurrentMap<StateEnum, LongAdder> targets = transitions.get(new Transition(event, stateFrom, null));
+        return targets == null ? 0 : count(targets, stateTo);
+    }
+
+    /**
+     * @return number of times each transition was applied, by the transition's state and event and then by
+     * the state it led to; transitions which never happened are left out
+     */
+    public Map<Transition, Map<StateEnum, Long>> getTransitionCounts() {
+        Map<Transition, Map<StateEnum, Long>> counts = new HashMap<Transition, Map<StateEnum, Long>>();
+        for (Map.Entry<Transition, ConcurrentMap<StateEnum, LongAdder>> entry : transitions.entrySet()) {
+            Map<StateEnum, Long> targets = new HashMap<StateEnum, Long>();
+            for (Map.Entry<StateEnum, LongAdder> target : entry.getValue().entrySet()) {
+                targets.put(target.getKey(), target.getValue().sum());
+            }
+            counts.put(entry.getKey(), targets);
+        }
+        return counts;
+    }
+
+    /**
+     * @return dwell times of state, or null if no context has left it yet
+     */
+    public Histogram getDwellTime(StateEnum state) {
+        return dwellTimes.get(state);
+    }
+
+    /**
+     * @return handler times for the event or state, or null if no handler has run for it
+     */
+    public Histogram getHandlerTime(Hook hook, Object key) {
+        return handlerTimes.get(hook).get(key);
+    }
+
+    public long getCoalescedCount(EventEnum event) {
+        return count(coalesced, event);
+    }
+
+    public long getErrorCount(StateEnum state) {
+        return count(errors, state);
+    }
+
+    public long getTerminatedCount(StateEnum state) {
+        return count(terminations, state);
+    }
+
+    public Histogram getQueueDelay() {
+        return queueDelay;
+    }
+
+    private static <K> LongAdder counter(ConcurrentMap<K, LongAdder> counters, K key) {
+        LongAdder counter = counters.get(key);
+        if (counter == null) {
+            LongAdder created = new LongAdder();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    private static <K> Histogram histogram(ConcurrentMap<K, Histogram> histograms, K key) {
+        Histogram histogram = histograms.get(key);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(key, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    private static <K> long count(ConcurrentMap<K, LongAdder> counters, K key) {
+        LongAdder counter = counters.get(key);
+        return counter == null ? 0 : counter.sum();
+    }
+}
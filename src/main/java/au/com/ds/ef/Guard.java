@@ -0,0 +1,9 @@
+package au.com.ds.ef;
+
+/**
+ * Condition of a guarded transition, see {@link FlowBuilder.ToHolder#when(Guard)}.
+ * Evaluated on the triggering thread while the trigger is dispatched, so it should be quick and have no side effects.
+ */
+public interface Guard<C extends StatefulContext> {
+    boolean test(C context);
+}
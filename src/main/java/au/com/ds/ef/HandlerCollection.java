@@ -3,8 +3,18 @@ package au.com.ds.ef;
 import au.com.ds.ef.call.*;
 import au.com.ds.ef.err.ExecutionError;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 
 /**
  * User: andrey
@@ -57,67 +67,454 @@ class HandlerCollection {
         }
     }
 
+    /**
+     * Handlers keyed by enum constant, stored in an array indexed by ordinal.
+     * Only constants of the first enum type seen are stored here, anything else goes to the map.
+     */
+    private static final class OrdinalSlots {
+        private Class<?> type;
+        private Handler[] handlers;
+
+        private boolean accepts(Object key) {
+            return key instanceof Enum && ((Enum<?>) key).getDeclaringClass() == type;
+        }
+
+        private boolean set(Object key, Handler handler) {
+            if (type == null && key instanceof Enum) {
+                type = ((Enum<?>) key).getDeclaringClass();
+                handlers = new Handler[type.getEnumConstants().length];
+            }
+
+            if (!accepts(key)) {
+                return false;
+            }
+
+            handlers[((Enum<?>) key).ordinal()] = handler;
+            return true;
+        }
+
+        private Handler get(Object key) {
+            return handlers[((Enum<?>) key).ordinal()];
+        }
+    }
+
+    /**
+     * Several handlers of one hook, stored in its place. Copied on every addition.
+     */
+    private static final class HandlerList implements Handler {
+        private final Handler[] handlers;
+
+        private HandlerList(Handler[] handlers) {
+            this.handlers = handlers;
+        }
+
+        private static Handler append(Handler existing, Handler handler) {
+            if (existing == null) {
+                return handler;
+            }
+
+            Handler[] current = existing instanceof HandlerList ? ((HandlerList) existing).handlers : new Handler[] {existing};
+            Handler[] appended = Arrays.copyOf(current, current.length + 1);
+            appended[current.length] = handler;
+            return new HandlerList(appended);
+        }
+    }
+
+    /**
+     * Calls one handler of a hook with the hook's arguments
+     * @return stage of an async handler, null for others
+     */
+    private interface Invocation {
+        CompletionStage<Void> call(Handler handler) throws Exception;
+    }
+
+    /**
+     * Rest of a hook, called once the handlers before it are done
+     */
+    private interface Step {
+        CompletionStage<Void> run() throws Exception;
+    }
+
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
     private Map<HandlerType, Handler> handlers = new HashMap<HandlerType, Handler>();
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private Executor executor = pool;
+    private Function<Runnable, Runnable> tracker;
+
+    private final OrdinalSlots eventTriggerSlots = new OrdinalSlots();
+    private final OrdinalSlots stateEnterSlots = new OrdinalSlots();
+    private final OrdinalSlots stateLeaveSlots = new OrdinalSlots();
+
+    private Handler anyEventTrigger;
+    private Handler anyStateEnter;
+    private Handler anyStateLeave;
+    private Handler finalState;
+    private Handler error;
 
     public void setHandler(EventType eventType, StateEnum state, EventEnum event, Handler handler) {
+        switch (eventType) {
+            case EVENT_TRIGGER:
+                if (eventTriggerSlots.set(event, handler)) return;
+                break;
+            case STATE_ENTER:
+                if (stateEnterSlots.set(state, handler)) return;
+                break;
+            case STATE_LEAVE:
+                if (stateLeaveSlots.set(state, handler)) return;
+                break;
+            case ANY_EVENT_TRIGGER:
+                anyEventTrigger = handler;
+                return;
+            case ANY_STATE_ENTER:
+                anyStateEnter = handler;
+                return;
+            case ANY_STATE_LEAVE:
+                anyStateLeave = handler;
+                return;
+            case FINAL_STATE:
+                finalState = handler;
+                return;
+            case ERROR:
+                error = handler;
+                return;
+        }
+
         handlers.put(new HandlerType(eventType, event, state), handler);
     }
 
-    public <C extends StatefulContext> void callOnEventTriggered(EventEnum event, StateEnum stateFrom, StateEnum stateTo, C context) throws Exception {
-        Handler h = handlers.get(new HandlerType(EventType.EVENT_TRIGGER, event, null));
-        if (h != null) {
-            ContextHandler<C> contextHandler = (ContextHandler<C>) h;
-            contextHandler.call(context);
+    /**
+     * Adds handler after the ones already registered for the same hook
+     */
+    public void addHandler(EventType eventType, StateEnum state, EventEnum event, Handler handler) {
+        setHandler(eventType, state, event, HandlerList.append(getRegistered(eventType, state, event), handler));
+    }
+
+    private Handler getRegistered(EventType eventType, StateEnum state, EventEnum event) {
+        switch (eventType) {
+            case EVENT_TRIGGER:
+                return getHandler(eventTriggerSlots, eventType, null, event);
+            case STATE_ENTER:
+                return getHandler(stateEnterSlots, eventType, state, null);
+            case STATE_LEAVE:
+                return getHandler(stateLeaveSlots, eventType, state, null);
+            case ANY_EVENT_TRIGGER:
+                return anyEventTrigger;
+            case ANY_STATE_ENTER:
+                return anyStateEnter;
+            case ANY_STATE_LEAVE:
+                return anyStateLeave;
+            case FINAL_STATE:
+                return finalState;
+            default:
+                return error;
         }
+    }
+
+    /**
+     * Sets the pool independent handlers are forked to, the common pool by default
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Sets the executor handlers following an async one are called on, once its stage completes
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets what forked handler calls are wrapped in, so they run as tasks of the flow
+     */
+    public void setTracker(Function<Runnable, Runnable> tracker) {
+        this.tracker = tracker;
+    }
 
-        h = handlers.get(new HandlerType(EventType.ANY_EVENT_TRIGGER, null, null));
-        if (h != null) {
-            EventHandler<C> eventHandler = (EventHandler<C>) h;
-            eventHandler.call(event, stateFrom, stateTo, context);
+    /**
+     * @return true unless stage is null or has completed normally
+     */
+    private static boolean isPending(CompletionStage<?> stage) {
+        if (stage instanceof CompletableFuture) {
+            CompletableFuture<?> future = (CompletableFuture<?>) stage;
+            return !future.isDone() || future.isCompletedExceptionally();
         }
+        return stage != null;
     }
 
-    public <C extends StatefulContext> void callOnStateEntered(StateEnum state, C context) throws Exception {
-        Handler h = handlers.get(new HandlerType(EventType.STATE_ENTER, null, state));
-        if (h != null) {
-            ContextHandler<C> contextHandler = (ContextHandler<C>) h;
-            contextHandler.call(context);
+    private static CompletableFuture<Void> failed(Throwable failure) {
+        CompletableFuture<Void> future = new CompletableFuture<Void>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+    /**
+     * Runs next right away if stage is done, otherwise on the executor once it completes normally
+     * @return stage of the whole sequence, null if it has completed
+     */
+    private CompletionStage<Void> andThen(CompletionStage<Void> stage, final Step next) throws Exception {
+        if (!isPending(stage)) {
+            return next.run();
         }
 
-        h = handlers.get(new HandlerType(EventType.ANY_STATE_ENTER, null, null));
-        if (h != null) {
-            StateHandler<C> stateHandler = (StateHandler<C>) h;
-            stateHandler.call(state, context);
+        return stage.thenComposeAsync(new Function<Void, CompletionStage<Void>>() {
+            @Override
+            public CompletionStage<Void> apply(Void value) {
+                try {
+                    CompletionStage<Void> rest = next.run();
+                    return rest != null ? rest : DONE;
+                } catch (Exception e) {
+                    return failed(e);
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Calls handlers of a list in order. Consecutive {@link Independent} handlers run in parallel: all but the first
+     * are forked to the pool, the first runs on the calling thread, and all are joined before the next handler.
+     * The first failure in list order is rethrown once its group has been joined.
+     * Once an async handler returns a stage that isn't done, the rest of the list runs on the executor after it.
+     * @return stage which completes when the last handler is done, or null if all of them already are
+     */
+    private CompletionStage<Void> invokeAll(final Handler[] all, int from, final Invocation invocation) throws Exception {
+        int i = from;
+        while (i < all.length) {
+            int end = i + 1;
+            while (end < all.length && all[i] instanceof Independent && all[end] instanceof Independent) {
+                end++;
+            }
+
+            CompletionStage<Void> stage = end - i == 1 ? invocation.call(all[i]) : invokeGroup(all, i, end, invocation);
+            if (isPending(stage)) {
+                if (end == all.length) {
+                    return stage;
+                }
+
+                final int next = end;
+                return andThen(stage, new Step() {
+                    @Override
+                    public CompletionStage<Void> run() throws Exception {
+                        return invokeAll(all, next, invocation);
+                    }
+                });
+            }
+            i = end;
         }
+        return null;
     }
 
-    public <C extends StatefulContext> void callOnStateLeaved(StateEnum state, C context) throws Exception {
-        Handler h = handlers.get(new HandlerType(EventType.STATE_LEAVE, null, state));
-        if (h != null) {
-            ContextHandler<C> contextHandler = (ContextHandler<C>) h;
-            contextHandler.call(context);
+    private CompletionStage<Void> invokeGroup(Handler[] all, int from, int end, final Invocation invocation) throws Exception {
+        // failures are kept as thrown, ForkJoinTask would rethrow copies of them
+        final Exception[] failures = new Exception[end - from];
+        final CompletionStage<?>[] stages = new CompletionStage<?>[end - from];
+        ForkJoinTask<?>[] forked = new ForkJoinTask<?>[end - from - 1];
+        for (int j = 0; j < forked.length; j++) {
+            final Handler handler = all[from + 1 + j];
+            final int slot = j + 1;
+            Runnable call = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        stages[slot] = invocation.call(handler);
+                    } catch (Exception e) {
+                        failures[slot] = e;
+                    }
+                }
+            };
+            if (tracker != null) {
+                call = tracker.apply(call);
+            }
+
+            try {
+                forked[j] = pool.submit(call);
+            } catch (RejectedExecutionException e) {
+                // the pool is shut down, the handler still gets its turn
+                call.run();
+            }
         }
 
-        h = handlers.get(new HandlerType(EventType.ANY_STATE_LEAVE, null, null));
-        if (h != null) {
-            StateHandler<C> stateHandler = (StateHandler<C>) h;
-            stateHandler.call(state, context);
+        try {
+            stages[0] = invocation.call(all[from]);
+        } catch (Exception e) {
+            failures[0] = e;
+        }
+        for (ForkJoinTask<?> task : forked) {
+            if (task != null) {
+                task.join();
+            }
         }
+
+        for (Exception e : failures) {
+            if (e != null) {
+                throw e;
+            }
+        }
+
+        // async handlers of the group are awaited together
+        List<CompletableFuture<?>> waiting = new ArrayList<CompletableFuture<?>>();
+        for (CompletionStage<?> stage : stages) {
+            if (isPending(stage)) {
+                waiting.add(stage.toCompletableFuture());
+            }
+        }
+        return waiting.isEmpty() ? null : CompletableFuture.allOf(waiting.toArray(new CompletableFuture<?>[waiting.size()]));
     }
 
-    public <C extends StatefulContext> void callOnFinalState(StateEnum state, C context) throws Exception {
-        Handler h = handlers.get(new HandlerType(EventType.FINAL_STATE, null, null));
-        if (h != null) {
-            StateHandler<C> contextHandler = (StateHandler<C>) h;
-            contextHandler.call(state, context);
+    private Handler getHandler(OrdinalSlots slots, EventType eventType, StateEnum state, EventEnum event) {
+        Object key = state != null ? state : event;
+        if (slots.accepts(key)) {
+            return slots.get(key);
+        }
+
+        return handlers.isEmpty() ? null : handlers.get(new HandlerType(eventType, event, state));
+    }
+
+    // handlers are registered for the context type of the flow, which is the type of the contexts they are called with
+    @SuppressWarnings("unchecked")
+    private static <C extends StatefulContext> CompletionStage<Void> callContext(Handler handler, C context) throws Exception {
+        if (handler instanceof AsyncContextHandler) {
+            return ((AsyncContextHandler<C>) handler).call(context);
+        }
+        ((ContextHandler<C>) handler).call(context);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <C extends StatefulContext> CompletionStage<Void> callState(Handler handler, StateEnum state,
+                                                                               C context) throws Exception {
+        if (handler instanceof AsyncStateHandler) {
+            return ((AsyncStateHandler<C>) handler).call(state, context);
+        }
+        ((StateHandler<C>) handler).call(state, context);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <C extends StatefulContext> CompletionStage<Void> callEvent(Handler handler, EventEnum event, StateEnum stateFrom,
+                                                                               StateEnum stateTo, C context) throws Exception {
+        if (handler instanceof AsyncEventHandler) {
+            return ((AsyncEventHandler<C>) handler).call(event, stateFrom, stateTo, context);
         }
+        ((EventHandler<C>) handler).call(event, stateFrom, stateTo, context);
+        return null;
     }
 
-    public void callOnError(ExecutionError error) {
-        Handler h = handlers.get(new HandlerType(EventType.ERROR, null, null));
-        if (h != null) {
-            ExecutionErrorHandler errorHandler = (ExecutionErrorHandler) h;
-            errorHandler.call(error, error.getContext());
+    private <C extends StatefulContext> CompletionStage<Void> callContextHandlers(Handler h, final C context) throws Exception {
+        if (h instanceof HandlerList) {
+            return invokeAll(((HandlerList) h).handlers, 0, new Invocation() {
+                @Override
+                public CompletionStage<Void> call(Handler handler) throws Exception {
+                    return callContext(handler, context);
+                }
+            });
         }
+        return h != null ? callContext(h, context) : null;
+    }
+
+    private <C extends StatefulContext> CompletionStage<Void> callStateHandlers(Handler h, final StateEnum state,
+                                                                                final C context) throws Exception {
+        if (h instanceof HandlerList) {
+            return invokeAll(((HandlerList) h).handlers, 0, new Invocation() {
+                @Override
+                public CompletionStage<Void> call(Handler handler) throws Exception {
+                    return callState(handler, state, context);
+                }
+            });
+        }
+        return h != null ? callState(h, state, context) : null;
+    }
+
+    private <C extends StatefulContext> CompletionStage<Void> callEventHandlers(Handler h, final EventEnum event, final StateEnum stateFrom,
+                                                                                final StateEnum stateTo, final C context) throws Exception {
+        if (h instanceof HandlerList) {
+            return invokeAll(((HandlerList) h).handlers, 0, new Invocation() {
+                @Override
+                public CompletionStage<Void> call(Handler handler) throws Exception {
+                    return callEvent(handler, event, stateFrom, stateTo, context);
+                }
+            });
+        }
+        return h != null ? callEvent(h, event, stateFrom, stateTo, context) : null;
+    }
+
+    /**
+     * Calls handlers of one hook, then those registered for any state or event
+     * @return stage which completes when the last of them is done, or null if all of them already are
+     */
+    private <C extends StatefulContext> CompletionStage<Void> callStateHook(Handler h, final Handler any, final StateEnum state,
+                                                                            final C context) throws Exception {
+        CompletionStage<Void> stage = callContextHandlers(h, context);
+        if (any == null) {
+            return stage;
+        }
+        if (!isPending(stage)) {
+            return callStateHandlers(any, state, context);
+        }
+
+        return andThen(stage, new Step() {
+            @Override
+            public CompletionStage<Void> run() throws Exception {
+                return callStateHandlers(any, state, context);
+            }
+        });
+    }
+
+    /**
+     * @return stage which completes when the last handler is done, or null if all of them already are
+     */
+    public <C extends StatefulContext> CompletionStage<Void> callOnEventTriggered(final EventEnum event, final StateEnum stateFrom,
+                                                                                  final StateEnum stateTo, final C context) throws Exception {
+        CompletionStage<Void> stage = callContextHandlers(getHandler(eventTriggerSlots, EventType.EVENT_TRIGGER, null, event), context);
+        final Handler any = anyEventTrigger;
+        if (any == null) {
+            return stage;
+        }
+        if (!isPending(stage)) {
+            return callEventHandlers(any, event, stateFrom, stateTo, context);
+        }
+
+        return andThen(stage, new Step() {
+            @Override
+            public CompletionStage<Void> run() throws Exception {
+                return callEventHandlers(any, event, stateFrom, stateTo, context);
+            }
+        });
+    }
+
+    /**
+     * @return stage which completes when the last handler is done, or null if all of them already are
+     */
+    public <C extends StatefulContext> CompletionStage<Void> callOnStateEntered(StateEnum state, C context) throws Exception {
+        return callStateHook(getHandler(stateEnterSlots, EventType.STATE_ENTER, state, null), anyStateEnter, state, context);
+    }
+
+    /**
+     * @return stage which completes when the last handler is done, or null if all of them already are
+     */
+    public <C extends StatefulContext> CompletionStage<Void> callOnStateLeaved(StateEnum state, C context) throws Exception {
+        return callStateHook(getHandler(stateLeaveSlots, EventType.STATE_LEAVE, state, null), anyStateLeave, state, context);
+    }
+
+    public <C extends StatefulContext> void callOnFinalState(StateEnum state, C context) throws Exception {
+        callStateHandlers(finalState, state, context);
+    }
+
+    public void callOnError(final ExecutionError error) {
+        Handler h = this.error;
+        if (h instanceof HandlerList) {
+            // error handlers don't throw checked exceptions, so neither does this
+            for (Handler handler : ((HandlerList) h).handlers) {
+                callError(handler, error);
+            }
+        } else if (h != null) {
+            callError(h, error);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void callError(Handler handler, ExecutionError error) {
+        ((ExecutionErrorHandler<StatefulContext>) handler).call(error, error.getContext());
     }
 }
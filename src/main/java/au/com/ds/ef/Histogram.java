@@ -0,0 +1,88 @@
+package au.com.ds.ef;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non-negative values with fixed power of two buckets: bucket i counts values
+ * from 2^(i-1) to 2^i - 1. Recording never allocates or locks; percentiles are accurate to within a factor of two.
+ */
+public final class Histogram {
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        buckets[BUCKETS - Long.numberOfLeadingZeros(value)].increment();
+        sum.add(value);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) getSum() / count;
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return upper bound of the bucket holding the value at percentile, 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+
+        return upperBound(BUCKETS - 1);
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "Histogram{" +
+            "count=" + getCount() +
+            ", mean=" + getMean() +
+            ", p50=" + getPercentile(50) +
+            ", p99=" + getPercentile(99) +
+            '}';
+    }
+}
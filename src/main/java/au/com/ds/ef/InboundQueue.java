@@ -0,0 +1,104 @@
+package au.com.ds.ef;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the number of accepted triggers whose tasks haven't started yet, for a flow or for one context.
+ * Follow-up tasks of a trigger (state changes, triggers made from handlers) don't take slots.
+ */
+final class InboundQueue {
+    private static final long DROP_RETRY_MILLIS = 1;
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Semaphore slots;
+    // tasks in arrival order, only kept for DROP_OLDEST; started ones are cleared out lazily
+    private final Queue<InboundTask> waiting;
+
+    InboundQueue(int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must be set");
+        }
+
+        this.capacity = capacity;
+        this.policy = policy;
+        this.slots = new Semaphore(capacity);
+        this.waiting = policy == OverflowPolicy.DROP_OLDEST ? new ConcurrentLinkedQueue<InboundTask>() : null;
+    }
+
+    /**
+     * Takes a slot for task according to the policy
+     * @return false if the task is rejected
+     */
+    boolean acquire(InboundTask task) {
+        switch (policy) {
+            case BLOCK:
+                try {
+                    slots.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                return true;
+            case REJECT:
+                return slots.tryAcquire();
+            default:
+                try {
+                    while (!slots.tryAcquire() && !dropOldest()) {
+                        // every slot is held by a trigger still being claimed or just starting: wait for one
+                        // to be released, looking again shortly as it may become droppable instead
+                        if (slots.tryAcquire(DROP_RETRY_MILLIS, TimeUnit.MILLISECONDS)) {
+                            break;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+
+                InboundTask head;
+                while ((head = waiting.peek()) != null && head.isDone()) {
+                    waiting.remove(head);
+                }
+                waiting.add(task);
+                return true;
+        }
+    }
+
+    /**
+     * Drops the oldest waiting task, clearing out finished ones on the way and skipping ones whose
+     * transition isn't claimed yet
+     * @return true if a task was dropped and its slot handed over
+     */
+    private boolean dropOldest() {
+        Iterator<InboundTask> tasks = waiting.iterator();
+        while (tasks.hasNext()) {
+            InboundTask task = tasks.next();
+            if (task.isDone()) {
+                tasks.remove();
+            } else if (task.drop(this)) {
+                tasks.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void release() {
+        slots.release();
+    }
+
+    /**
+     * @return number of accepted triggers waiting to start
+     */
+    int size() {
+        return capacity - slots.availablePermits();
+    }
+}
@@ -0,0 +1,102 @@
+package au.com.ds.ef;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Task for an accepted trigger, holding a slot in up to two {@link InboundQueue}s (its flow's and its context's)
+ * from when it is admitted until it starts running
+ */
+abstract class InboundTask implements Runnable {
+    // admitted, but its transition isn't claimed yet, so it can't be dropped
+    private static final int PENDING = 0;
+    private static final int WAITING = 1;
+    private static final int STARTED = 2;
+    private static final int CANCELLED = 3;
+
+    private static final AtomicIntegerFieldUpdater<InboundTask> STATE_UPDATER =
+        AtomicIntegerFieldUpdater.newUpdater(InboundTask.class, "state");
+
+    private volatile int state;
+    private InboundQueue flowQueue;
+    private InboundQueue contextQueue;
+
+    void setQueues(InboundQueue flowQueue, InboundQueue contextQueue) {
+        this.flowQueue = flowQueue;
+        this.contextQueue = contextQueue;
+    }
+
+    /**
+     * Makes the task droppable and open for merging, once its transition is claimed and before it is submitted.
+     * Tasks which are neither queued nor merged into skip this, and the CAS when they start.
+     */
+    void ready() {
+        state = WAITING;
+    }
+
+    /**
+     * @return true if the task is ready and hasn't started yet, nor been cancelled or dropped
+     */
+    boolean isWaiting() {
+        return state == WAITING;
+    }
+
+    /**
+     * @return true if the task has started or has been cancelled or dropped
+     */
+    boolean isDone() {
+        return state >= STARTED;
+    }
+
+    @Override
+    public final void run() {
+        if (state != PENDING) {
+            if (!STATE_UPDATER.compareAndSet(this, WAITING, STARTED)) {
+                return;
+            }
+            release(null);
+        }
+
+        process();
+    }
+
+    /**
+     * Gives the task's slots back without running it, when the trigger turned out not to be valid
+     * or the task couldn't be submitted
+     */
+    void cancel() {
+        int current = state;
+        if (current < STARTED && STATE_UPDATER.compareAndSet(this, current, CANCELLED)) {
+            release(null);
+        }
+    }
+
+    /**
+     * Drops the task to make room in queue, which keeps the slot for the task taking its place
+     * @return false if the task has already started or been dropped
+     */
+    boolean drop(InboundQueue queue) {
+        if (!STATE_UPDATER.compareAndSet(this, WAITING, CANCELLED)) {
+            return false;
+        }
+
+        release(queue);
+        dropped();
+        return true;
+    }
+
+    private void release(InboundQueue keep) {
+        if (flowQueue != null && flowQueue != keep) {
+            flowQueue.release();
+        }
+        if (contextQueue != null && contextQueue != keep) {
+            contextQueue.release();
+        }
+    }
+
+    abstract void process();
+
+    /**
+     * Called instead of {@link #process()} when the task is dropped
+     */
+    abstract void dropped();
+}
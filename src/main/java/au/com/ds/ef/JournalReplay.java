@@ -0,0 +1,328 @@
+package au.com.ds.ef;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rebuilds contexts from a {@link TransitionJournal} without running any handlers or executor tasks.
+ * Each record is checked against the flow's transition table and moves its context straight to the recorded state.
+ * <p>
+ * The calling thread reads the journal once and hands records over in batches to worker threads, split by
+ * context key, so a context is only ever touched by one thread and no locking is needed.
+ * <p>
+ * Records whose from state doesn't match the context's state are held back until it does, which puts records
+ * of racing triggers back in order. Records the flow doesn't have a transition for are skipped, and so are
+ * initial records of contexts which already have a state, from the snapshot or from earlier applied records.
+ * Contexts which reach a final state are terminated.
+ * <p>
+ * Replayed contexts are resumed with {@link #resumeAll(Collection)}, which starts them with
+ * {@link EasyFlow#start(boolean, StatefulContext)} and so re-enters their current state.
+ */
+public class JournalReplay<C extends StatefulContext> {
+    /**
+     * Supplies contexts records are applied to. Called from several threads, but only once per key.
+     */
+    public interface Contexts<C extends StatefulContext> {
+        /**
+         * @return context for key (for example one restored from a snapshot, or a new one), or null to skip its records.
+         * New contexts returned for positive keys get the key as their number, so they keep their id.
+         */
+        C get(long key);
+    }
+
+    private final class Replayed {
+        private final C context;
+        private int state;
+        private int lastEvent;
+        private List<int[]> pending;
+
+        private Replayed(C context) {
+            this.context = context;
+            this.state = ordinal(context.getState());
+            this.lastEvent = ordinal(context.getLastEvent());
+        }
+
+        private void offer(int from, int event, int to) {
+            if (!apply(from, event, to)) {
+                if (pending == null) {
+                    pending = new ArrayList<int[]>(2);
+                }
+                pending.add(new int[]{from, event, to});
+                return;
+            }
+
+            // a record may have unblocked earlier ones which arrived too soon
+            boolean progress = pending != null;
+            while (progress) {
+                progress = false;
+                for (int i = 0; i < pending.size(); i++) {
+                    int[] record = pending.get(i);
+                    if (apply(record[0], record[1], record[2])) {
+                        pending.remove(i);
+                        progress = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return false if the record has to wait for the context to reach its from state
+         */
+        private boolean apply(int from, int event, int to) {
+            if (from < 0) {
+                // initial state, which never moves a context back
+                if (state >= 0 || transitions.getState(to) == null) {
+                    skipped.incrementAndGet();
+                } else {
+                    state = to;
+                    lastEvent = -1;
+                    applied.incrementAndGet();
+                }
+                return true;
+            }
+
+            if (state >= 0 && state != from) {
+                return false;
+            }
+
+            // guards aren't evaluated again, the journal has the target they picked
+            Transition transition = null;
+            Transition[] candidates = transitions.getCandidates(from, event);
+            if (candidates != null) {
+                for (Transition candidate : candidates) {
+                    if (ordinal(candidate.getStateTo()) == to) {
+                        transition = candidate;
+                        break;
+                    }
+                }
+            }
+            if (transition == null) {
+                skipped.incrementAndGet();
+            } else {
+                state = to;
+                lastEvent = event;
+                applied.incrementAndGet();
+            }
+            return true;
+        }
+
+        private void finish() {
+            if (pending != null) {
+                skipped.addAndGet(pending.size());
+            }
+
+            StateEnum stateTo = transitions.getState(state);
+            if (stateTo == null) {
+                return;
+            }
+
+            EventEnum event = transitions.getEvent(lastEvent);
+            long number = context.getNumber();
+            context.restore(number, number != 0 ? null : context.getId(), stateTo, event,
+                context.isTerminated() || transitions.isFinal(stateTo), context.isStopped());
+        }
+    }
+
+    // longs per record in a batch: context key, from state, event, to state
+    private static final int RECORD = 4;
+    private static final int BATCH = 1024 * RECORD;
+    private static final int QUEUED_BATCHES = 16;
+    private static final long[] END = new long[0];
+
+    private final EasyFlow<C> flow;
+    private final TransitionCollection transitions;
+    private final Contexts<C> contexts;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private final AtomicLong applied = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    public JournalReplay(EasyFlow<C> flow, Contexts<C> contexts) {
+        this.flow = flow;
+        this.transitions = flow.getTransitionCollection();
+        this.contexts = contexts;
+
+        if (transitions == null || !transitions.isCompiled()) {
+            throw new IllegalArgumentException("Journal replay needs a flow whose states and events are enums");
+        }
+    }
+
+    /**
+     * @param threads number of partitions replayed in parallel, the number of cores by default
+     */
+    public JournalReplay<C> parallelism(int threads) {
+        parallelism = Math.max(1, threads);
+        return this;
+    }
+
+    /**
+     * Applies all records in directory
+     * @return replayed contexts by key
+     */
+    public Map<Long, C> replay(File directory) {
+        ExecutorService threads = Executors.newFixedThreadPool(parallelism);
+        try {
+            final List<BlockingQueue<long[]>> queues = new ArrayList<BlockingQueue<long[]>>();
+            List<Future<Map<Long, Replayed>>> partitions = new ArrayList<Future<Map<Long, Replayed>>>();
+            for (int i = 0; i < parallelism; i++) {
+                final BlockingQueue<long[]> queue = new ArrayBlockingQueue<long[]>(QUEUED_BATCHES);
+                queues.add(queue);
+                partitions.add(threads.submit(new Callable<Map<Long, Replayed>>() {
+                    @Override
+                    public Map<Long, Replayed> call() throws InterruptedException {
+                        return replay(queue);
+                    }
+                }));
+            }
+
+            final long[][] batches = new long[parallelism][];
+            final int[] sizes = new int[parallelism];
+            TransitionJournal.read(directory, new TransitionJournal.Visitor() {
+                @Override
+                public void record(long contextKey, int stateFrom, int event, int stateTo, long timestamp) {
+                    int partition = partition(contextKey);
+                    long[] batch = batches[partition];
+                    if (batch == null) {
+                        batch = batches[partition] = new long[BATCH];
+                    }
+
+                    int size = sizes[partition];
+                    batch[size] = contextKey;
+                    batch[size + 1] = stateFrom;
+                    batch[size + 2] = event;
+                    batch[size + 3] = stateTo;
+                    sizes[partition] = size += RECORD;
+
+                    if (size == BATCH) {
+                        put(queues.get(partition), batch);
+                        batches[partition] = null;
+                        sizes[partition] = 0;
+                    }
+                }
+            });
+            for (int i = 0; i < parallelism; i++) {
+                if (sizes[i] > 0) {
+                    put(queues.get(i), Arrays.copyOf(batches[i], sizes[i]));
+                }
+                put(queues.get(i), END);
+            }
+
+            Map<Long, C> replayed = new HashMap<Long, C>();
+            for (Future<Map<Long, Replayed>> partition : partitions) {
+                for (Map.Entry<Long, Replayed> entry : partition.get().entrySet()) {
+                    replayed.put(entry.getKey(), entry.getValue().context);
+                }
+            }
+            return replayed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while replaying " + directory, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Failed to replay " + directory, e.getCause());
+        } finally {
+            // stops the workers if reading failed
+            threads.shutdownNow();
+        }
+    }
+
+    private static void put(BlockingQueue<long[]> queue, long[] batch) {
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while replaying", e);
+        }
+    }
+
+    private Map<Long, Replayed> replay(BlockingQueue<long[]> batches) throws InterruptedException {
+        Map<Long, Replayed> replayed = new HashMap<Long, Replayed>();
+        try {
+            for (long[] batch = batches.take(); batch != END; batch = batches.take()) {
+                for (int i = 0; i < batch.length; i += RECORD) {
+                    offer(replayed, batch[i], (int) batch[i + 1], (int) batch[i + 2], (int) batch[i + 3]);
+                }
+            }
+        } catch (RuntimeException e) {
+            // keeps taking batches so the reader isn't blocked, the replay fails once it's done
+            while (batches.take() != END) {
+            }
+            throw e;
+        }
+
+        for (Replayed context : replayed.values()) {
+            context.finish();
+        }
+        return replayed;
+    }
+
+    private void offer(Map<Long, Replayed> replayed, long contextKey, int stateFrom, int event, int stateTo) {
+        Replayed context = replayed.get(contextKey);
+        if (context == null) {
+            C created = contexts.get(contextKey);
+            if (created == null) {
+                skipped.incrementAndGet();
+                return;
+            }
+            if (contextKey > 0 && created.getNumber() != contextKey) {
+                created.restore(contextKey, null, created.getState(), created.getLastEvent(),
+                    created.isTerminated(), created.isStopped());
+            }
+
+            context = new Replayed(created);
+            replayed.put(contextKey, context);
+        }
+
+        context.offer(stateFrom, event, stateTo);
+    }
+
+    private int partition(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 1) % parallelism);
+    }
+
+    private static int ordinal(Object value) {
+        return value instanceof Enum ? ((Enum<?>) value).ordinal() : -1;
+    }
+
+    /**
+     * Binds contexts to the flow and re-enters their current states; terminated contexts are only bound
+     */
+    public void resumeAll(Collection<? extends C> replayed) {
+        for (C context : replayed) {
+            flow.start(true, context);
+        }
+    }
+
+    /**
+     * @return number of records applied by all replays so far
+     */
+    public long getApplied() {
+        return applied.get();
+    }
+
+    /**
+     * @return number of records skipped by all replays so far: records with no matching transition, initial records
+     * of contexts which already have a state, records still waiting for their from state at the end, and records
+     * of contexts {@link Contexts} returned null for
+     */
+    public long getSkipped() {
+        return skipped.get();
+    }
+}
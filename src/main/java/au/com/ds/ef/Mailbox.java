@@ -0,0 +1,98 @@
+package au.com.ds.ef;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-context task queue. At most one drain of a mailbox is scheduled on the pool at any time,
+ * so tasks of one context run one after another, in the order they were added.
+ * <p>
+ * A task may {@link #suspend()} the mailbox to wait for async work: the rest of its tasks are held
+ * until {@link #resume(Runnable)} hands over the continuation, which runs before them.
+ */
+final class Mailbox implements Runnable {
+    private static final int ACTIVE = 0;
+    private static final int SUSPENDING = 1;
+    private static final int SUSPENDED = 2;
+
+    private final Deque<Runnable> queue = new ConcurrentLinkedDeque<Runnable>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicInteger suspension = new AtomicInteger(ACTIVE);
+    // set by the running task, only read by the draining thread
+    private boolean suspendRequested;
+    private final Executor pool;
+    private final int throughput;
+    private final InboundQueue inbound;
+
+    Mailbox(Executor pool, int throughput, InboundQueue inbound) {
+        this.pool = pool;
+        this.throughput = throughput;
+        this.inbound = inbound;
+    }
+
+    /**
+     * @return bounded queue of the context's inbound triggers, or null if they're not limited
+     */
+    InboundQueue getInbound() {
+        return inbound;
+    }
+
+    void add(Runnable task) {
+        queue.offer(task);
+        if (pending.getAndIncrement() == 0) {
+            pool.execute(this);
+        }
+    }
+
+    /**
+     * Holds the mailbox once the running task returns. Must be called from the task, and followed by
+     * exactly one {@link #resume(Runnable)}, from any thread.
+     */
+    void suspend() {
+        suspendRequested = true;
+        suspension.set(SUSPENDING);
+    }
+
+    /**
+     * Runs continuation ahead of the tasks held since {@link #suspend()} and drains the mailbox again
+     */
+    void resume(Runnable continuation) {
+        queue.offerFirst(continuation);
+        // if the suspending task is still running, the drain it's part of picks the continuation up
+        if (suspension.getAndSet(ACTIVE) == SUSPENDED) {
+            pool.execute(this);
+        }
+    }
+
+    int size() {
+        return pending.get();
+    }
+
+    @Override
+    public void run() {
+        boolean more = true;
+        try {
+            for (int i = 0; more && i < throughput; i++) {
+                Runnable task = queue.poll();
+                try {
+                    task.run();
+                } finally {
+                    if (suspendRequested) {
+                        // the task's count is kept for its continuation
+                        suspendRequested = false;
+                        more = !suspension.compareAndSet(SUSPENDING, SUSPENDED);
+                    } else {
+                        more = pending.decrementAndGet() != 0;
+                    }
+                }
+            }
+        } finally {
+            // give other mailboxes a go before draining the rest
+            if (more) {
+                pool.execute(this);
+            }
+        }
+    }
+}
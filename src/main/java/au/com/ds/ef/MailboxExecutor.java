@@ -0,0 +1,134 @@
+package au.com.ds.ef;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Executor which gives every context its own mailbox and drains mailboxes on a shared pool.
+ * Different contexts run in parallel while tasks of one context keep their order
+ * and never run concurrently.
+ */
+public class MailboxExecutor implements Executor {
+    private static final int DEFAULT_THROUGHPUT = 64;
+
+    private static class SharedPool {
+        private static final ForkJoinPool INSTANCE = new ForkJoinPool(
+            Runtime.getRuntime().availableProcessors(),
+            ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+
+    private final Executor pool;
+    private final int throughput;
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    /**
+     * Drains mailboxes on a ForkJoinPool shared by all MailboxExecutors, sized to the number of cores
+     */
+    public MailboxExecutor() {
+        this(SharedPool.INSTANCE);
+    }
+
+    public MailboxExecutor(Executor pool) {
+        this(pool, DEFAULT_THROUGHPUT);
+    }
+
+    /**
+     * @param pool       executor that drains the mailboxes
+     * @param throughput max number of tasks of one context run in a row before its mailbox is rescheduled
+     */
+    public MailboxExecutor(Executor pool, int throughput) {
+        this(pool, throughput, 0, null);
+    }
+
+    /**
+     * Limits the number of accepted triggers waiting in each context's mailbox, see {@link OverflowPolicy}
+     * @param capacity max number of waiting triggers per context
+     */
+    public MailboxExecutor(int capacity, OverflowPolicy policy) {
+        this(SharedPool.INSTANCE, DEFAULT_THROUGHPUT, capacity, policy);
+    }
+
+    /**
+     * @param pool       executor that drains the mailboxes
+     * @param throughput max number of tasks of one context run in a row before its mailbox is rescheduled
+     * @param capacity   max number of accepted triggers waiting per context, 0 for no limit
+     * @param policy     what to do with triggers for a context whose queue is full
+     */
+    public MailboxExecutor(Executor pool, int throughput, int capacity, OverflowPolicy policy) {
+        if (throughput < 1) {
+            throw new IllegalArgumentException("throughput must be positive: " + throughput);
+        }
+        if (capacity < 0 || (capacity > 0 && policy == null)) {
+            throw new IllegalArgumentException("capacity must be 0, or positive with a policy: " + capacity);
+        }
+
+        this.pool = pool;
+        this.throughput = throughput;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Runs task on the pool without any ordering guarantee
+     */
+    @Override
+    public void execute(Runnable task) {
+        pool.execute(task);
+    }
+
+    /**
+     * Runs task after all tasks previously submitted for the same context
+     */
+    public void execute(Runnable task, StatefulContext context) {
+        mailbox(context).add(task);
+    }
+
+    /**
+     * Holds tasks of the context until {@link #resume(Runnable, StatefulContext)}.
+     * Must be called from the context's running task
+     */
+    void suspend(StatefulContext context) {
+        mailbox(context).suspend();
+    }
+
+    /**
+     * Runs continuation ahead of the context's held tasks
+     */
+    void resume(Runnable continuation, StatefulContext context) {
+        mailbox(context).resume(continuation);
+    }
+
+    private Mailbox mailbox(StatefulContext context) {
+        Mailbox mailbox = context.getMailbox();
+        if (mailbox == null) {
+            context.initMailbox(new Mailbox(pool, throughput, capacity > 0 ? new InboundQueue(capacity, policy) : null));
+            mailbox = context.getMailbox();
+        }
+        return mailbox;
+    }
+
+    boolean isBounded() {
+        return capacity > 0;
+    }
+
+    InboundQueue getInbound(StatefulContext context) {
+        return capacity > 0 ? mailbox(context).getInbound() : null;
+    }
+
+    /**
+     * @return number of tasks queued or running for the context
+     */
+    public int getQueueSize(StatefulContext context) {
+        Mailbox mailbox = context.getMailbox();
+        return mailbox == null ? 0 : mailbox.size();
+    }
+
+    /**
+     * @return number of accepted triggers waiting to start for the context, always 0 without a capacity
+     */
+    public int getInboundSize(StatefulContext context) {
+        Mailbox mailbox = context.getMailbox();
+        return mailbox == null || mailbox.getInbound() == null ? 0 : mailbox.getInbound().size();
+    }
+}
@@ -0,0 +1,23 @@
+package au.com.ds.ef;
+
+/**
+ * What happens to a trigger when its flow's or context's inbound queue is full,
+ * see {@link EasyFlow#queueLimit(int, OverflowPolicy)} and {@link MailboxExecutor}
+ */
+public enum OverflowPolicy {
+    /**
+     * The triggering thread waits for room in the queue
+     */
+    BLOCK,
+    /**
+     * The trigger is refused: safeTrigger returns false, trigger throws
+     * {@link java.util.concurrent.RejectedExecutionException} and tryTrigger returns {@link TriggerResult#QUEUE_FULL}
+     */
+    REJECT,
+    /**
+     * The oldest event still waiting in the queue is dropped to make room. Its context still moves to the
+     * event's target state (and terminates if it is final), but the event's handlers and the enter and leave
+     * handlers of that step are skipped.
+     */
+    DROP_OLDEST
+}
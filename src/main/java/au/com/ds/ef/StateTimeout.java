@@ -0,0 +1,46 @@
+package au.com.ds.ef;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event fired when a context stays in a state for too long
+ */
+final class StateTimeout {
+    private final long millis;
+    private final EventEnum event;
+
+    StateTimeout(long duration, TimeUnit unit, EventEnum event) {
+        this.millis = unit.toMillis(duration);
+        this.event = event;
+    }
+
+    long getMillis() {
+        return millis;
+    }
+
+    EventEnum getEvent() {
+        return event;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        StateTimeout that = (StateTimeout) o;
+        return millis == that.millis && event.equals(that.event);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (int) (millis ^ (millis >>> 32)) + event.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "StateTimeout{" +
+            "millis=" + millis +
+            ", event=" + event +
+            '}';
+    }
+}
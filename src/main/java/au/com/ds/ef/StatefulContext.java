@@ -7,28 +7,84 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 
-@SuppressWarnings("rawtypes")
 public class StatefulContext implements Serializable {
 	private static final long serialVersionUID = 2324535129909715649L;
-	private static volatile long idCounter = 1;
-	
-	private final String id;
-    private EasyFlow flow;
-	private StateEnum state;
-    private EventEnum lastEvent;
-	private final AtomicBoolean terminated = new AtomicBoolean(false);
-	private final AtomicBoolean stopped = new AtomicBoolean(false);
-	private final CountDownLatch completionLatch = new CountDownLatch(1);
+	private static final AtomicLong idCounter = new AtomicLong(1);
+
+	private static final int TERMINATED = 1;
+	private static final int STOPPED = 2;
+	private static final int FAILED = 4;
+	// held from claiming a transition until its task is queued
+	private static final int CLAIMING = 8;
+
+	// id string is only built when asked for
+	private long number;
+	private String id;
+    private transient EasyFlow<StatefulContext> flow;
+	private volatile StateEnum state;
+    private volatile EventEnum lastEvent;
+	private volatile int flags;
+	private transient volatile CompletableFuture<StateEnum> completion;
+	// fields only some flows use, kept off the context until one of them is set
+	private transient volatile Extras extras;
+
+	private static final AtomicIntegerFieldUpdater<StatefulContext> FLAGS_UPDATER =
+		AtomicIntegerFieldUpdater.newUpdater(StatefulContext.class, "flags");
+	// a class literal can't carry the type argument of the field
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<StatefulContext, CompletableFuture> COMPLETION_UPDATER =
+		AtomicReferenceFieldUpdater.newUpdater(StatefulContext.class, CompletableFuture.class, "completion");
+
+	private static final AtomicReferenceFieldUpdater<StatefulContext, StateEnum> STATE_UPDATER =
+		AtomicReferenceFieldUpdater.newUpdater(StatefulContext.class, StateEnum.class, "state");
+	private static final AtomicReferenceFieldUpdater<StatefulContext, Extras> EXTRAS_UPDATER =
+		AtomicReferenceFieldUpdater.newUpdater(StatefulContext.class, Extras.class, "extras");
+
+	private static final class Extras {
+		private static final AtomicReferenceFieldUpdater<Extras, Mailbox> MAILBOX_UPDATER =
+			AtomicReferenceFieldUpdater.newUpdater(Extras.class, Mailbox.class, "mailbox");
+
+		// set when the flow runs on a MailboxExecutor
+		private volatile Mailbox mailbox;
+		// System.nanoTime() of entering the current state, only set when the flow collects metrics
+		private long enteredAt;
+		// set while a state timeout is scheduled
+		private volatile TimingWheel.Timeout timeout;
+	}
 
 	public StatefulContext() {
-		id = newId() + ":" + getClass().getSimpleName();
+		number = idCounter.getAndIncrement();
 	}
 
 	public StatefulContext(String aId) {
+		number = 0;
 		id = aId + ":" + getClass().getSimpleName();
 	}
 
+	/**
+	 * Makes contexts created from now on get numbers above number
+	 * @return false if this process has already handed out number, or numbers below it
+	 */
+	static boolean reserveNumbers(long number) {
+		long next;
+		do {
+			next = idCounter.get();
+			if (next > number) {
+				return true;
+			}
+			if (next > 1) {
+				return false;
+			}
+		} while (!idCounter.compareAndSet(next, number + 1));
+		return true;
+	}
+
 	public String getId() {
+		String id = this.id;
+		if (id == null) {
+			id = newId() + ":" + getClass().getSimpleName();
+			this.id = id;
+		}
 		return id;
 	}
 	
@@ -36,36 +92,40 @@ public class StatefulContext implements Serializable {
 		this.state = state;
 	}
 	
+	/**
+	 * @return state of the latest accepted transition. The state is updated as soon as
+	 * a trigger is accepted, before its leave and enter handlers have run.
+	 */
 	public StateEnum getState() {
 		return state;
 	}
 
+	boolean compareAndSetState(StateEnum expect, StateEnum update) {
+		return STATE_UPDATER.compareAndSet(this, expect, update);
+	}
+
+	// a context is only equal to itself, even if another one was created with the same id,
+	// and hashing it doesn't build the lazy id
 	@Override
 	public int hashCode() {
-		return id.hashCode();
+		return System.identityHashCode(this);
 	}
 
 	@Override
 	public boolean equals(Object obj) {
-		if (this == obj)
-			return true;
-		if (obj == null)
-			return false;
-		if (getClass() != obj.getClass())
-			return false;
-		StatefulContext other = (StatefulContext) obj;
-		if (id != other.id)
-			return false;
-		return true;
+		return this == obj;
 	}
 
     public void stop() {
-        stopped.set(true);
+        setFlags(STOPPED);
         setTerminated();
+        if (flow != null) {
+            flow.doOnStop(this);
+        }
     }
 
     public boolean isStopped() {
-        return stopped.get();
+        return (flags & STOPPED) != 0;
     }
 
     public boolean safeTrigger(EventEnum event) {
@@ -76,20 +136,58 @@ public class StatefulContext implements Serializable {
         flow.trigger(event, this);
     }
 
+    public TriggerResult tryTrigger(EventEnum event) {
+        return flow.tryTrigger(event, this);
+    }
+
+    public TriggerResult tryTrigger(EventEnum event, StateEnum expectedState) {
+        return flow.tryTrigger(event, expectedState, this);
+    }
+
+    public boolean[] safeTrigger(List<? extends EventEnum> events) {
+        return flow.safeTrigger(events, this);
+    }
+
+    // the flow only gets this context from start, which takes the flow's own context type
+    @SuppressWarnings("unchecked")
     protected void setFlow(EasyFlow<? extends StatefulContext> flow) {
-        this.flow = flow;
+        this.flow = (EasyFlow<StatefulContext>) flow;
     }
 	
 	protected String newId() {
-		return Long.toString(idCounter++);
+		return Long.toString(number);
+	}
+
+	/**
+	 * @return number the id is built from, 0 if the context was created with an explicit id
+	 */
+	long getNumber() {
+		return number;
+	}
+
+	/**
+	 * Sets fields read from a snapshot, before the context is started. Numbers handed out to new contexts
+	 * afterwards don't clash with restored ones.
+	 */
+	void restore(long number, String id, StateEnum state, EventEnum lastEvent, boolean terminated, boolean stopped) {
+		this.number = number;
+		this.id = id;
+		this.state = state;
+		this.lastEvent = lastEvent;
+		this.flags = (terminated ? TERMINATED : 0) | (stopped ? STOPPED : 0);
+
+		long next;
+		do {
+			next = idCounter.get();
+		} while (next <= number && !idCounter.compareAndSet(next, number + 1));
 	}
 
     public boolean isTerminated() {
-        return terminated.get();
+        return (flags & TERMINATED) != 0;
     }
 
     public boolean isRunning() {
-        return isStarted() && !terminated.get();
+        return isStarted() && !isTerminated();
     }
 
     public boolean isStarted() {
@@ -97,8 +195,86 @@ public class StatefulContext implements Serializable {
     }
 
 	protected void setTerminated() {
-		this.terminated.set(true);
-		this.completionLatch.countDown();
+		setFlags(TERMINATED);
+	}
+
+	private void setFlags(int bits) {
+		int current;
+		do {
+			current = flags;
+			if ((current | bits) == current) {
+				return;
+			}
+		} while (!FLAGS_UPDATER.compareAndSet(this, current, current | bits));
+
+		// a failed context is completed by completeFailed once it's terminated
+		if ((current & TERMINATED) == 0 && (bits & TERMINATED) != 0 && ((current | bits) & FAILED) == 0) {
+			CompletableFuture<StateEnum> future = completion;
+			if (future != null) {
+				future.complete(state);
+			}
+		}
+	}
+
+	/**
+	 * Waits until no other thread is between claiming a transition for the context and queueing its task,
+	 * so the context's tasks are queued in the order their transitions were claimed
+	 */
+	void lockClaims() {
+		int current;
+		while (((current = flags) & CLAIMING) != 0 || !FLAGS_UPDATER.compareAndSet(this, current, current | CLAIMING)) {
+			Thread.yield();
+		}
+	}
+
+	void unlockClaims() {
+		int current;
+		do {
+			current = flags;
+		} while (!FLAGS_UPDATER.compareAndSet(this, current, current & ~CLAIMING));
+	}
+
+	/**
+	 * Marks the context as failed, so termination doesn't complete it normally; called before it is terminated
+	 */
+	void setFailed() {
+		if (!isTerminated()) {
+			initCompletion();
+			setFlags(FAILED);
+		}
+	}
+
+	/**
+	 * Completes a failed context exceptionally; called after it is terminated
+	 */
+	void completeFailed(ExecutionError error) {
+		CompletableFuture<StateEnum> future = completion;
+		if (future != null && (flags & FAILED) != 0) {
+			future.completeExceptionally(error);
+		}
+	}
+
+	private CompletableFuture<StateEnum> initCompletion() {
+		CompletableFuture<StateEnum> future = completion;
+		if (future == null) {
+			COMPLETION_UPDATER.compareAndSet(this, null, new CompletableFuture<StateEnum>());
+			future = completion;
+		}
+		return future;
+	}
+
+	/**
+	 * @return stage which completes with the final state when the context terminates
+	 * (or with the current state if it is stopped), or completes exceptionally with
+	 * {@link ExecutionError} if a handler fails
+	 */
+	public CompletionStage<StateEnum> getCompletion() {
+		// future is only created when someone asks for it; re-check the flag in case termination happened meanwhile
+		CompletableFuture<StateEnum> future = initCompletion();
+		if ((flags & (TERMINATED | FAILED)) == TERMINATED) {
+			future.complete(state);
+		}
+		return future;
 	}
 
     public EventEnum getLastEvent() {
@@ -109,20 +285,64 @@ public class StatefulContext implements Serializable {
         this.lastEvent = lastEvent;
     }
 
+    private Extras extras() {
+        Extras extras = this.extras;
+        if (extras == null) {
+            EXTRAS_UPDATER.compareAndSet(this, null, new Extras());
+            extras = this.extras;
+        }
+        return extras;
+    }
+
+    long getEnteredAt() {
+        Extras extras = this.extras;
+        return extras != null ? extras.enteredAt : 0;
+    }
+
+    void setEnteredAt(long enteredAt) {
+        extras().enteredAt = enteredAt;
+    }
+
+    TimingWheel.Timeout getTimeout() {
+        Extras extras = this.extras;
+        return extras != null ? extras.timeout : null;
+    }
+
+    void setTimeout(TimingWheel.Timeout timeout) {
+        if (timeout != null || extras != null) {
+            extras().timeout = timeout;
+        }
+    }
+
+    Mailbox getMailbox() {
+        Extras extras = this.extras;
+        return extras != null ? extras.mailbox : null;
+    }
+
+    void initMailbox(Mailbox mailbox) {
+        Extras.MAILBOX_UPDATER.compareAndSet(extras(), null, mailbox);
+    }
+
     public List<Transition> getAvailableTransitions() {
         return flow.getAvailableTransitions(state);
     }
 
     protected void awaitTermination() {
+        if (isTerminated()) {
+            return;
+        }
+
         try {
-            this.completionLatch.await();
+            getCompletion().toCompletableFuture().get();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // terminated with an error, which has already been passed to the error handler
         }
     }
 
     @Override
     public String toString() {
-        return id;
+        return getId();
     }
 }
@@ -1,23 +1,115 @@
 package au.com.ds.ef;
 
-import java.util.ArrayList;
 import java.util.concurrent.Executor;
 
+/**
+ * Runs tasks on the calling thread. A task submitted while another one is running on the same thread
+ * (e.g. trigger called from a whenEnter handler) is queued and run after it, in FIFO order,
+ * so deep trigger chains don't grow the stack. Queues are kept per thread,
+ * so one instance can be shared by flows driven from many threads.
+ */
 public class SyncExecutor implements Executor {
-    private ArrayList<Runnable> queue = new ArrayList<Runnable>();
-    private boolean running = false;
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private static final class TaskQueue {
+        private Runnable[] tasks;
+        private int head;
+        private int size;
+        private boolean running;
+
+        private TaskQueue(int capacity) {
+            tasks = new Runnable[capacity];
+        }
+
+        private void add(Runnable task) {
+            if (size == tasks.length) {
+                grow();
+            }
+
+            tasks[(head + size) & (tasks.length - 1)] = task;
+            size++;
+        }
+
+        private Runnable poll() {
+            if (size == 0) {
+                return null;
+            }
+
+            Runnable task = tasks[head];
+            tasks[head] = null;
+            head = (head + 1) & (tasks.length - 1);
+            size--;
+            return task;
+        }
+
+        private void clear() {
+            while (poll() != null);
+        }
+
+        private void grow() {
+            Runnable[] grown = new Runnable[tasks.length << 1];
+            for (int i = 0; i < size; i++) {
+                grown[i] = tasks[(head + i) & (tasks.length - 1)];
+            }
+
+            tasks = grown;
+            head = 0;
+        }
+    }
+
+    private final int capacity;
+    private final ThreadLocal<TaskQueue> queues = new ThreadLocal<TaskQueue>() {
+        @Override
+        protected TaskQueue initialValue() {
+            return new TaskQueue(capacity);
+        }
+    };
+
+    public SyncExecutor() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity initial size of each thread's queue, rounded up to a power of two.
+     *                 The queue only grows if more tasks are pending at once.
+     */
+    public SyncExecutor(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+
+        this.capacity = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+    }
 
 	@Override
 	public void execute(Runnable task) {
-        queue.add(task);
-
-        if (!running) {
-            while (!queue.isEmpty()) {
-                Runnable nextTask = queue.remove(queue.size() - 1);
-                running = true;
-                nextTask.run();
-                running = false;
+        TaskQueue queue = queues.get();
+        if (queue.running) {
+            queue.add(task);
+            return;
+        }
+
+        RuntimeException failure = null;
+        queue.running = true;
+        try {
+            while (task != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    }
+                }
+
+                task = queue.poll();
             }
+        } finally {
+            queue.running = false;
+            queue.clear();
+        }
+
+        if (failure != null) {
+            throw failure;
         }
     }
 }
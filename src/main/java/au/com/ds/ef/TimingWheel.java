@@ -0,0 +1,280 @@
+package au.com.ds.ef;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Hashed timing wheel: one background thread advances a ring of buckets every tick and runs the tasks
+ * due in the current bucket. Scheduling and cancelling are O(1) and lock-free for callers: both only put the
+ * timeout on a queue which the wheel thread drains on its next tick. Tasks run late by up to one tick.
+ * <p>
+ * Tasks run on the wheel thread, so they should be short, for example handing work over to an executor.
+ * A task which throws is reported to the wheel thread's uncaught exception handler.
+ */
+public class TimingWheel {
+    private static final long DEFAULT_TICK_MILLIS = 10;
+    private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private static volatile TimingWheel shared;
+
+    public static final class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state;
+
+        // only touched by the wheel thread
+        private long rounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false if the task has already run or been cancelled
+         */
+        public boolean cancel() {
+            if (!STATE_UPDATER.compareAndSet(this, WAITING, CANCELLED)) {
+                return false;
+            }
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        private void expire() {
+            if (STATE_UPDATER.compareAndSet(this, WAITING, EXPIRED)) {
+                try {
+                    task.run();
+                } catch (Throwable e) {
+                    // the wheel keeps running, the failure goes where the JVM reports uncaught ones
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                }
+            }
+        }
+    }
+
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            } else {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        private void expire(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds <= 0 && timeout.deadline <= deadline) {
+                    remove(timeout);
+                    timeout.expire();
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.rounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final long startTime;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+    // null if the wheel is ticked by advance()
+    private final Thread worker;
+    private volatile boolean stopped;
+    private long tick;
+    private volatile long advancedNanos;
+
+    public TimingWheel() {
+        this(DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_TICKS_PER_WHEEL);
+    }
+
+    /**
+     * @param ticksPerWheel number of buckets, rounded up to a power of two
+     */
+    public TimingWheel(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this(tickDuration, unit, ticksPerWheel, false);
+    }
+
+    /**
+     * @param manual if true, the wheel has no thread and its time only moves on with {@link #advance(long, TimeUnit)}
+     */
+    TimingWheel(long tickDuration, TimeUnit unit, int ticksPerWheel, boolean manual) {
+        tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+        buckets = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            buckets[i] = new Bucket();
+        }
+        mask = size - 1;
+        startTime = System.nanoTime();
+
+        if (manual) {
+            worker = null;
+            return;
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "EasyFlow-timer");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * @return wheel shared by all flows which don't have their own, started on first use
+     */
+    public static TimingWheel shared() {
+        TimingWheel wheel = shared;
+        if (wheel == null) {
+            synchronized (TimingWheel.class) {
+                wheel = shared;
+                if (wheel == null) {
+                    wheel = new TimingWheel();
+                    shared = wheel;
+                }
+            }
+        }
+        return wheel;
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (stopped) {
+            throw new IllegalStateException("Timing wheel is stopped");
+        }
+
+        Timeout timeout = new Timeout(this, task, now() + unit.toNanos(delay));
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel thread; pending tasks never run
+     */
+    public void stop() {
+        stopped = true;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Moves the time of a manual wheel on and runs the ticks due by then on the calling thread
+     */
+    synchronized void advance(long duration, TimeUnit unit) {
+        if (worker != null) {
+            throw new IllegalStateException("Timing wheel has its own thread");
+        }
+
+        advancedNanos += unit.toNanos(duration);
+        while (tickNanos * (tick + 1) <= advancedNanos) {
+            tick(tickNanos * (tick + 1));
+        }
+    }
+
+    private long now() {
+        return worker == null ? advancedNanos : System.nanoTime() - startTime;
+    }
+
+    private void work() {
+        while (!stopped) {
+            long deadline = tickNanos * (tick + 1);
+            long sleep = deadline - now();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+
+            tick(deadline);
+        }
+    }
+
+    private void tick(long deadline) {
+        removeCancelled();
+        transferAdded();
+        buckets[(int) (tick & mask)].expire(deadline);
+        tick++;
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferAdded() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = added.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.isCancelled()) {
+                continue;
+            }
+
+            long ticks = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.rounds = (ticks - tick) / buckets.length;
+            buckets[(int) (ticks & mask)].add(timeout);
+        }
+    }
+}
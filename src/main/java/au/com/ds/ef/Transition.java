@@ -1,6 +1,7 @@
 package au.com.ds.ef;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * User: andrey
@@ -8,11 +9,14 @@ import java.util.*;
  * Time: 2:21 PM
  */
 public final class Transition {
-    private static ThreadLocal<List<Transition>> transitions = new ThreadLocal<List<Transition>>();
     private EventEnum event;
     private StateEnum stateFrom;
     private StateEnum stateTo;
     private boolean isFinal;
+    private StateTimeout timeout;
+    private Guard<?> guard;
+    // transitions leaving stateTo, set by transit
+    private Transition[] next;
 
     public Transition(EventEnum event, StateEnum stateFrom, StateEnum stateTo) {
         this.event = event;
@@ -32,16 +36,6 @@ public final class Transition {
         this.event = event;
         this.stateTo = stateTo;
         this.isFinal = isFinal;
-        register(this);
-    }
-
-    private static void register(Transition transition) {
-        List<Transition> list = transitions.get();
-        if (list == null) {
-            list = new ArrayList<Transition>();
-            transitions.set(list);
-        }
-        list.add(transition);
     }
 
     public EventEnum getEvent() {
@@ -64,20 +58,86 @@ public final class Transition {
         return isFinal;
     }
 
+    /**
+     * Fires event if a context is still in this transition's target state after duration.
+     * The timer starts when the state is entered and is cancelled when the context leaves it or terminates.
+     */
+    public Transition timeout(long duration, TimeUnit unit, EventEnum event) {
+        this.timeout = new StateTimeout(duration, unit, event);
+        return this;
+    }
+
+    StateTimeout getTimeout() {
+        return timeout;
+    }
+
+    Transition guard(Guard<?> guard) {
+        this.guard = guard;
+        return this;
+    }
+
+    /**
+     * @return guard of the transition, null if it isn't guarded
+     */
+    public Guard<?> getGuard() {
+        return guard;
+    }
+
+    public boolean isGuarded() {
+        return guard != null;
+    }
+
+    /**
+     * @return true if the transition isn't guarded or its guard passes for context, which is of the type the guard
+     * was registered for in the flow
+     */
+    @SuppressWarnings("unchecked")
+    boolean allows(StatefulContext context) {
+        return guard == null || ((Guard<StatefulContext>) guard).test(context);
+    }
+
     public Transition transit(Transition... transitions) {
         for (Transition transition : transitions) {
             transition.setStateFrom(stateTo);
         }
+        next = transitions;
 
         return this;
     }
 
+    /**
+     * @return roots, which leave startState, and every transition chained to them with transit, depth first
+     */
+    static List<Transition> collect(StateEnum startState, Transition[] roots) {
+        List<Transition> all = new ArrayList<Transition>();
+        Set<Transition> seen = Collections.newSetFromMap(new IdentityHashMap<Transition, Boolean>());
+        for (Transition root : roots) {
+            root.setStateFrom(startState);
+            root.collect(all, seen);
+        }
+        return all;
+    }
+
+    private void collect(List<Transition> all, Set<Transition> seen) {
+        if (!seen.add(this)) {
+            return;
+        }
+
+        all.add(this);
+        if (next != null) {
+            for (Transition transition : next) {
+                transition.collect(all, seen);
+            }
+        }
+    }
+
     @Override
     public String toString() {
         return "Transition{" +
             "event=" + event +
             ", stateFrom=" + stateFrom +
             ", stateTo=" + stateTo +
+            (guard != null ? ", guard=" + guard : "") +
             '}';
     }
 
@@ -100,10 +160,4 @@ public final class Transition {
         result = 31 * result + stateFrom.hashCode();
         return result;
     }
-
-    protected static List<Transition> consumeTransitions() {
-        List<Transition> ts = transitions.get();
-        transitions.remove();
-        return ts;
-    }
 }
\ No newline at end of file
@@ -10,19 +10,33 @@ import java.util.*;
  * Time: 2:08 PM
  */
 final class TransitionCollection {
-    private Map<StateEnum, Map<EventEnum, Transition>> transitionFromState =
-        new HashMap<StateEnum, Map<EventEnum, Transition>>();
+    // candidates per state and event, in the order they are tried; Transitions themselves are never changed,
+    // as they may be shared, for example by the flows of a generated dispatcher
+    private Map<StateEnum, Map<EventEnum, Transition[]>> transitionFromState =
+        new HashMap<StateEnum, Map<EventEnum, Transition[]>>();
     private Set<StateEnum> finalStates = new HashSet<StateEnum>();
+    private Map<StateEnum, StateTimeout> timeouts = new HashMap<StateEnum, StateTimeout>();
+
+    // compiled representation, only available when all states and events are enum constants
+    private Class<?> stateClass;
+    private Class<?> eventClass;
+    private StateEnum[] states;
+    private EventEnum[] events;
+    private int eventCount;
+    // first candidate per cell for lookups without guards, and all candidates per cell
+    private Transition[] table;
+    private Transition[][] candidateTable;
+    private long[] finalStateBits;
 
     protected TransitionCollection(Collection<Transition> transitions, boolean validate) {
         if (transitions != null) {
             for (Transition transition : transitions) {
-                Map<EventEnum, Transition> map = transitionFromState.get(transition.getStateFrom());
+                Map<EventEnum, Transition[]> map = transitionFromState.get(transition.getStateFrom());
                 if (map == null) {
-                    map = new HashMap<EventEnum, Transition>();
+                    map = new HashMap<EventEnum, Transition[]>();
                     transitionFromState.put(transition.getStateFrom(), map);
                 }
-                map.put(transition.getEvent(), transition);
+                map.put(transition.getEvent(), add(map.get(transition.getEvent()), transition));
                 if (transition.isFinal()) {
                     finalStates.add(transition.getStateTo());
                 }
@@ -34,15 +48,23 @@ final class TransitionCollection {
                 throw new DefinitionError("No transitions defined");
             }
 
-            Set<Transition> processedTransitions = new HashSet<Transition>();
+            // guards seen per state and event, null standing for the unguarded transition
+            Map<Transition, Set<Guard<?>>> processedTransitions = new HashMap<Transition, Set<Guard<?>>>();
             for (Transition transition : transitions) {
                 StateEnum stateFrom = transition.getStateFrom();
                 if (finalStates.contains(stateFrom)) {
                     throw new DefinitionError("Some events defined for final State: " + stateFrom);
                 }
 
-                if (processedTransitions.contains(transition)) {
-                    throw new DefinitionError("Ambiguous transitions: " + transition);
+                Set<Guard<?>> guards = processedTransitions.get(transition);
+                if (guards == null) {
+                    guards = new HashSet<Guard<?>>();
+                    processedTransitions.put(transition, guards);
+                }
+                // guards which merely overlap can't be told apart here, getTransition reports them per context
+                if (!guards.add(transition.getGuard())) {
+                    throw new DefinitionError(transition.isGuarded() ?
+                        "Duplicate guard: " + transition : "Ambiguous transitions: " + transition);
                 }
 
                 StateEnum stateTo = transition.getStateTo();
@@ -54,23 +76,265 @@ final class TransitionCollection {
                 if (stateFrom.equals(stateTo)) {
                     throw new DefinitionError("Circular transition: " + transition);
                 }
+            }
+        }
+
+        compile(transitions);
+
+        if (transitions != null) {
+            for (Transition transition : transitions) {
+                if (transition.getTimeout() != null) {
+                    setTimeout(transition.getStateTo(), transition.getTimeout(), validate);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds transition to the candidates of its state and event. Guarded ones are tried in the order
+     * they were added, the unguarded one last. An unguarded transition replaces an earlier unguarded one,
+     * validation reports it as ambiguous.
+     * @return new candidates
+     */
+    private static Transition[] add(Transition[] candidates, Transition transition) {
+        if (candidates == null) {
+            return new Transition[]{transition};
+        }
+
+        Transition unguarded = candidates[candidates.length - 1].isGuarded() ? null : candidates[candidates.length - 1];
+        int guarded = unguarded == null ? candidates.length : candidates.length - 1;
+        if (!transition.isGuarded()) {
+            unguarded = transition;
+        }
+
+        Transition[] added = new Transition[guarded + (transition.isGuarded() ? 1 : 0) + (unguarded != null ? 1 : 0)];
+        System.arraycopy(candidates, 0, added, 0, guarded);
+        if (transition.isGuarded()) {
+            added[guarded++] = transition;
+        }
+        if (unguarded != null) {
+            added[guarded] = unguarded;
+        }
+        return added;
+    }
+
+    /**
+     * Builds the table from dispatcher's transitions and checks it against the dispatcher's own lookups, which
+     * answer for the definition as it was compiled. Lookups go to the table afterwards, like in any other flow.
+     */
+    TransitionCollection(FlowDispatcher dispatcher) {
+        this(dispatcher.getTransitions(), false);
+
+        if (table == null) {
+            throw new DefinitionError("Dispatcher states and events must be constants of one enum type each");
+        }
+        for (StateEnum state : states) {
+            if (dispatcher.isFinal(state) != isFinal(state)) {
+                throw new DefinitionError("Dispatcher disagrees on final State: " + state);
+            }
+            for (EventEnum event : events) {
+                if (dispatcher.getTransition(state, event) != getTransition(state, event)) {
+                    throw new DefinitionError("Dispatcher disagrees on Event: " + event + " in State: " + state);
+                }
+            }
+        }
+    }
+
+    void setTimeout(StateEnum state, StateTimeout timeout, boolean validate) {
+        if (validate) {
+            StateTimeout existing = timeouts.get(state);
+            if (existing != null && !existing.equals(timeout)) {
+                throw new DefinitionError("Conflicting timeouts for State: " + state);
+            }
+
+            if (isFinal(state)) {
+                throw new DefinitionError("Timeout defined for final State: " + state);
+            }
 
-                processedTransitions.add(transition);
+            if (getTransition(state, timeout.getEvent()) == null) {
+                throw new DefinitionError("Timeout Event: " + timeout.getEvent() + " is not handled in State: " + state);
             }
         }
+
+        timeouts.put(state, timeout);
+    }
+
+    /**
+     * @return timeout for state or null
+     */
+    StateTimeout getTimeout(StateEnum state) {
+        return timeouts.isEmpty() ? null : timeouts.get(state);
     }
 
+    /**
+     * Builds a flat transition table indexed by <code>stateOrdinal * eventCount + eventOrdinal</code>
+     * and a final state bitset. Leaves the table empty (so the map lookup is used instead)
+     * if any state or event is not an enum constant or they don't share the same enum type.
+     */
+    private void compile(Collection<Transition> transitions) {
+        if (transitions == null || transitions.isEmpty()) {
+            return;
+        }
+
+        Class<?> states = null;
+        Class<?> events = null;
+        for (Transition transition : transitions) {
+            states = commonEnumType(states, transition.getStateFrom());
+            states = commonEnumType(states, transition.getStateTo());
+            events = commonEnumType(events, transition.getEvent());
+            if (states == null || events == null) {
+                return;
+            }
+        }
+
+        int stateCount = states.getEnumConstants().length;
+        int count = events.getEnumConstants().length;
+        Transition[] compiled = new Transition[stateCount * count];
+        Transition[][] compiledCandidates = new Transition[stateCount * count][];
+        long[] finalBits = new long[(stateCount + 63) >>> 6];
+
+        for (Map<EventEnum, Transition[]> transitionMap : transitionFromState.values()) {
+            for (Transition[] candidates : transitionMap.values()) {
+                int i = ordinal(candidates[0].getStateFrom()) * count + ordinal(candidates[0].getEvent());
+                compiled[i] = candidates[0];
+                compiledCandidates[i] = candidates;
+            }
+        }
+
+        for (StateEnum state : finalStates) {
+            int i = ordinal(state);
+            finalBits[i >>> 6] |= 1L << i;
+        }
+
+        stateClass = states;
+        eventClass = events;
+        this.states = (StateEnum[]) states.getEnumConstants();
+        this.events = (EventEnum[]) events.getEnumConstants();
+        eventCount = count;
+        table = compiled;
+        candidateTable = compiledCandidates;
+        finalStateBits = finalBits;
+    }
+
+    private static Class<?> commonEnumType(Class<?> type, Object value) {
+        if (!(value instanceof Enum)) {
+            return null;
+        }
+
+        Class<?> valueType = ((Enum<?>) value).getDeclaringClass();
+        return type == null || type == valueType ? valueType : null;
+    }
+
+    private static int ordinal(Object value) {
+        return ((Enum<?>) value).ordinal();
+    }
+
+    private boolean isCompiledState(StateEnum state) {
+        return state instanceof Enum && ((Enum<?>) state).getDeclaringClass() == stateClass;
+    }
+
+    private boolean isCompiledEvent(EventEnum event) {
+        return event instanceof Enum && ((Enum<?>) event).getDeclaringClass() == eventClass;
+    }
+
+    /**
+     * @return first candidate, which is the only one unless it is guarded
+     */
     public Transition getTransition(StateEnum stateFrom, EventEnum event) {
-        Map<EventEnum, Transition> transitionMap = transitionFromState.get(stateFrom);
+        if (table != null && isCompiledState(stateFrom) && isCompiledEvent(event)) {
+            return table[ordinal(stateFrom) * eventCount + ordinal(event)];
+        }
+
+        Transition[] candidates = getCandidates(stateFrom, event);
+        return candidates == null ? null : candidates[0];
+    }
+
+    /**
+     * Evaluates every guard of the state and event, so that overlapping guards are caught
+     * @return transition whose guard passes for context, the unguarded one if none does, null if there is none
+     * @throws DefinitionError if more than one guard passes for context
+     */
+    public Transition getTransition(StateEnum stateFrom, EventEnum event, StatefulContext context) {
+        Transition first = getTransition(stateFrom, event);
+        if (first == null || !first.isGuarded()) {
+            return first;
+        }
+
+        Transition allowed = null;
+        for (Transition transition : getCandidates(stateFrom, event)) {
+            if (!transition.isGuarded()) {
+                return allowed != null ? allowed : transition;
+            }
+            if (transition.allows(context)) {
+                if (allowed != null) {
+                    throw new DefinitionError("Overlapping guards: " + allowed + " and " + transition +
+                        " both pass for " + context);
+                }
+                allowed = transition;
+            }
+        }
+        return allowed;
+    }
+
+    private Transition[] getCandidates(StateEnum stateFrom, EventEnum event) {
+        if (table != null && isCompiledState(stateFrom) && isCompiledEvent(event)) {
+            return candidateTable[ordinal(stateFrom) * eventCount + ordinal(event)];
+        }
+
+        Map<EventEnum, Transition[]> transitionMap = transitionFromState.get(stateFrom);
         return transitionMap == null ? null : transitionMap.get(event);
     }
 
+    /**
+     * @return true if transitions can be looked up by ordinal
+     */
+    boolean isCompiled() {
+        return table != null;
+    }
+
+    /**
+     * @return candidates for ordinals in the order they are tried, null if there are none or they are out of range
+     */
+    Transition[] getCandidates(int stateFrom, int event) {
+        if (stateFrom < 0 || stateFrom >= states.length || event < 0 || event >= eventCount) {
+            return null;
+        }
+        return candidateTable[stateFrom * eventCount + event];
+    }
+
+    /**
+     * @return state with ordinal, null if it is out of range
+     */
+    StateEnum getState(int ordinal) {
+        return ordinal < 0 || ordinal >= states.length ? null : states[ordinal];
+    }
+
+    /**
+     * @return event with ordinal, null if it is out of range
+     */
+    EventEnum getEvent(int ordinal) {
+        return ordinal < 0 || ordinal >= events.length ? null : events[ordinal];
+    }
+
     public List<Transition> getTransitions(StateEnum stateFrom) {
-        Map<EventEnum, Transition> transitionMap = transitionFromState.get(stateFrom);
-        return transitionMap == null ? Collections.<Transition>emptyList() : new ArrayList<Transition>(transitionMap.values());
+        Map<EventEnum, Transition[]> transitionMap = transitionFromState.get(stateFrom);
+        if (transitionMap == null) {
+            return Collections.emptyList();
+        }
+
+        List<Transition> transitions = new ArrayList<Transition>(transitionMap.size());
+        for (Transition[] candidates : transitionMap.values()) {
+            Collections.addAll(transitions, candidates);
+        }
+        return transitions;
     }
 
     protected boolean isFinal(StateEnum state) {
+        if (finalStateBits != null && isCompiledState(state)) {
+            int i = ordinal(state);
+            return (finalStateBits[i >>> 6] & (1L << i)) != 0;
+        }
+
         return finalStates.contains(state);
     }
 }
@@ -0,0 +1,465 @@
+package au.com.ds.ef;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append-only journal of applied transitions, see {@link EasyFlow#journal(TransitionJournal)}.
+ * <p>
+ * Each transition is a fixed-size record (context key, from, event and to ordinals, timestamp) written into
+ * memory-mapped segment files. Writers claim record slots with an atomic counter and write into the mapping directly,
+ * so appending takes no lock; one is only taken when a writer moves on to a new segment. Records are written at
+ * trigger time, when the transition is accepted; if triggers for the same context race, their records may land
+ * out of order, but each record carries its from state.
+ * <p>
+ * Records reach the OS as soon as they are written, so they survive the process dying. To survive the machine
+ * going down they need to be forced to disk, see {@link #groupCommit()} and {@link #syncInterval(long)}.
+ * <p>
+ * Records are keyed by context number, which starts over in every process. {@link #open()} makes sure new contexts
+ * are numbered after the ones already in the directory.
+ * <p>
+ * States and events must be enums.
+ */
+public class TransitionJournal {
+    /**
+     * Receives records read by {@link #read(Visitor)}. Missing from state and event (for the initial state)
+     * are passed as -1.
+     */
+    public interface Visitor {
+        void record(long contextKey, int stateFrom, int event, int stateTo, long timestamp);
+    }
+
+    static final int RECORD_SIZE = 32;
+
+    private static final int CHECKSUM = 0;
+    private static final int STATE_FROM = 4;
+    private static final int EVENT = 6;
+    private static final int STATE_TO = 8;
+    private static final int CONTEXT_KEY = 16;
+    private static final int TIMESTAMP = 24;
+
+    private static final String PREFIX = "transitions-";
+    private static final String SUFFIX = ".journal";
+    private static final int DEFAULT_SEGMENT_RECORDS = 1 << 20;
+
+    private static final class Segment {
+        private final long index;
+        private final MappedByteBuffer buffer;
+
+        private Segment(long index, MappedByteBuffer buffer) {
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+
+    private final File directory;
+    private int segmentShift = Integer.numberOfTrailingZeros(DEFAULT_SEGMENT_RECORDS);
+    private int retainSegments = Integer.MAX_VALUE;
+    private boolean groupCommit;
+    private long syncIntervalMillis;
+
+    private final AtomicLong sequence = new AtomicLong();
+    // with group commit, records below written are complete and records below synced are on disk
+    private final AtomicLong written = new AtomicLong();
+    private volatile long synced;
+    private final Object commitLock = new Object();
+    private final ConcurrentMap<Long, Segment> segments = new ConcurrentHashMap<Long, Segment>();
+    private volatile Segment current;
+    private ScheduledExecutorService syncer;
+
+    public TransitionJournal(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param records number of records per segment file, rounded up to a power of two
+     */
+    public TransitionJournal segmentSize(int records) {
+        segmentShift = 32 - Integer.numberOfLeadingZeros(Math.max(1, records) - 1);
+        return this;
+    }
+
+    /**
+     * Deletes older segments when a new one is started, so that at most count segments are kept
+     */
+    public TransitionJournal retainSegments(int count) {
+        retainSegments = Math.max(1, count);
+        return this;
+    }
+
+    /**
+     * Makes every append wait until its record has been forced to disk, so an accepted trigger survives a machine
+     * crash. Writers which arrive while a force is running wait for the next one, which covers all of their records.
+     */
+    public TransitionJournal groupCommit() {
+        groupCommit = true;
+        return this;
+    }
+
+    /**
+     * Forces written records to disk from a background thread every millis milliseconds
+     */
+    public TransitionJournal syncInterval(long millis) {
+        syncIntervalMillis = millis;
+        return this;
+    }
+
+    /**
+     * Starts a new segment after the ones already in the directory; must be called before the journal is used.
+     * Reads the directory first, so that contexts created from now on are numbered after every key in it.
+     * @throws IllegalStateException if this process has already numbered contexts which may clash with keys
+     * in the directory; replay the journal (which restores the numbers) or delete its segments before opening it
+     */
+    public TransitionJournal open() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new UncheckedIOException(new IOException("Can't create " + directory));
+        }
+
+        long lastKey = lastKey(directory);
+        if (!StatefulContext.reserveNumbers(lastKey)) {
+            throw new IllegalStateException("Journal " + directory + " has contexts numbered up to " + lastKey +
+                ", which are in use by this process already: replay it before opening it");
+        }
+
+        long[] indexes = segmentIndexes();
+        long index = indexes.length == 0 ? 0 : indexes[indexes.length - 1] + 1;
+        sequence.set(index << segmentShift);
+        written.set(index << segmentShift);
+        synced = index << segmentShift;
+        current = map(index);
+        segments.put(index, current);
+
+        if (syncIntervalMillis > 0) {
+            syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "EasyFlow-journal");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            syncer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    sync();
+                }
+            }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        return this;
+    }
+
+    /**
+     * Stops background syncing and forces everything written so far to disk
+     */
+    public void close() {
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+        sync();
+    }
+
+    /**
+     * @return sequence number the next record will get; segments wholly before it can be deleted
+     * once every context has been checkpointed
+     */
+    public long getSequence() {
+        return sequence.get();
+    }
+
+    /**
+     * Forces all open segments to disk
+     */
+    public void sync() {
+        for (Segment segment : segments.values()) {
+            segment.buffer.force();
+        }
+    }
+
+    void append(StatefulContext context, StateEnum stateFrom, EventEnum event, StateEnum stateTo) {
+        long seq = sequence.getAndIncrement();
+        try {
+            write(seq, context, stateFrom, event, stateTo);
+        } finally {
+            if (groupCommit) {
+                // records complete in sequence order, so a force always covers a prefix of them
+                while (written.get() != seq) {
+                    Thread.yield();
+                }
+                written.set(seq + 1);
+            }
+        }
+
+        if (groupCommit) {
+            commit(seq);
+        }
+    }
+
+    private void write(long seq, StatefulContext context, StateEnum stateFrom, EventEnum event, StateEnum stateTo) {
+        Segment segment = segment(seq >>> segmentShift);
+        if (segment == null) {
+            throw new IllegalStateException("Journal segment of record " + seq + " was deleted before it was written");
+        }
+
+        long key = key(context);
+        int from = ordinal(stateFrom);
+        int evt = ordinal(event);
+        int to = ordinal(stateTo);
+        long timestamp = System.currentTimeMillis();
+
+        int offset = (int) (seq & ((1L << segmentShift) - 1)) * RECORD_SIZE;
+        MappedByteBuffer buffer = segment.buffer;
+        buffer.putShort(offset + STATE_FROM, (short) (from + 1));
+        buffer.putShort(offset + EVENT, (short) (evt + 1));
+        buffer.putShort(offset + STATE_TO, (short) (to + 1));
+        buffer.putLong(offset + CONTEXT_KEY, key);
+        buffer.putLong(offset + TIMESTAMP, timestamp);
+        // empty slots read as zero, torn ones fail the checksum
+        buffer.putInt(offset + CHECKSUM, checksum(key, from, evt, to, timestamp));
+    }
+
+    /**
+     * Waits until the record at seq is on disk. Only one writer forces at a time, covering every record
+     * written before it started; the writers queued behind it find their records covered and return.
+     */
+    private void commit(long seq) {
+        if (synced > seq) {
+            return;
+        }
+
+        synchronized (commitLock) {
+            long from = synced;
+            if (from > seq) {
+                return;
+            }
+
+            long to = written.get();
+            for (long index = from >>> segmentShift; index <= (to - 1) >>> segmentShift; index++) {
+                Segment segment = segments.get(index);
+                if (segment != null) {
+                    segment.buffer.force();
+                }
+            }
+            synced = to;
+        }
+    }
+
+    private Segment segment(long index) {
+        Segment segment = current;
+        if (segment.index == index) {
+            return segment;
+        }
+
+        segment = segments.get(index);
+        return segment != null ? segment : rotate(index);
+    }
+
+    private synchronized Segment rotate(long index) {
+        Segment segment = segments.get(index);
+        if (segment != null || index <= current.index - retainSegments) {
+            return segment;
+        }
+
+        // writers may get here out of order when segments are small, so older segments are mapped as well
+        segment = map(index);
+        segments.put(index, segment);
+        if (index < current.index) {
+            return segment;
+        }
+
+        if (syncIntervalMillis > 0) {
+            current.buffer.force();
+        }
+        current = segment;
+
+        for (Long key : segments.keySet()) {
+            if (key <= index - retainSegments) {
+                segments.remove(key);
+            }
+        }
+        deleteSegments(index - retainSegments + 1);
+        return segment;
+    }
+
+    /**
+     * Deletes segments which only hold records with sequence numbers below sequence
+     */
+    public synchronized void deleteBefore(long sequence) {
+        long index = Math.min(sequence >>> segmentShift, current.index);
+        for (Long key : segments.keySet()) {
+            if (key < index) {
+                segments.remove(key);
+            }
+        }
+        deleteSegments(index);
+    }
+
+    private void deleteSegments(long beforeIndex) {
+        for (long index : segmentIndexes()) {
+            if (index < beforeIndex) {
+                // on Linux the mapping stays valid for stragglers until it is garbage collected
+                segmentFile(index).delete();
+            }
+        }
+    }
+
+    /**
+     * Reads all records in the directory, oldest segment first. Slots never written and records cut short
+     * by a crash are skipped.
+     * @return number of records read
+     */
+    public long read(Visitor visitor) {
+        return read(directory, visitor);
+    }
+
+    /**
+     * Reads a journal directory without opening it for writing, see {@link #read(Visitor)}
+     */
+    public static long read(File directory, Visitor visitor) {
+        long count = 0;
+        for (File file : segmentFiles(directory)) {
+            MappedByteBuffer buffer;
+            try {
+                buffer = mapFile(file, FileChannel.MapMode.READ_ONLY, file.length());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+
+            for (int offset = 0; offset + RECORD_SIZE <= buffer.capacity(); offset += RECORD_SIZE) {
+                int checksum = buffer.getInt(offset + CHECKSUM);
+                if (checksum == 0) {
+                    continue;
+                }
+
+                long key = buffer.getLong(offset + CONTEXT_KEY);
+                int from = buffer.getShort(offset + STATE_FROM) - 1;
+                int event = buffer.getShort(offset + EVENT) - 1;
+                int to = buffer.getShort(offset + STATE_TO) - 1;
+                long timestamp = buffer.getLong(offset + TIMESTAMP);
+                if (checksum == checksum(key, from, event, to, timestamp)) {
+                    visitor.record(key, from, event, to, timestamp);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return highest positive key in the directory, 0 if there is none
+     */
+    private static long lastKey(File directory) {
+        final long[] last = new long[1];
+        read(directory, new Visitor() {
+            @Override
+            public void record(long contextKey, int stateFrom, int event, int stateTo, long timestamp) {
+                last[0] = Math.max(last[0], contextKey);
+            }
+        });
+        return last[0];
+    }
+
+    /**
+     * @return key records of context are stored under: its number, or a hash of its id
+     * (always negative) if it was created with an explicit id
+     */
+    public static long key(StatefulContext context) {
+        long number = context.getNumber();
+        if (number != 0) {
+            return number;
+        }
+
+        // 64 bit FNV-1a
+        String id = context.getId();
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash | Long.MIN_VALUE;
+    }
+
+    private static int ordinal(Object value) {
+        return value == null ? -1 : ((Enum<?>) value).ordinal();
+    }
+
+    private static int checksum(long key, int from, int event, int to, long timestamp) {
+        long h = key;
+        h = h * 31 + from;
+        h = h * 31 + event;
+        h = h * 31 + to;
+        h = h * 31 + timestamp;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        int checksum = (int) h;
+        return checksum == 0 ? 1 : checksum;
+    }
+
+    private Segment map(long index) {
+        try {
+            return new Segment(index, mapFile(segmentFile(index), FileChannel.MapMode.READ_WRITE, (long) RECORD_SIZE << segmentShift));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static MappedByteBuffer mapFile(File file, FileChannel.MapMode mode, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            if (mode != FileChannel.MapMode.READ_ONLY) {
+                raf.setLength(size);
+            }
+            // the mapping stays valid after the file is closed
+            return raf.getChannel().map(mode, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private File segmentFile(long index) {
+        return new File(directory, String.format("%s%019d%s", PREFIX, index, SUFFIX));
+    }
+
+    private long[] segmentIndexes() {
+        List<File> files = segmentFiles(directory);
+        long[] indexes = new long[files.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            String name = files.get(i).getName();
+            indexes[i] = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        }
+        return indexes;
+    }
+
+    private static List<File> segmentFiles(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+
+        if (files == null) {
+            return new ArrayList<File>();
+        }
+
+        // zero padded indexes sort by name
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+}
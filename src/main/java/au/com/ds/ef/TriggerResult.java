@@ -0,0 +1,23 @@
+package au.com.ds.ef;
+
+/**
+ * Outcome of {@link EasyFlow#tryTrigger}
+ */
+public enum TriggerResult {
+    /**
+     * Transition was claimed and scheduled
+     */
+    ACCEPTED,
+    /**
+     * Event is not valid in the context's state, the context is terminated or the flow is shut down
+     */
+    REJECTED,
+    /**
+     * Context left the expected state before the transition could be claimed
+     */
+    LOST_RACE,
+    /**
+     * Inbound queue with {@link OverflowPolicy#REJECT} was full, the transition was not claimed
+     */
+    QUEUE_FULL
+}
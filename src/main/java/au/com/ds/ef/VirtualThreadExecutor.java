@@ -0,0 +1,58 @@
+package au.com.ds.ef;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * {@link MailboxExecutor} which drains every context's mailbox on its own virtual thread,
+ * so handlers can make blocking calls without tying up a platform thread.
+ * Tasks of one context still run one after another, in order.
+ * <p>
+ * Virtual threads are looked up at run time (Java 21+), so the library keeps working on older runtimes;
+ * there mailboxes are drained on a cached pool of daemon platform threads instead.
+ */
+public class VirtualThreadExecutor extends MailboxExecutor {
+    private static class SharedPool {
+        private static final Executor INSTANCE = createPool();
+        private static final boolean VIRTUAL = !(INSTANCE instanceof FallbackPool);
+    }
+
+    private static final class FallbackPool implements Executor {
+        private final Executor executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "EasyFlow-blocking");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        @Override
+        public void execute(Runnable task) {
+            executor.execute(task);
+        }
+    }
+
+    public VirtualThreadExecutor() {
+        // a virtual thread costs next to nothing, so keep draining a mailbox for as long as it has tasks
+        super(SharedPool.INSTANCE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return true if this runtime supports virtual threads, false if platform threads are used instead
+     */
+    public static boolean isVirtual() {
+        return SharedPool.VIRTUAL;
+    }
+
+    private static Executor createPool() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        } catch (Exception e) {
+            return new FallbackPool();
+        }
+    }
+}
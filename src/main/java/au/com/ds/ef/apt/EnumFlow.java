@@ -0,0 +1,30 @@
+package au.com.ds.ef.apt;
+
+import au.com.ds.ef.EventEnum;
+import au.com.ds.ef.StateEnum;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares a flow over enum states and events. {@link EnumFlowProcessor} checks the definition when the annotated
+ * type is compiled and generates a {@link au.com.ds.ef.FlowDispatcher} for it in the same package, named after the
+ * type (enclosing type names joined with '_') with a <code>Dispatcher</code> suffix.
+ * States and events are referred to by constant name.
+ * <p>
+ * The processor is registered as a service, so javac runs it wherever EasyFlow is on the class path;
+ * it only does work for annotated types.
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface EnumFlow {
+    Class<? extends StateEnum> states();
+
+    Class<? extends EventEnum> events();
+
+    String start();
+
+    On[] transitions();
+}
@@ -0,0 +1,339 @@
+package au.com.ds.ef.apt;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Generates a {@link au.com.ds.ef.FlowDispatcher} for every type annotated with {@link EnumFlow}.
+ * Definitions are checked with the same rules {@link au.com.ds.ef.EasyFlow} applies when a flow is built,
+ * so mistakes are compile errors.
+ * <p>
+ * The dispatcher lists the flow's transitions and answers lookups and final state checks from switches.
+ * Flows built from it trigger through their own ordinal table like any enum flow; the switches are only
+ * compared against that table once, when the flow is built.
+ */
+@SupportedAnnotationTypes("au.com.ds.ef.apt.EnumFlow")
+public class EnumFlowProcessor extends AbstractProcessor {
+    private static final String SUFFIX = "Dispatcher";
+
+    private static class Definition {
+        private TypeElement type;
+        private TypeElement states;
+        private TypeElement events;
+        private String start;
+        private final List<Step> steps = new ArrayList<Step>();
+        private final Set<String> finalStates = new LinkedHashSet<String>();
+    }
+
+    private static class Step {
+        private String from;
+        private String event;
+        private String to;
+        private boolean finish;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        for (Element element : round.getElementsAnnotatedWith(EnumFlow.class)) {
+            AnnotationMirror mirror = findMirror(element);
+            Definition definition = read((TypeElement) element, mirror);
+            if (definition != null && check(definition, mirror)) {
+                write(definition);
+            }
+        }
+
+        return true;
+    }
+
+    private AnnotationMirror findMirror(Element element) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName()
+                    .contentEquals(EnumFlow.class.getName())) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private Map<String, Object> values(AnnotationMirror mirror) {
+        Map<String, Object> values = new LinkedHashMap<String, Object>();
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+                processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet()) {
+            values.put(entry.getKey().getSimpleName().toString(), entry.getValue().getValue());
+        }
+        return values;
+    }
+
+    /**
+     * @return definition, or null if the annotation's types are not enums
+     */
+    private Definition read(TypeElement type, AnnotationMirror mirror) {
+        Map<String, Object> values = values(mirror);
+        Definition definition = new Definition();
+        definition.type = type;
+        definition.states = enumType(values.get("states"), type, mirror);
+        definition.events = enumType(values.get("events"), type, mirror);
+        definition.start = (String) values.get("start");
+        if (definition.states == null || definition.events == null) {
+            return null;
+        }
+
+        for (Object value : (List<?>) values.get("transitions")) {
+            Map<String, Object> on = values((AnnotationMirror) ((AnnotationValue) value).getValue());
+            Step step = new Step();
+            step.from = (String) on.get("from");
+            step.event = (String) on.get("event");
+            step.to = (String) on.get("to");
+            step.finish = (Boolean) on.get("finish");
+            definition.steps.add(step);
+            if (step.finish) {
+                definition.finalStates.add(step.to);
+            }
+        }
+
+        return definition;
+    }
+
+    private TypeElement enumType(Object value, TypeElement type, AnnotationMirror mirror) {
+        TypeElement element = (TypeElement) ((DeclaredType) value).asElement();
+        if (element.getKind() != ElementKind.ENUM) {
+            error("Not an enum: " + element.getQualifiedName(), type, mirror);
+            return null;
+        }
+        return element;
+    }
+
+    private static Set<String> constants(TypeElement type) {
+        Set<String> constants = new LinkedHashSet<String>();
+        for (Element element : type.getEnclosedElements()) {
+            if (element.getKind() == ElementKind.ENUM_CONSTANT) {
+                constants.add(element.getSimpleName().toString());
+            }
+        }
+        return constants;
+    }
+
+    /**
+     * Reports every problem of the definition
+     * @return true if there were none
+     */
+    private boolean check(Definition definition, AnnotationMirror mirror) {
+        TypeElement type = definition.type;
+        Set<String> states = constants(definition.states);
+        Set<String> events = constants(definition.events);
+        boolean valid = true;
+
+        if (definition.steps.isEmpty()) {
+            error("No transitions defined", type, mirror);
+            valid = false;
+        }
+        if (!states.contains(definition.start)) {
+            error("Unknown start State: " + definition.start, type, mirror);
+            valid = false;
+        }
+
+        Set<String> fromStates = new LinkedHashSet<String>();
+        for (Step step : definition.steps) {
+            fromStates.add(step.from);
+        }
+
+        Set<String> processed = new LinkedHashSet<String>();
+        for (Step step : definition.steps) {
+            String transition = step.from + " -" + step.event + "-> " + step.to;
+            if (!states.contains(step.from) || !states.contains(step.to)) {
+                error("Unknown State in transition: " + transition, type, mirror);
+                valid = false;
+            }
+            if (!events.contains(step.event)) {
+                error("Unknown Event in transition: " + transition, type, mirror);
+                valid = false;
+            }
+            if (definition.finalStates.contains(step.from)) {
+                error("Some events defined for final State: " + step.from, type, mirror);
+                valid = false;
+            }
+            if (!processed.add(step.from + '.' + step.event)) {
+                error("Ambiguous transitions: " + transition, type, mirror);
+                valid = false;
+            }
+            if (!definition.finalStates.contains(step.to) && !fromStates.contains(step.to)) {
+                error("No events defined for non-final State: " + step.to, type, mirror);
+                valid = false;
+            }
+            if (step.from.equals(step.to)) {
+                error("Circular transition: " + transition, type, mirror);
+                valid = false;
+            }
+        }
+
+        return valid;
+    }
+
+    private void error(String message, Element element, AnnotationMirror mirror) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element, mirror);
+    }
+
+    private static String dispatcherName(TypeElement type) {
+        String name = type.getSimpleName().toString();
+        Element enclosing = type.getEnclosingElement();
+        while (enclosing.getKind() != ElementKind.PACKAGE) {
+            name = enclosing.getSimpleName() + "_" + name;
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return name + SUFFIX;
+    }
+
+    private void write(Definition definition) {
+        String pkg = processingEnv.getElementUtils().getPackageOf(definition.type).getQualifiedName().toString();
+        String name = dispatcherName(definition.type);
+        String qualifiedName = pkg.isEmpty() ? name : pkg + "." + name;
+
+        try {
+            Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, definition.type).openWriter();
+            try {
+                writer.write(generate(definition, pkg, name));
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                "Can't write " + qualifiedName + ": " + e.getMessage(), definition.type);
+        }
+    }
+
+    private static String generate(Definition definition, String pkg, String name) {
+        String states = definition.states.getQualifiedName().toString();
+        String events = definition.events.getQualifiedName().toString();
+
+        // transitions grouped by the state they leave, in declaration order
+        Map<String, List<Integer>> byState = new LinkedHashMap<String, List<Integer>>();
+        for (int i = 0; i < definition.steps.size(); i++) {
+            String from = definition.steps.get(i).from;
+            List<Integer> indexes = byState.get(from);
+            if (indexes == null) {
+                indexes = new ArrayList<Integer>();
+                byState.put(from, indexes);
+            }
+            indexes.add(i);
+        }
+
+        StringBuilder out = new StringBuilder();
+        if (!pkg.isEmpty()) {
+            out.append("package ").append(pkg).append(";\n\n");
+        }
+        out.append("import au.com.ds.ef.EasyFlow;\n");
+        out.append("import au.com.ds.ef.EventEnum;\n");
+        out.append("import au.com.ds.ef.FlowBuilder;\n");
+        out.append("import au.com.ds.ef.FlowDispatcher;\n");
+        out.append("import au.com.ds.ef.StateEnum;\n");
+        out.append("import au.com.ds.ef.StatefulContext;\n");
+        out.append("import au.com.ds.ef.Transition;\n\n");
+        out.append("import java.util.Arrays;\n");
+        out.append("import java.util.Collections;\n");
+        out.append("import java.util.List;\n\n");
+        out.append("/**\n");
+        out.append(" * Generated by ").append(EnumFlowProcessor.class.getName()).append(" from {@link ")
+            .append(definition.type.getQualifiedName()).append("}, don't edit\n");
+        out.append(" */\n");
+        out.append("public final class ").append(name).append(" implements FlowDispatcher {\n");
+        out.append("    public static final ").append(name).append(" INSTANCE = new ").append(name).append("();\n\n");
+
+        for (int i = 0; i < definition.steps.size(); i++) {
+            Step step = definition.steps.get(i);
+            out.append("    private static final Transition T").append(i).append(" = new Transition(")
+                .append(events).append('.').append(step.event).append(", ")
+                .append(states).append('.').append(step.from).append(", ")
+                .append(states).append('.').append(step.to).append(", ")
+                .append(step.finish).append(");\n");
+        }
+        out.append("    private static final List<Transition> TRANSITIONS = Collections.unmodifiableList(Arrays.asList(");
+        for (int i = 0; i < definition.steps.size(); i++) {
+            out.append(i == 0 ? "T" : ", T").append(i);
+        }
+        out.append("));\n\n");
+
+        out.append("    private ").append(name).append("() {\n");
+        out.append("    }\n\n");
+
+        out.append("    public static <C extends StatefulContext> EasyFlow<C> newFlow() {\n");
+        out.append("        return FlowBuilder.fromDispatcher(").append(states).append('.')
+            .append(definition.start).append(", INSTANCE);\n");
+        out.append("    }\n\n");
+
+        out.append("    public static Transition transition(").append(states).append(" state, ")
+            .append(events).append(" event) {\n");
+        out.append("        switch (state) {\n");
+        for (Map.Entry<String, List<Integer>> entry : byState.entrySet()) {
+            out.append("            case ").append(entry.getKey()).append(":\n");
+            out.append("                switch (event) {\n");
+            for (int i : entry.getValue()) {
+                out.append("                    case ").append(definition.steps.get(i).event)
+                    .append(": return T").append(i).append(";\n");
+            }
+            out.append("                    default: return null;\n");
+            out.append("                }\n");
+        }
+        out.append("            default:\n");
+        out.append("                return null;\n");
+        out.append("        }\n");
+        out.append("    }\n\n");
+
+        out.append("    public static boolean isFinal(").append(states).append(" state) {\n");
+        if (definition.finalStates.isEmpty()) {
+            out.append("        return false;\n");
+        } else {
+            out.append("        switch (state) {\n");
+            for (String state : definition.finalStates) {
+                out.append("            case ").append(state).append(":\n");
+            }
+            out.append("                return true;\n");
+            out.append("            default:\n");
+            out.append("                return false;\n");
+            out.append("        }\n");
+        }
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    public Transition getTransition(StateEnum state, EventEnum event) {\n");
+        out.append("        return state instanceof ").append(states).append(" && event instanceof ").append(events)
+            .append(" ?\n            transition((").append(states).append(") state, (").append(events)
+            .append(") event) : null;\n");
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    public boolean isFinal(StateEnum state) {\n");
+        out.append("        return state instanceof ").append(states).append(" && isFinal((").append(states)
+            .append(") state);\n");
+        out.append("    }\n\n");
+
+        out.append("    @Override\n");
+        out.append("    public List<Transition> getTransitions() {\n");
+        out.append("        return TRANSITIONS;\n");
+        out.append("    }\n");
+        out.append("}\n");
+        return out.toString();
+    }
+}
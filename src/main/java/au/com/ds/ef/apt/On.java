@@ -0,0 +1,21 @@
+package au.com.ds.ef.apt;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * One transition of an {@link EnumFlow}, the counterpart of <code>on(event).to(state)</code>
+ * and <code>on(event).finish(state)</code>
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target({})
+public @interface On {
+    String from();
+
+    String event();
+
+    String to();
+
+    boolean finish() default false;
+}
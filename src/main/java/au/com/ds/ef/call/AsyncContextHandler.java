@@ -0,0 +1,13 @@
+package au.com.ds.ef.call;
+
+import au.com.ds.ef.StatefulContext;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Handler which returns without waiting for its work. The flow goes on with the hook once the stage completes,
+ * a stage completed exceptionally is handled as a failed handler.
+ */
+public interface AsyncContextHandler<C extends StatefulContext> extends Handler {
+    CompletionStage<Void> call(C context) throws Exception;
+}
@@ -0,0 +1,12 @@
+package au.com.ds.ef.call;
+
+import au.com.ds.ef.*;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * @see AsyncContextHandler
+ */
+public interface AsyncEventHandler<C extends StatefulContext> extends Handler {
+    CompletionStage<Void> call(EventEnum event, StateEnum from, StateEnum to, C context) throws Exception;
+}
@@ -0,0 +1,12 @@
+package au.com.ds.ef.call;
+
+import au.com.ds.ef.*;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * @see AsyncContextHandler
+ */
+public interface AsyncStateHandler<C extends StatefulContext> extends Handler {
+    CompletionStage<Void> call(StateEnum state, C context) throws Exception;
+}
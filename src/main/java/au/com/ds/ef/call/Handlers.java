@@ -0,0 +1,127 @@
+package au.com.ds.ef.call;
+
+import au.com.ds.ef.EventEnum;
+import au.com.ds.ef.StateEnum;
+import au.com.ds.ef.StatefulContext;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Factories for handler wrappers
+ */
+public final class Handlers {
+    private static final class IndependentContextHandler<C extends StatefulContext> implements ContextHandler<C>, Independent {
+        private final ContextHandler<C> handler;
+
+        private IndependentContextHandler(ContextHandler<C> handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void call(C context) throws Exception {
+            handler.call(context);
+        }
+    }
+
+    private static final class IndependentStateHandler<C extends StatefulContext> implements StateHandler<C>, Independent {
+        private final StateHandler<C> handler;
+
+        private IndependentStateHandler(StateHandler<C> handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void call(StateEnum state, C context) throws Exception {
+            handler.call(state, context);
+        }
+    }
+
+    private static final class IndependentEventHandler<C extends StatefulContext> implements EventHandler<C>, Independent {
+        private final EventHandler<C> handler;
+
+        private IndependentEventHandler(EventHandler<C> handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void call(EventEnum event, StateEnum from, StateEnum to, C context) throws Exception {
+            handler.call(event, from, to, context);
+        }
+    }
+
+    private static final class IndependentAsyncContextHandler<C extends StatefulContext>
+            implements AsyncContextHandler<C>, Independent {
+        private final AsyncContextHandler<C> handler;
+
+        private IndependentAsyncContextHandler(AsyncContextHandler<C> handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public CompletionStage<Void> call(C context) throws Exception {
+            return handler.call(context);
+        }
+    }
+
+    private static final class IndependentAsyncStateHandler<C extends StatefulContext>
+            implements AsyncStateHandler<C>, Independent {
+        private final AsyncStateHandler<C> handler;
+
+        private IndependentAsyncStateHandler(AsyncStateHandler<C> handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public CompletionStage<Void> call(StateEnum state, C context) throws Exception {
+            return handler.call(state, context);
+        }
+    }
+
+    private static final class IndependentAsyncEventHandler<C extends StatefulContext>
+            implements AsyncEventHandler<C>, Independent {
+        private final AsyncEventHandler<C> handler;
+
+        private IndependentAsyncEventHandler(AsyncEventHandler<C> handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public CompletionStage<Void> call(EventEnum event, StateEnum from, StateEnum to, C context) throws Exception {
+            return handler.call(event, from, to, context);
+        }
+    }
+
+    private Handlers() {
+    }
+
+    /**
+     * @return handler marked {@link Independent}, which may run in parallel with its neighbours
+     */
+    public static <C extends StatefulContext> ContextHandler<C> independent(ContextHandler<C> handler) {
+        return new IndependentContextHandler<C>(handler);
+    }
+
+    public static <C extends StatefulContext> StateHandler<C> independent(StateHandler<C> handler) {
+        return new IndependentStateHandler<C>(handler);
+    }
+
+    public static <C extends StatefulContext> EventHandler<C> independent(EventHandler<C> handler) {
+        return new IndependentEventHandler<C>(handler);
+    }
+
+    /**
+     * @return async handler marked {@link Independent}, its stage is awaited together with those of its neighbours.
+     * Named apart from {@link #independent(ContextHandler)}, so a lambda passed to either isn't ambiguous.
+     */
+    public static <C extends StatefulContext> AsyncContextHandler<C> independentAsync(AsyncContextHandler<C> handler) {
+        return new IndependentAsyncContextHandler<C>(handler);
+    }
+
+    public static <C extends StatefulContext> AsyncStateHandler<C> independentAsync(AsyncStateHandler<C> handler) {
+        return new IndependentAsyncStateHandler<C>(handler);
+    }
+
+    public static <C extends StatefulContext> AsyncEventHandler<C> independentAsync(AsyncEventHandler<C> handler) {
+        return new IndependentAsyncEventHandler<C>(handler);
+    }
+}
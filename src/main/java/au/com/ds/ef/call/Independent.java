@@ -0,0 +1,8 @@
+package au.com.ds.ef.call;
+
+/**
+ * Marks a handler which doesn't depend on the other handlers of its hook. Consecutive independent handlers
+ * of a hook run in parallel and are all joined before the next handler runs, see {@link Handlers#independent}.
+ */
+public interface Independent extends Handler {
+}
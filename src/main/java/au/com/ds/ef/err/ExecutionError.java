@@ -24,6 +24,8 @@ public class ExecutionError extends Exception {
 		return event;
 	}
 
+	// typed for the caller, who knows the context type of its flow
+	@SuppressWarnings("unchecked")
 	public <C extends StatefulContext> C getContext() {
 		return (C) context;
 	}
@@ -0,0 +1,207 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.AsyncContextHandler;
+import au.com.ds.ef.call.ContextHandler;
+import au.com.ds.ef.call.ExecutionErrorHandler;
+import au.com.ds.ef.err.ExecutionError;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static au.com.ds.ef.AsyncHandlersTest.Events.*;
+import static au.com.ds.ef.AsyncHandlersTest.States.*;
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static au.com.ds.ef.call.Handlers.independent;
+import static au.com.ds.ef.call.Handlers.independentAsync;
+import static org.junit.Assert.*;
+
+public class AsyncHandlersTest {
+    public enum States implements StateEnum {
+        IDLE, BUSY, DONE
+    }
+
+    public enum Events implements EventEnum {
+        go, done
+    }
+
+    private final List<CompletableFuture<Void>> stages = Collections.synchronizedList(new ArrayList<CompletableFuture<Void>>());
+    private ExecutorService single;
+    private EasyFlow<StatefulContext> flow;
+
+    @Before
+    public void setUp() {
+        single = Executors.newSingleThreadExecutor();
+        flow =
+            from(IDLE).transit(
+                on(go).to(BUSY).transit(
+                    on(done).finish(DONE)
+                )
+            );
+
+        flow
+            .executor(new MailboxExecutor(single))
+            .whenEnterAsync(BUSY, new AsyncContextHandler<StatefulContext>() {
+                @Override
+                public CompletionStage<Void> call(StatefulContext context) throws Exception {
+                    CompletableFuture<Void> stage = new CompletableFuture<Void>();
+                    stages.add(stage);
+                    return stage;
+                }
+            });
+    }
+
+    @After
+    public void tearDown() {
+        single.shutdownNow();
+    }
+
+    private void awaitStages(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (stages.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, stages.size());
+    }
+
+    @Test
+    public void testPendingStagesDontHoldThreads() throws Exception {
+        flow.whenEnter(BUSY, new ContextHandler<StatefulContext>() {
+            @Override
+            public void call(StatefulContext context) throws Exception {
+                context.trigger(done);
+            }
+        });
+
+        // one pool thread takes every context into BUSY while all their stages are pending
+        List<StatefulContext> contexts = new ArrayList<StatefulContext>();
+        for (int i = 0; i < 1000; i++) {
+            StatefulContext ctx = new StatefulContext();
+            flow.start(ctx);
+            ctx.trigger(go);
+            contexts.add(ctx);
+        }
+        awaitStages(1000);
+        assertFalse(flow.awaitQuiescence(50, TimeUnit.MILLISECONDS));
+        for (StatefulContext ctx : contexts) {
+            assertFalse(ctx.isTerminated());
+        }
+
+        for (CompletableFuture<Void> stage : new ArrayList<CompletableFuture<Void>>(stages)) {
+            stage.complete(null);
+        }
+        flow.completionOfAll(contexts).get(10, TimeUnit.SECONDS);
+        assertTrue(flow.awaitQuiescence(10, TimeUnit.SECONDS));
+        for (StatefulContext ctx : contexts) {
+            assertEquals(DONE, ctx.getState());
+        }
+    }
+
+    @Test
+    public void testContextWaitsForStage() throws Exception {
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        flow
+            .whenEnter(BUSY, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    calls.add("enter BUSY");
+                }
+            })
+            .whenLeave(BUSY, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    calls.add("leave BUSY");
+                }
+            })
+            .whenEnter(DONE, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    calls.add("enter DONE");
+                }
+            });
+
+        StatefulContext ctx = new StatefulContext();
+        flow.start(ctx);
+        ctx.trigger(go);
+        awaitStages(1);
+
+        // accepted right away, but handled only after the pending stage
+        ctx.trigger(done);
+        assertEquals(DONE, ctx.getState());
+        // the pool has one thread, so a task queued now runs after anything the trigger handed to it
+        single.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get(10, TimeUnit.SECONDS);
+        assertTrue(calls.isEmpty());
+
+        stages.get(0).complete(null);
+        ctx.getCompletion().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("enter BUSY", "leave BUSY", "enter DONE"), calls);
+    }
+
+    @Test
+    public void testFailedStageGoesToErrorHandler() throws Exception {
+        final AtomicReference<ExecutionError> error = new AtomicReference<ExecutionError>();
+        flow.whenError(new ExecutionErrorHandler<StatefulContext>() {
+            @Override
+            public void call(ExecutionError e, StatefulContext context) {
+                error.set(e);
+            }
+        });
+
+        StatefulContext ctx = new StatefulContext();
+        flow.start(ctx);
+        ctx.trigger(go);
+        awaitStages(1);
+
+        stages.get(0).completeExceptionally(new IllegalStateException("no reply"));
+        try {
+            ctx.getCompletion().toCompletableFuture().get(10, TimeUnit.SECONDS);
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            // expected
+        }
+
+        assertEquals(BUSY, error.get().getState());
+        assertEquals("no reply", error.get().getCause().getMessage());
+        assertTrue(ctx.isTerminated());
+        assertFalse(ctx.safeTrigger(done));
+    }
+
+    @Test
+    public void testIndependentLambdas() throws Exception {
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        // sync and async factories take lambdas of the same shape without being ambiguous
+        flow
+            .whenEnter(DONE, independent(context -> calls.add("sync")))
+            .whenEnterAsync(DONE, independentAsync(context -> {
+                calls.add("async");
+                return CompletableFuture.completedFuture(null);
+            }));
+
+        StatefulContext ctx = new StatefulContext();
+        flow.start(ctx);
+        ctx.trigger(go);
+        awaitStages(1);
+        stages.get(0).complete(null);
+        ctx.trigger(done);
+
+        ctx.getCompletion().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertEquals(new HashSet<String>(Arrays.asList("sync", "async")), new HashSet<String>(calls));
+    }
+}
@@ -0,0 +1,102 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.StateHandler;
+import au.com.ds.ef.err.LogicViolationError;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static au.com.ds.ef.BatchTriggerTest.Events.*;
+import static au.com.ds.ef.BatchTriggerTest.States.*;
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static org.junit.Assert.*;
+
+public class BatchTriggerTest {
+    public enum States implements StateEnum {
+        START, STATE_1, STATE_2, STATE_3
+    }
+
+    public enum Events implements EventEnum {
+        event_1, event_2, event_3
+    }
+
+    private static class CountingExecutor implements Executor {
+        private final SyncExecutor executor = new SyncExecutor();
+        private int tasks;
+
+        @Override
+        public void execute(Runnable task) {
+            tasks++;
+            executor.execute(task);
+        }
+    }
+
+    private EasyFlow<StatefulContext> flow;
+    private CountingExecutor executor;
+    private List<StateEnum> entered;
+
+    @Before
+    public void setUp() {
+        executor = new CountingExecutor();
+        entered = new ArrayList<StateEnum>();
+
+        flow =
+            from(START).transit(
+                on(event_1).to(STATE_1).transit(
+                    on(event_2).to(STATE_2).transit(
+                        on(event_3).finish(STATE_3)
+                    )
+                )
+            );
+
+        flow
+            .executor(executor)
+            .whenEnter(new StateHandler<StatefulContext>() {
+                @Override
+                public void call(StateEnum state, StatefulContext context) throws Exception {
+                    entered.add(state);
+                }
+            });
+    }
+
+    @Test
+    public void testEventSequence() {
+        StatefulContext ctx = new StatefulContext();
+        flow.start(ctx);
+        executor.tasks = 0;
+
+        boolean[] accepted = ctx.safeTrigger(Arrays.<EventEnum>asList(event_1, event_3, event_2, event_1, event_3));
+
+        assertTrue(Arrays.equals(new boolean[]{true, false, true, false, true}, accepted));
+        assertEquals(Arrays.<StateEnum>asList(START, STATE_1, STATE_2, STATE_3), entered);
+        assertEquals(STATE_3, ctx.getState());
+        assertEquals(event_3, ctx.getLastEvent());
+        assertTrue(ctx.isTerminated());
+        assertEquals(1, executor.tasks);
+    }
+
+    @Test
+    public void testManyContexts() throws LogicViolationError {
+        List<StatefulContext> contexts = new ArrayList<StatefulContext>();
+        for (int i = 0; i < 5; i++) {
+            StatefulContext ctx = new StatefulContext();
+            contexts.add(ctx);
+            flow.start(ctx);
+        }
+        flow.trigger(event_1, contexts.get(2));
+        executor.tasks = 0;
+
+        boolean[] accepted = flow.safeTrigger(event_1, contexts);
+
+        assertTrue(Arrays.equals(new boolean[]{true, true, false, true, true}, accepted));
+        for (StatefulContext ctx : contexts) {
+            assertEquals(STATE_1, ctx.getState());
+        }
+        assertEquals(4, executor.tasks);
+    }
+}
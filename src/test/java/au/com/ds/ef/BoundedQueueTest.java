@@ -0,0 +1,261 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.ContextHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static au.com.ds.ef.BoundedQueueTest.Events.*;
+import static au.com.ds.ef.BoundedQueueTest.States.*;
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static org.junit.Assert.*;
+
+public class BoundedQueueTest {
+    public enum States implements StateEnum {
+        IDLE, BUSY, STEP, DONE
+    }
+
+    public enum Events implements EventEnum {
+        go, step, done
+    }
+
+    private final CountDownLatch busy = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger handled = new AtomicInteger();
+    private final AtomicInteger stepped = new AtomicInteger();
+    private ExecutorService single;
+    private EasyFlow<StatefulContext> flow;
+
+    @Before
+    public void setUp() {
+        single = Executors.newSingleThreadExecutor();
+        flow =
+            from(IDLE).transit(
+                on(go).to(BUSY).transit(
+                    on(step).to(STEP).transit(
+                        on(done).finish(DONE)
+                    )
+                )
+            );
+
+        flow
+            .whenEvent(go, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    // the first one holds the executor until released
+                    if (handled.getAndIncrement() == 0) {
+                        busy.countDown();
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+                }
+            })
+            .whenEnter(STEP, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    stepped.incrementAndGet();
+                }
+            });
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        single.shutdownNow();
+    }
+
+    private StatefulContext[] start(int count) {
+        StatefulContext[] contexts = new StatefulContext[count];
+        for (int i = 0; i < count; i++) {
+            contexts[i] = new StatefulContext();
+            flow.start(contexts[i]);
+        }
+        return contexts;
+    }
+
+    private static void awaitState(StatefulContext context, StateEnum state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (context.getState() != state && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(state, context.getState());
+    }
+
+    @Test
+    public void testRejectWhenFlowQueueIsFull() throws Exception {
+        flow.executor(single).queueLimit(2, OverflowPolicy.REJECT);
+        StatefulContext[] contexts = start(4);
+
+        assertTrue(contexts[0].safeTrigger(go));
+        assertTrue(busy.await(10, TimeUnit.SECONDS));
+        assertTrue(contexts[1].safeTrigger(go));
+        assertTrue(contexts[2].safeTrigger(go));
+        assertEquals(2, flow.getQueueSize());
+
+        assertFalse(contexts[3].safeTrigger(go));
+        assertEquals(TriggerResult.QUEUE_FULL, contexts[3].tryTrigger(go));
+        try {
+            contexts[3].trigger(go);
+            fail("RejectedExecutionException expected");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(IDLE, contexts[3].getState());
+
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (flow.getQueueSize() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(contexts[3].safeTrigger(go));
+        for (StatefulContext context : contexts) {
+            awaitState(context, BUSY);
+        }
+        // states are committed when triggered, handlers run after
+        deadline = System.currentTimeMillis() + 10000;
+        while (handled.get() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(4, handled.get());
+    }
+
+    @Test
+    public void testBlockWaitsForRoom() throws Exception {
+        flow.executor(single).queueLimit(1, OverflowPolicy.BLOCK);
+        final StatefulContext[] contexts = start(3);
+
+        assertTrue(contexts[0].safeTrigger(go));
+        assertTrue(busy.await(10, TimeUnit.SECONDS));
+        assertTrue(contexts[1].safeTrigger(go));
+
+        Thread blocked = new Thread() {
+            @Override
+            public void run() {
+                contexts[2].safeTrigger(go);
+            }
+        };
+        blocked.start();
+        blocked.join(200);
+        assertTrue(blocked.isAlive());
+        assertEquals(IDLE, contexts[2].getState());
+
+        release.countDown();
+        blocked.join(10000);
+        assertFalse(blocked.isAlive());
+        awaitState(contexts[2], BUSY);
+    }
+
+    @Test
+    public void testDropOldestSkipsHandlers() throws Exception {
+        flow.executor(new MailboxExecutor(1, OverflowPolicy.DROP_OLDEST));
+        StatefulContext ctx = start(1)[0];
+
+        ctx.trigger(go);
+        assertTrue(busy.await(10, TimeUnit.SECONDS));
+        ctx.trigger(step);
+        assertEquals(1, flow.getQueueSize(ctx));
+        ctx.trigger(done);
+        assertEquals(1, flow.getQueueSize(ctx));
+
+        release.countDown();
+        flow.waitForCompletion(ctx);
+        assertEquals(DONE, ctx.getState());
+        assertEquals(0, stepped.get());
+        assertEquals(0, flow.getQueueSize(ctx));
+    }
+
+    private static InboundTask task(InboundQueue queue, AtomicInteger dropped) {
+        return task(queue, dropped, new CountDownLatch(0));
+    }
+
+    /**
+     * @param drops counted down whenever the queue tries to drop the task
+     */
+    private static InboundTask task(final InboundQueue queue, final AtomicInteger dropped, final CountDownLatch drops) {
+        InboundTask task = new InboundTask() {
+            @Override
+            void process() {
+            }
+
+            @Override
+            void dropped() {
+                dropped.incrementAndGet();
+            }
+
+            @Override
+            boolean drop(InboundQueue queue) {
+                drops.countDown();
+                return super.drop(queue);
+            }
+        };
+        task.setQueues(queue, null);
+        return task;
+    }
+
+    @Test
+    public void testDropOldestWaitsForUnclaimedTrigger() throws Exception {
+        final InboundQueue queue = new InboundQueue(1, OverflowPolicy.DROP_OLDEST);
+        final AtomicInteger dropped = new AtomicInteger();
+        CountDownLatch drops = new CountDownLatch(3);
+        InboundTask claiming = task(queue, dropped, drops);
+        assertTrue(queue.acquire(claiming));
+
+        final InboundTask next = task(queue, dropped);
+        Future<Boolean> admitted = single.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return queue.acquire(next);
+            }
+        });
+
+        // the first trigger's transition isn't claimed yet, so it's neither dropped nor forgotten
+        assertTrue(drops.await(10, TimeUnit.SECONDS));
+        assertFalse(admitted.isDone());
+        assertEquals(0, dropped.get());
+
+        claiming.ready();
+        assertTrue(admitted.get(10, TimeUnit.SECONDS));
+        assertEquals(1, dropped.get());
+        assertEquals(1, queue.size());
+
+        // a cancelled trigger gives its slot back instead
+        InboundTask last = task(queue, dropped);
+        next.cancel();
+        assertTrue(queue.acquire(last));
+        assertEquals(1, dropped.get());
+        assertEquals(1, queue.size());
+    }
+
+    @Test
+    public void testTriggersFromHandlersAreNotLimited() throws Exception {
+        flow
+            .executor(new MailboxExecutor(1, OverflowPolicy.BLOCK))
+            .whenEnter(BUSY, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    context.trigger(step);
+                }
+            })
+            .whenEnter(STEP, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    context.trigger(done);
+                }
+            });
+        release.countDown();
+
+        StatefulContext ctx = start(1)[0];
+        ctx.trigger(go);
+        ctx.getCompletion().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertEquals(DONE, ctx.getState());
+    }
+}
@@ -0,0 +1,177 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.ContextHandler;
+import au.com.ds.ef.err.LogicViolationError;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static au.com.ds.ef.CoalescingTest.Events.*;
+import static au.com.ds.ef.CoalescingTest.States.*;
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static org.junit.Assert.*;
+
+public class CoalescingTest {
+    public enum States implements StateEnum {
+        IDLE, WAITING, FRESH, DONE
+    }
+
+    public enum Events implements EventEnum {
+        hold, refresh, done
+    }
+
+    private final CountDownLatch held = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final AtomicInteger refreshed = new AtomicInteger();
+    private final FlowMetricsCollector metrics = new FlowMetricsCollector();
+    private EasyFlow<StatefulContext> flow;
+
+    @Before
+    public void setUp() {
+        flow =
+            from(IDLE).transit(
+                on(hold).to(WAITING).transit(
+                    on(refresh).to(FRESH).transit(
+                        on(refresh).to(WAITING),
+                        on(done).finish(DONE)
+                    ),
+                    on(done).finish(DONE)
+                )
+            );
+
+        flow
+            .executor(new MailboxExecutor())
+            .metrics(metrics)
+            .whenEvent(hold, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    held.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                }
+            })
+            .whenEvent(refresh, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    refreshed.incrementAndGet();
+                }
+            });
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+    }
+
+    private StatefulContext hold() throws Exception {
+        StatefulContext ctx = new StatefulContext();
+        flow.start(ctx);
+        ctx.trigger(hold);
+        assertTrue(held.await(10, TimeUnit.SECONDS));
+        return ctx;
+    }
+
+    @Test
+    public void testDuplicatesMergeIntoPendingEvent() throws Exception {
+        flow.coalesce(refresh);
+        StatefulContext ctx = hold();
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(ctx.safeTrigger(refresh));
+        }
+        assertEquals(TriggerResult.ACCEPTED, ctx.tryTrigger(refresh, FRESH));
+        assertEquals(FRESH, ctx.getState());
+        assertEquals(5, metrics.getCoalescedCount(refresh));
+
+        release.countDown();
+        ctx.trigger(done);
+        flow.waitForCompletion(ctx);
+        assertEquals(1, refreshed.get());
+        assertEquals(1, metrics.getTransitionCount(WAITING, refresh));
+    }
+
+    @Test
+    public void testStartedEventIsNotMergedInto() throws Exception {
+        flow.coalesce(refresh);
+        release.countDown();
+        StatefulContext ctx = hold();
+
+        assertTrue(ctx.safeTrigger(refresh));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (refreshed.get() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+
+        assertTrue(ctx.safeTrigger(refresh));
+        assertEquals(WAITING, ctx.getState());
+        ctx.trigger(done);
+        flow.waitForCompletion(ctx);
+        assertEquals(2, refreshed.get());
+        assertEquals(0, metrics.getCoalescedCount(refresh));
+    }
+
+    @Test
+    public void testEventsAreQueuedWithoutCoalescing() throws Exception {
+        StatefulContext ctx = hold();
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(ctx.safeTrigger(refresh));
+        }
+        // each copy is applied in the state the previous one led to
+        assertEquals(FRESH, ctx.getState());
+
+        release.countDown();
+        ctx.trigger(done);
+        flow.waitForCompletion(ctx);
+        assertEquals(5, refreshed.get());
+        assertEquals(0, metrics.getCoalescedCount(refresh));
+    }
+
+    @Test
+    public void testInvalidEventIsNotMerged() throws Exception {
+        // FRESH has no refresh of its own
+        EasyFlow<StatefulContext> flow =
+            from(IDLE).transit(
+                on(hold).to(WAITING).transit(
+                    on(refresh).to(FRESH).transit(
+                        on(done).finish(DONE)
+                    )
+                )
+            );
+        flow
+            .executor(new MailboxExecutor())
+            .metrics(metrics)
+            .coalesce(refresh)
+            .whenEvent(hold, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    held.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                }
+            });
+
+        StatefulContext ctx = new StatefulContext();
+        flow.start(ctx);
+        ctx.trigger(hold);
+        assertTrue(held.await(10, TimeUnit.SECONDS));
+
+        assertTrue(ctx.safeTrigger(refresh));
+        assertFalse(ctx.safeTrigger(refresh));
+        try {
+            ctx.trigger(refresh);
+            fail("LogicViolationError expected");
+        } catch (LogicViolationError e) {
+            // expected
+        }
+        assertEquals(0, metrics.getCoalescedCount(refresh));
+
+        release.countDown();
+        ctx.trigger(done);
+        flow.waitForCompletion(ctx);
+        assertEquals(DONE, ctx.getState());
+    }
+}
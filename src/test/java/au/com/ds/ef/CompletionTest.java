@@ -0,0 +1,116 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.ContextHandler;
+import au.com.ds.ef.err.ExecutionError;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static au.com.ds.ef.CompletionTest.Events.*;
+import static au.com.ds.ef.CompletionTest.States.*;
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static org.junit.Assert.*;
+
+public class CompletionTest {
+    public enum States implements StateEnum {
+        START, RUNNING, DONE, FAILED
+    }
+
+    public enum Events implements EventEnum {
+        run, finish, fail
+    }
+
+    private static class JobContext extends StatefulContext {
+        private final boolean broken;
+
+        private JobContext(boolean broken) {
+            this.broken = broken;
+        }
+    }
+
+    private EasyFlow<JobContext> flow;
+
+    @Before
+    public void setUp() {
+        flow =
+            from(START).transit(
+                on(run).to(RUNNING).transit(
+                    on(finish).finish(DONE),
+                    on(fail).finish(FAILED)
+                )
+            );
+
+        flow
+            .executor(new MailboxExecutor())
+            .whenEnter(START, new ContextHandler<JobContext>() {
+                @Override
+                public void call(JobContext context) throws Exception {
+                    context.trigger(run);
+                }
+            })
+            .whenEnter(RUNNING, new ContextHandler<JobContext>() {
+                @Override
+                public void call(JobContext context) throws Exception {
+                    if (context.broken) {
+                        throw new IllegalStateException("broken");
+                    }
+                    context.trigger(finish);
+                }
+            });
+    }
+
+    @Test
+    public void testCompletesWithFinalState() throws Exception {
+        JobContext ctx = new JobContext(false);
+        CompletableFuture<StateEnum> completion = flow.completionOf(ctx).toCompletableFuture();
+        flow.start(ctx);
+
+        assertEquals(DONE, completion.get(10, TimeUnit.SECONDS));
+        assertSame(DONE, ctx.getCompletion().toCompletableFuture().getNow(null));
+    }
+
+    @Test
+    public void testCompletesExceptionally() throws Exception {
+        JobContext ctx = new JobContext(true);
+        flow.start(ctx);
+
+        try {
+            ctx.getCompletion().toCompletableFuture().get(10, TimeUnit.SECONDS);
+            fail("ExecutionError expected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ExecutionError);
+            assertEquals(RUNNING, ((ExecutionError) e.getCause()).getState());
+        }
+        assertTrue(ctx.isTerminated());
+    }
+
+    @Test
+    public void testAllOf() throws Exception {
+        List<JobContext> contexts = new ArrayList<JobContext>();
+        for (int i = 0; i < 100; i++) {
+            JobContext ctx = new JobContext(false);
+            contexts.add(ctx);
+            flow.start(ctx);
+        }
+
+        flow.completionOfAll(contexts).get(10, TimeUnit.SECONDS);
+        for (JobContext ctx : contexts) {
+            assertEquals(DONE, ctx.getState());
+        }
+    }
+
+    @Test
+    public void testStopCompletes() throws Exception {
+        JobContext ctx = new JobContext(false);
+        ctx.setState(RUNNING);
+        ctx.stop();
+
+        assertEquals(RUNNING, ctx.getCompletion().toCompletableFuture().get(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,227 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.ContextHandler;
+import au.com.ds.ef.call.EventHandler;
+import au.com.ds.ef.call.StateHandler;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static au.com.ds.ef.ConcurrentTriggerTest.Events.*;
+import static au.com.ds.ef.ConcurrentTriggerTest.States.*;
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static org.junit.Assert.*;
+
+public class ConcurrentTriggerTest {
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 200;
+
+    public enum States implements StateEnum {
+        WAITING, ACCEPTED, DECLINED, DONE
+    }
+
+    public enum Events implements EventEnum {
+        accept, decline, finish, toggle
+    }
+
+    private final AtomicInteger entered = new AtomicInteger();
+
+    private EasyFlow<StatefulContext> buildFlow() {
+        EasyFlow<StatefulContext> flow =
+            from(WAITING).transit(
+                on(accept).to(ACCEPTED).transit(
+                    on(finish).finish(DONE)
+                ),
+                on(decline).finish(DECLINED)
+            );
+
+        ContextHandler<StatefulContext> onEnter = new ContextHandler<StatefulContext>() {
+            @Override
+            public void call(StatefulContext context) throws Exception {
+                entered.incrementAndGet();
+            }
+        };
+
+        return flow
+            .executor(new MailboxExecutor())
+            .whenEnter(ACCEPTED, onEnter)
+            .whenEnter(DECLINED, onEnter);
+    }
+
+    private List<Object> race(final Callable<Object> attempt) throws Exception {
+        final CountDownLatch go = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Object>> futures = new ArrayList<Future<Object>>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(threads.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        go.await();
+                        return attempt.call();
+                    }
+                }));
+            }
+
+            go.countDown();
+            List<Object> results = new ArrayList<Object>();
+            for (Future<Object> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testOnlyOneTriggerWins() throws Exception {
+        EasyFlow<StatefulContext> flow = buildFlow();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            final StatefulContext ctx = new StatefulContext();
+            flow.start(ctx);
+            entered.set(0);
+
+            List<Object> results = race(new Callable<Object>() {
+                int n;
+
+                @Override
+                public synchronized Object call() {
+                    return ctx.safeTrigger(n++ % 2 == 0 ? accept : decline);
+                }
+            });
+
+            int accepted = 0;
+            for (Object result : results) {
+                if ((Boolean) result) accepted++;
+            }
+            assertEquals(1, accepted);
+
+            ctx.safeTrigger(finish);
+            flow.waitForCompletion(ctx);
+            assertEquals(1, entered.get());
+        }
+    }
+
+    @Test
+    public void testTryTriggerReportsLostRace() throws Exception {
+        EasyFlow<StatefulContext> flow = buildFlow();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            final StatefulContext ctx = new StatefulContext();
+            flow.start(ctx);
+
+            List<Object> results = race(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return ctx.tryTrigger(accept, WAITING);
+                }
+            });
+
+            int accepted = 0;
+            for (Object result : results) {
+                if (result == TriggerResult.ACCEPTED) {
+                    accepted++;
+                } else {
+                    assertEquals(TriggerResult.LOST_RACE, result);
+                }
+            }
+            assertEquals(1, accepted);
+            assertEquals(ACCEPTED, ctx.getState());
+            assertEquals(TriggerResult.REJECTED, ctx.tryTrigger(decline, ACCEPTED));
+        }
+    }
+
+    @Test
+    public void testHandlersRunInTriggerOrder() throws Exception {
+        final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+        StateHandler<StatefulContext> onEnter = new StateHandler<StatefulContext>() {
+            @Override
+            public void call(StateEnum state, StatefulContext context) throws Exception {
+                calls.add("enter " + state);
+            }
+        };
+        EasyFlow<StatefulContext> flow =
+            from(WAITING).transit(
+                on(accept).to(ACCEPTED).transit(
+                    on(finish).finish(DONE)
+                )
+            );
+        flow.executor(new MailboxExecutor())
+            .whenEnter(onEnter)
+            .whenEvent(new EventHandler<StatefulContext>() {
+                @Override
+                public void call(EventEnum event, StateEnum from, StateEnum to, StatefulContext context) throws Exception {
+                    calls.add("event " + event);
+                }
+            });
+
+        for (int round = 0; round < ROUNDS; round++) {
+            calls.clear();
+            StatefulContext ctx = new StatefulContext();
+            flow.start(ctx);
+            ctx.trigger(accept);
+            ctx.trigger(finish);
+            flow.waitForCompletion(ctx);
+
+            assertEquals(Arrays.asList("enter WAITING", "event accept", "enter ACCEPTED", "event finish", "enter DONE"),
+                calls);
+        }
+    }
+
+    @Test
+    public void testConcurrentTriggersRunInClaimOrder() throws Exception {
+        final List<StateEnum> entered = Collections.synchronizedList(new ArrayList<StateEnum>());
+        EasyFlow<StatefulContext> flow =
+            from(WAITING).transit(
+                on(toggle).to(ACCEPTED).transit(
+                    on(toggle).to(WAITING),
+                    on(finish).finish(DONE)
+                )
+            );
+        flow.executor(new MailboxExecutor())
+            .whenEnter(new StateHandler<StatefulContext>() {
+                @Override
+                public void call(StateEnum state, StatefulContext context) throws Exception {
+                    entered.add(state);
+                }
+            });
+
+        final int toggles = 50;
+        for (int round = 0; round < ROUNDS; round++) {
+            entered.clear();
+            final StatefulContext ctx = new StatefulContext();
+            flow.start(ctx);
+
+            race(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    for (int i = 0; i < toggles; i++) {
+                        ctx.trigger(toggle);
+                    }
+                    return null;
+                }
+            });
+            ctx.trigger(toggle);
+            ctx.trigger(finish);
+            flow.waitForCompletion(ctx);
+
+            assertEquals(THREADS * toggles + 3, entered.size());
+            for (int i = 0; i < entered.size() - 1; i++) {
+                assertEquals(i % 2 == 0 ? WAITING : ACCEPTED, entered.get(i));
+            }
+            assertEquals(DONE, entered.get(entered.size() - 1));
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.ContextHandler;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static au.com.ds.ef.ContextCodecTest.Events.*;
+import static au.com.ds.ef.ContextCodecTest.States.*;
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static org.junit.Assert.*;
+
+public class ContextCodecTest {
+    public enum States implements StateEnum {
+        START, WAITING, DONE
+    }
+
+    public enum Events implements EventEnum {
+        wait, done
+    }
+
+    private static class Account extends StatefulContext {
+        private long balance;
+
+        private Account() {
+        }
+
+        private Account(String id) {
+            super(id);
+        }
+    }
+
+    private final ContextCodec<Account> codec = new ContextCodec<Account>(States.class, Events.class,
+        new ContextCodec.Fields<Account>() {
+            @Override
+            public Account newContext() {
+                return new Account();
+            }
+
+            @Override
+            public void write(Account context, ByteBuffer buffer) {
+                buffer.putLong(context.balance);
+            }
+
+            @Override
+            public void read(Account context, ByteBuffer buffer) {
+                context.balance = buffer.getLong();
+            }
+        });
+
+    private EasyFlow<Account> buildFlow(final List<StateEnum> entered) {
+        EasyFlow<Account> flow =
+            from(START).transit(
+                on(wait).to(WAITING).transit(
+                    on(done).finish(DONE)
+                )
+            );
+
+        return flow
+            .executor(new SyncExecutor())
+            .whenEnter(WAITING, new ContextHandler<Account>() {
+                @Override
+                public void call(Account context) throws Exception {
+                    entered.add(context.getState());
+                }
+            });
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        EasyFlow<Account> flow = buildFlow(new ArrayList<StateEnum>());
+        Account waiting = new Account();
+        waiting.balance = 42;
+        flow.start(waiting);
+        waiting.trigger(wait);
+
+        Account finished = new Account("account-7");
+        flow.start(finished);
+        finished.trigger(wait);
+        finished.trigger(done);
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        codec.encode(waiting, buffer);
+        int size = buffer.position();
+        assertTrue("snapshot takes " + size + " bytes", size <= 14);
+        codec.encode(finished, buffer);
+        buffer.flip();
+
+        Account restored = codec.decode(buffer);
+        assertEquals(waiting.getId(), restored.getId());
+        assertEquals(WAITING, restored.getState());
+        assertEquals(wait, restored.getLastEvent());
+        assertEquals(42, restored.balance);
+        assertFalse(restored.isTerminated());
+
+        restored = codec.decode(buffer);
+        assertEquals("account-7:Account", restored.getId());
+        assertEquals(DONE, restored.getState());
+        assertEquals(done, restored.getLastEvent());
+        assertTrue(restored.isTerminated());
+        assertFalse(restored.isStopped());
+        assertFalse(buffer.hasRemaining());
+
+        assertFalse(restored.getId().equals(new Account().getId()));
+    }
+
+    @Test
+    public void testRestoreResumesFlow() throws Exception {
+        List<StateEnum> entered = new ArrayList<StateEnum>();
+        EasyFlow<Account> flow = buildFlow(entered);
+        Account ctx = new Account();
+        flow.start(ctx);
+        ctx.trigger(wait);
+        entered.clear();
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        codec.encode(ctx, buffer);
+        buffer.flip();
+
+        Account restored = codec.restore(buffer, buildFlow(entered));
+        assertEquals(1, entered.size());
+        restored.trigger(done);
+        assertTrue(restored.isTerminated());
+        assertEquals(DONE, restored.getState());
+    }
+
+    @Test
+    public void testBulk() {
+        List<Account> contexts = new ArrayList<Account>();
+        for (int i = 0; i < 1000; i++) {
+            Account ctx = new Account();
+            ctx.balance = i;
+            ctx.setState(i % 2 == 0 ? START : WAITING);
+            contexts.add(ctx);
+        }
+
+        List<Account> restored = new ArrayList<Account>();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1000);
+        int written = 0;
+        while (written < contexts.size()) {
+            buffer.clear();
+            int count = codec.encodeAll(contexts, written, buffer);
+            assertTrue(count > 0);
+            written += count;
+
+            buffer.flip();
+            assertEquals(count, codec.decodeAll(buffer, restored));
+        }
+
+        assertEquals(contexts.size(), restored.size());
+        for (int i = 0; i < contexts.size(); i++) {
+            assertEquals(contexts.get(i).getId(), restored.get(i).getId());
+            assertEquals(contexts.get(i).getState(), restored.get(i).getState());
+            assertEquals(i, restored.get(i).balance);
+        }
+    }
+
+    @Test
+    public void testJavaSerializationSkipsFlow() throws Exception {
+        EasyFlow<Account> flow = buildFlow(new ArrayList<StateEnum>());
+        Account ctx = new Account();
+        flow.start(ctx);
+
+        new ObjectOutputStream(new ByteArrayOutputStream()).writeObject(ctx);
+    }
+}
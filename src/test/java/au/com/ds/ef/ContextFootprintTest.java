@@ -0,0 +1,69 @@
+package au.com.ds.ef;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+import static org.junit.Assert.*;
+
+public class ContextFootprintTest {
+    private static final long MAX_BYTES_PER_CONTEXT = 64;
+    // left of the limit for fields of subclasses
+    private static final long SUBCLASS_BYTES = 16;
+    // 64-bit JVM with compressed class pointers and oops, the default below 32GB of heap
+    private static final int HEADER_BYTES = 12;
+    private static final int REFERENCE_BYTES = 4;
+
+    /**
+     * @return shallow size of an instance of type, laid out as HotSpot does: header and fields, padded to 8 bytes
+     */
+    private static long shallowSize(Class<?> type) {
+        long size = HEADER_BYTES;
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers())) {
+                    size += fieldSize(field.getType());
+                }
+            }
+        }
+        return (size + 7) & ~7L;
+    }
+
+    private static int fieldSize(Class<?> type) {
+        if (type == long.class || type == double.class) return 8;
+        if (type == int.class || type == float.class) return 4;
+        if (type == short.class || type == char.class) return 2;
+        if (type == byte.class || type == boolean.class) return 1;
+        return REFERENCE_BYTES;
+    }
+
+    @Test
+    public void testBytesPerContext() {
+        long bytes = shallowSize(StatefulContext.class);
+        assertTrue("StatefulContext takes " + bytes + " bytes", bytes + SUBCLASS_BYTES <= MAX_BYTES_PER_CONTEXT);
+    }
+
+    @Test
+    public void testLazyIdAndLatch() {
+        StatefulContext ctx = new StatefulContext();
+        StatefulContext other = new StatefulContext();
+        assertFalse(ctx.getId().equals(other.getId()));
+        assertEquals(ctx.getId(), ctx.toString());
+        assertTrue(ctx.getId().endsWith(":StatefulContext"));
+
+        ctx.stop();
+        assertTrue(ctx.isStopped());
+        assertTrue(ctx.isTerminated());
+        ctx.awaitTermination();
+    }
+
+    @Test
+    public void testContextsWithSameIdAreDistinct() {
+        StatefulContext ctx = new StatefulContext("order-1");
+        StatefulContext other = new StatefulContext("order-1");
+        assertEquals(ctx.getId(), other.getId());
+        assertFalse(ctx.equals(other));
+        assertTrue(ctx.equals(ctx));
+    }
+}
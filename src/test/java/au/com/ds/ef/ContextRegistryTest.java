@@ -0,0 +1,167 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.ContextHandler;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static au.com.ds.ef.ContextRegistryTest.Events.*;
+import static au.com.ds.ef.ContextRegistryTest.States.*;
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static org.junit.Assert.*;
+
+public class ContextRegistryTest {
+    private static final int CONTEXTS = 1000;
+
+    public enum States implements StateEnum {
+        START, WAITING_PAYMENT, PAID, CANCELLED
+    }
+
+    public enum Events implements EventEnum {
+        order, pay, cancel
+    }
+
+    private ContextRegistry<StatefulContext> registry;
+    private EasyFlow<StatefulContext> flow;
+
+    @Before
+    public void setUp() {
+        registry = new ContextRegistry<StatefulContext>();
+        flow =
+            from(START).transit(
+                on(order).to(WAITING_PAYMENT).transit(
+                    on(pay).finish(PAID),
+                    on(cancel).finish(CANCELLED)
+                )
+            );
+
+        flow
+            .registry(registry)
+            .whenEnter(START, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    context.trigger(order);
+                }
+            });
+    }
+
+    @Test
+    public void testCountsAndLookup() throws Exception {
+        flow.executor(new SyncExecutor());
+        List<StatefulContext> contexts = new ArrayList<StatefulContext>();
+        for (int i = 0; i < 10; i++) {
+            StatefulContext ctx = new StatefulContext();
+            contexts.add(ctx);
+            flow.start(ctx);
+        }
+
+        assertEquals(10, registry.size());
+        assertEquals(10, registry.count(WAITING_PAYMENT));
+        assertEquals(0, registry.count(START));
+        assertSame(contexts.get(3), registry.get(contexts.get(3).getId()));
+
+        contexts.get(0).trigger(pay);
+        contexts.get(1).trigger(cancel);
+        contexts.get(2).stop();
+
+        assertEquals(7, registry.size());
+        assertEquals(7, registry.count(WAITING_PAYMENT));
+        assertEquals(0, registry.count(PAID));
+        assertNull(registry.get(contexts.get(0).getId()));
+        assertEquals(new HashSet<StatefulContext>(contexts.subList(3, 10)),
+            new HashSet<StatefulContext>(registry.inState(WAITING_PAYMENT)));
+
+        assertEquals(7, registry.stopAll());
+        assertEquals(0, registry.size());
+        assertEquals(0, registry.count(WAITING_PAYMENT));
+        assertTrue(contexts.get(9).isStopped());
+    }
+
+    @Test
+    public void testConcurrentFlows() throws Exception {
+        flow.executor(new MailboxExecutor());
+        List<StatefulContext> contexts = new ArrayList<StatefulContext>();
+        for (int i = 0; i < CONTEXTS; i++) {
+            StatefulContext ctx = new StatefulContext();
+            contexts.add(ctx);
+            flow.start(ctx);
+        }
+
+        for (int i = 0; i < CONTEXTS; i++) {
+            StatefulContext ctx = contexts.get(i);
+            while (ctx.getState() != WAITING_PAYMENT) {
+                Thread.yield();
+            }
+            if (i % 2 == 0) {
+                ctx.trigger(pay);
+            }
+        }
+
+        for (int i = 0; i < CONTEXTS; i += 2) {
+            flow.waitForCompletion(contexts.get(i));
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (registry.count(WAITING_PAYMENT) != CONTEXTS / 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(CONTEXTS / 2, registry.count(WAITING_PAYMENT));
+        assertEquals(CONTEXTS / 2, registry.size());
+        for (StatefulContext ctx : registry.inState(WAITING_PAYMENT)) {
+            assertFalse(ctx.isTerminated());
+        }
+    }
+
+    @Test
+    public void testContextsWithSameIdAreTrackedApart() throws Exception {
+        flow.executor(new SyncExecutor());
+        StatefulContext first = new StatefulContext("order-1");
+        StatefulContext second = new StatefulContext("order-1");
+        flow.start(first);
+        flow.start(second);
+
+        assertEquals(2, registry.size());
+        assertEquals(2, registry.count(WAITING_PAYMENT));
+        assertSame(first, registry.get("order-1:StatefulContext"));
+
+        second.trigger(pay);
+        assertEquals(1, registry.size());
+        assertEquals(1, registry.count(WAITING_PAYMENT));
+        assertSame(first, registry.get("order-1:StatefulContext"));
+
+        first.trigger(cancel);
+        assertEquals(0, registry.size());
+        assertNull(registry.get("order-1:StatefulContext"));
+    }
+
+    @Test
+    public void testIdsAreOnlyBuiltForLookups() throws Exception {
+        flow.executor(new SyncExecutor());
+        final AtomicInteger built = new AtomicInteger();
+        List<StatefulContext> contexts = new ArrayList<StatefulContext>();
+        for (int i = 0; i < 10; i++) {
+            final boolean custom = i % 2 == 0;
+            StatefulContext ctx = new StatefulContext() {
+                @Override
+                protected String newId() {
+                    built.incrementAndGet();
+                    return custom ? "custom-" + super.newId() : super.newId();
+                }
+            };
+            contexts.add(ctx);
+            flow.start(ctx);
+        }
+        assertEquals(0, built.get());
+
+        for (StatefulContext ctx : contexts) {
+            assertSame(ctx, registry.get(ctx.getId()));
+        }
+        assertNull(registry.get("0:StatefulContext"));
+        assertNull(registry.get("custom"));
+    }
+}
@@ -0,0 +1,120 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.ContextHandler;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static au.com.ds.ef.FlowDefinitionTest.Events.*;
+import static au.com.ds.ef.FlowDefinitionTest.States.*;
+import static org.junit.Assert.*;
+
+public class FlowDefinitionTest {
+    public enum States implements StateEnum {
+        START, RUNNING, DONE
+    }
+
+    public enum Events implements EventEnum {
+        run, finish, skip
+    }
+
+    private static final FlowDefinition DEFINITION =
+        from(START).define(
+            on(run).to(RUNNING).transit(
+                on(finish).finish(DONE)
+            )
+        );
+
+    private static EasyFlow<StatefulContext> newFlow(final AtomicInteger entered) {
+        EasyFlow<StatefulContext> flow = DEFINITION.newFlow();
+        return flow
+            .executor(new SyncExecutor())
+            .whenEnter(RUNNING, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    entered.incrementAndGet();
+                    context.trigger(finish);
+                }
+            });
+    }
+
+    @Test
+    public void testFlowsShareDefinition() throws Exception {
+        AtomicInteger first = new AtomicInteger();
+        AtomicInteger second = new AtomicInteger();
+        EasyFlow<StatefulContext> flow1 = newFlow(first);
+        EasyFlow<StatefulContext> flow2 = newFlow(second);
+        assertSame(flow1.getDefinition(), flow2.getDefinition());
+
+        StatefulContext ctx = new StatefulContext();
+        flow1.start(ctx);
+        ctx.trigger(run);
+
+        assertEquals(DONE, ctx.getState());
+        assertEquals(1, first.get());
+        assertEquals(0, second.get());
+        assertTrue(DEFINITION.isFinal(DONE));
+        assertEquals(1, DEFINITION.getAvailableTransitions(START).size());
+    }
+
+    @Test
+    public void testStrayTransitionsAreNotPickedUp() {
+        // a transition created but never attached to the definition
+        on(skip).finish(DONE);
+
+        FlowDefinition definition = from(START).define(on(run).finish(DONE));
+        assertEquals(1, definition.getAvailableTransitions(START).size());
+        assertTrue(definition.getAvailableTransitions(null).isEmpty());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testDeprecatedConstructor() throws Exception {
+        EasyFlow<StatefulContext> flow = new EasyFlow<StatefulContext>(START) {{
+            setTransitions(Transition.collect(START, new Transition[]{on(run).finish(DONE)}), false);
+        }};
+        assertEquals(START, flow.getDefinition().getStartState());
+
+        StatefulContext ctx = new StatefulContext();
+        flow.executor(new SyncExecutor()).start(ctx);
+        ctx.trigger(run);
+        assertEquals(DONE, ctx.getState());
+    }
+
+    @Test
+    public void testDefinitionsBuiltConcurrently() throws Exception {
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<FlowDefinition>> futures = new ArrayList<Future<FlowDefinition>>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(threads.submit(new Callable<FlowDefinition>() {
+                    @Override
+                    public FlowDefinition call() {
+                        return from(START).define(
+                            on(run).to(RUNNING).transit(
+                                on(finish).finish(DONE),
+                                on(skip).finish(DONE)
+                            )
+                        );
+                    }
+                }));
+            }
+
+            for (Future<FlowDefinition> future : futures) {
+                FlowDefinition definition = future.get();
+                assertEquals(1, definition.getAvailableTransitions(START).size());
+                assertEquals(2, definition.getAvailableTransitions(RUNNING).size());
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+}
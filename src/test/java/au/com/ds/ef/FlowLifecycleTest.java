@@ -0,0 +1,133 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.ContextHandler;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static au.com.ds.ef.FlowLifecycleTest.Events.*;
+import static au.com.ds.ef.FlowLifecycleTest.States.*;
+import static org.junit.Assert.*;
+
+public class FlowLifecycleTest {
+    public enum States implements StateEnum {
+        START, WORKING, DONE
+    }
+
+    public enum Events implements EventEnum {
+        work, finish
+    }
+
+    private final CountDownLatch working = new CountDownLatch(1);
+    private final CountDownLatch open = new CountDownLatch(0);
+
+    private EasyFlow<StatefulContext> buildFlow(final CountDownLatch gate) {
+        EasyFlow<StatefulContext> flow =
+            from(START).transit(
+                on(work).to(WORKING).transit(
+                    on(finish).finish(DONE)
+                )
+            );
+
+        return flow
+            .whenEnter(START, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    context.trigger(work);
+                }
+            })
+            .whenEnter(WORKING, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    working.countDown();
+                    gate.await(10, TimeUnit.SECONDS);
+                    context.trigger(finish);
+                }
+            });
+    }
+
+    @Test
+    public void testFlowsShareDefaultExecutor() throws Exception {
+        int before = Thread.activeCount();
+        List<StatefulContext> contexts = new ArrayList<StatefulContext>();
+        for (int i = 0; i < 200; i++) {
+            EasyFlow<StatefulContext> flow = buildFlow(open);
+            StatefulContext ctx = new StatefulContext();
+            contexts.add(ctx);
+            flow.start(ctx);
+        }
+
+        for (StatefulContext ctx : contexts) {
+            ctx.getCompletion().toCompletableFuture().get(10, TimeUnit.SECONDS);
+            assertEquals(DONE, ctx.getState());
+        }
+        assertTrue(Thread.activeCount() - before <= Runtime.getRuntime().availableProcessors());
+    }
+
+    @Test
+    public void testAwaitQuiescence() throws Exception {
+        EasyFlow<StatefulContext> flow = buildFlow(open);
+        List<StatefulContext> contexts = new ArrayList<StatefulContext>();
+        for (int i = 0; i < 100; i++) {
+            StatefulContext ctx = new StatefulContext();
+            contexts.add(ctx);
+            flow.start(ctx);
+        }
+
+        assertTrue(flow.awaitQuiescence(10, TimeUnit.SECONDS));
+        for (StatefulContext ctx : contexts) {
+            assertEquals(DONE, ctx.getState());
+            assertTrue(ctx.isTerminated());
+        }
+    }
+
+    @Test
+    public void testAwaitQuiescenceTimesOut() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        EasyFlow<StatefulContext> flow = buildFlow(gate);
+        flow.start(new StatefulContext());
+        assertTrue(working.await(10, TimeUnit.SECONDS));
+
+        assertFalse(flow.awaitQuiescence(50, TimeUnit.MILLISECONDS));
+        gate.countDown();
+        assertTrue(flow.awaitQuiescence(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testShutdownDrainsContextsInFlight() throws Exception {
+        CountDownLatch gate = new CountDownLatch(1);
+        EasyFlow<StatefulContext> flow = buildFlow(gate);
+        StatefulContext ctx = new StatefulContext();
+        flow.start(ctx);
+        assertTrue(working.await(10, TimeUnit.SECONDS));
+
+        flow.shutdown();
+        assertTrue(flow.isShutdown());
+        assertFalse(ctx.safeTrigger(finish));
+        assertEquals(TriggerResult.REJECTED, ctx.tryTrigger(finish));
+        try {
+            ctx.trigger(finish);
+            fail("RejectedExecutionException expected");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        try {
+            flow.start(new StatefulContext());
+            fail("RejectedExecutionException expected");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+
+        // the handler's own trigger is still accepted
+        gate.countDown();
+        assertTrue(flow.awaitQuiescence(10, TimeUnit.SECONDS));
+        assertEquals(DONE, ctx.getState());
+        assertTrue(ctx.isTerminated());
+    }
+}
@@ -0,0 +1,80 @@
+package au.com.ds.ef;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FlowLoggerTest {
+    @Test
+    public void testPatternConversion() {
+        assertEquals("when enter {} for {} <<<", FlowLoggerImpl.toPattern("when enter %s for %s <<<"));
+        assertEquals("no placeholders", FlowLoggerImpl.toPattern("no placeholders"));
+        assertEquals("%d items", FlowLoggerImpl.toPattern("%d items"));
+        assertEquals("{} and %s", FlowLoggerImpl.toPattern("{} and %s"));
+    }
+
+    @Test
+    public void testAsyncLoggerWritesOnItsOwnThread() throws InterruptedException {
+        final BlockingQueue<String> written = new ArrayBlockingQueue<String>(10);
+        AsyncFlowLogger logger = new AsyncFlowLogger(new FlowLogger() {
+            @Override
+            public void info(String message, Object... o) {
+                written.add(Thread.currentThread().getName() + " " + String.format(message, o));
+            }
+
+            @Override
+            public void error(String message, Throwable e) {
+                written.add(Thread.currentThread().getName() + " " + message);
+            }
+        });
+
+        logger.info("when enter %s for %s", "STATE", "context");
+        logger.error("failed", new Exception());
+
+        assertEquals("EasyFlow-logger when enter STATE for context", written.poll(5, TimeUnit.SECONDS));
+        assertEquals("EasyFlow-logger failed", written.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, logger.getDropped());
+    }
+
+    @Test
+    public void testAsyncLoggerCloseWritesQueuedRecords() throws InterruptedException {
+        final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+        AsyncFlowLogger logger = new AsyncFlowLogger(new FlowLogger() {
+            @Override
+            public void info(String message, Object... o) {
+                if (message.equals("broken")) {
+                    throw new IllegalStateException("can't format");
+                }
+                written.add(String.format(message, o));
+            }
+
+            @Override
+            public void error(String message, Throwable e) {
+                written.add(message + ": " + e.getMessage());
+            }
+        });
+
+        logger.info("broken");
+        for (int i = 0; i < 100; i++) {
+            logger.info("record %s", i);
+        }
+        logger.flush();
+        assertEquals(101, written.size());
+        assertEquals("Failed to write log record: broken: can't format", written.get(0));
+        assertEquals("record 99", written.get(100));
+
+        logger.info("last");
+        logger.close();
+        assertEquals("last", written.get(101));
+
+        logger.info("after close");
+        assertEquals("after close", written.get(102));
+    }
+}
@@ -0,0 +1,111 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.ContextHandler;
+import au.com.ds.ef.call.ExecutionErrorHandler;
+import au.com.ds.ef.err.ExecutionError;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static au.com.ds.ef.FlowMetricsTest.Events.*;
+import static au.com.ds.ef.FlowMetricsTest.States.*;
+import static org.junit.Assert.*;
+
+public class FlowMetricsTest {
+    private static final long SLEEP_MILLIS = 5;
+
+    public enum States implements StateEnum {
+        START, WAITING, DONE
+    }
+
+    public enum Events implements EventEnum {
+        wait, done, fail
+    }
+
+    private FlowMetricsCollector metrics;
+    private EasyFlow<StatefulContext> flow;
+
+    @Before
+    public void setUp() {
+        metrics = new FlowMetricsCollector();
+        flow =
+            from(START).transit(
+                on(wait).to(WAITING).transit(
+                    on(done).finish(DONE),
+                    on(fail).to(START)
+                )
+            );
+
+        flow
+            .executor(new SyncExecutor())
+            .metrics(metrics)
+            .whenEnter(WAITING, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    Thread.sleep(SLEEP_MILLIS);
+                }
+            })
+            .whenLeave(WAITING, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    if (context.getState() == START) {
+                        throw new IllegalStateException("failed");
+                    }
+                }
+            })
+            .whenError(new ExecutionErrorHandler<StatefulContext>() {
+                @Override
+                public void call(ExecutionError error, StatefulContext context) {
+                }
+            });
+    }
+
+    @Test
+    public void testCountsAndTimings() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            StatefulContext ctx = new StatefulContext();
+            flow.start(ctx);
+            ctx.trigger(wait);
+            ctx.trigger(i < 3 ? fail : done);
+        }
+
+        assertEquals(10, metrics.getTransitionCount(START, wait));
+        assertEquals(7, metrics.getTransitionCount(WAITING, done));
+        assertEquals(3, metrics.getTransitionCount(WAITING, fail));
+        assertEquals(3, metrics.getTransitionCounts().size());
+
+        assertEquals(3, metrics.getErrorCount(WAITING));
+        assertEquals(7, metrics.getTerminatedCount(DONE));
+        assertEquals(3, metrics.getTerminatedCount(WAITING));
+
+        Histogram entered = metrics.getHandlerTime(FlowMetrics.Hook.ENTER, WAITING);
+        assertEquals(10, entered.getCount());
+        assertTrue(entered.getPercentile(50) >= TimeUnit.MILLISECONDS.toNanos(SLEEP_MILLIS));
+        assertEquals(10, metrics.getDwellTime(WAITING).getCount());
+        assertEquals(20, metrics.getHandlerTime(FlowMetrics.Hook.EVENT, wait).getCount()
+            + metrics.getHandlerTime(FlowMetrics.Hook.EVENT, done).getCount()
+            + metrics.getHandlerTime(FlowMetrics.Hook.EVENT, fail).getCount());
+        assertNull(metrics.getDwellTime(DONE));
+        // start, then one task per trigger covering its event, leave and enter handlers
+        assertEquals(30, metrics.getQueueDelay().getCount());
+    }
+
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getPercentile(99));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(63, histogram.getPercentile(50));
+        assertEquals(127, histogram.getPercentile(99));
+        assertEquals(1, histogram.getPercentile(0));
+    }
+}
@@ -0,0 +1,208 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.StateHandler;
+import au.com.ds.ef.err.DefinitionError;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static au.com.ds.ef.GuardedTransitionTest.Events.*;
+import static au.com.ds.ef.GuardedTransitionTest.States.*;
+import static org.junit.Assert.*;
+
+public class GuardedTransitionTest {
+    public enum States implements StateEnum {
+        NEW, REVIEW, APPROVED, DECLINED
+    }
+
+    public enum Events implements EventEnum {
+        submit, approve
+    }
+
+    private static class Order extends StatefulContext {
+        private final int amount;
+
+        private Order(int amount) {
+            this.amount = amount;
+        }
+    }
+
+    private static final Guard<Order> LARGE = new Guard<Order>() {
+        @Override
+        public boolean test(Order order) {
+            return order.amount > 100;
+        }
+    };
+
+    private static final Guard<Order> EMPTY = new Guard<Order>() {
+        @Override
+        public boolean test(Order order) {
+            return order.amount <= 0;
+        }
+    };
+
+    private final List<StateEnum> entered = new ArrayList<StateEnum>();
+
+    @Before
+    public void setUp() {
+        entered.clear();
+    }
+
+    private EasyFlow<Order> flow(Transition... transitions) {
+        EasyFlow<Order> flow = from(NEW).transit(transitions);
+        flow
+            .executor(new SyncExecutor())
+            .whenEnter(new StateHandler<Order>() {
+                @Override
+                public void call(StateEnum state, Order context) throws Exception {
+                    entered.add(state);
+                }
+            });
+        return flow;
+    }
+
+    @Test
+    public void testFirstPassingGuardPicksTarget() throws Exception {
+        // the unguarded transition is tried last wherever it is defined
+        EasyFlow<Order> flow = flow(
+            on(submit).finish(APPROVED),
+            on(submit).when(LARGE).to(REVIEW).transit(
+                on(approve).finish(APPROVED)
+            ),
+            on(submit).when(EMPTY).finish(DECLINED)
+        );
+
+        Order large = new Order(500);
+        flow.start(large);
+        large.trigger(submit);
+        assertEquals(REVIEW, large.getState());
+
+        Order empty = new Order(0);
+        flow.start(empty);
+        empty.trigger(submit);
+        assertEquals(DECLINED, empty.getState());
+
+        Order small = new Order(10);
+        flow.start(small);
+        small.trigger(submit);
+        assertEquals(APPROVED, small.getState());
+
+        // one enter per decision, no intermediate state
+        assertEquals(Arrays.<StateEnum>asList(NEW, REVIEW, NEW, DECLINED, NEW, APPROVED), entered);
+        assertEquals(3, flow.getAvailableTransitions(NEW).size());
+    }
+
+    @Test
+    public void testSharedTransitionsKeepTheirCandidates() throws Exception {
+        Transition large = on(submit).when(LARGE).finish(REVIEW);
+        EasyFlow<Order> approving = flow(large, on(submit).finish(APPROVED));
+        // building another flow from the same transition doesn't change the first one's candidates
+        EasyFlow<Order> declining = flow(large, on(submit).when(EMPTY).finish(DECLINED));
+
+        Order small = new Order(10);
+        approving.start(small);
+        small.trigger(submit);
+        assertEquals(APPROVED, small.getState());
+
+        Order empty = new Order(0);
+        declining.start(empty);
+        empty.trigger(submit);
+        assertEquals(DECLINED, empty.getState());
+        assertEquals(2, approving.getAvailableTransitions(NEW).size());
+    }
+
+    @Test
+    public void testMetricsCountGuardedTransitionsApart() throws Exception {
+        FlowMetricsCollector metrics = new FlowMetricsCollector();
+        EasyFlow<Order> flow = flow(
+            on(submit).when(LARGE).finish(REVIEW),
+            on(submit).finish(APPROVED)
+        ).metrics(metrics);
+
+        for (int amount : new int[]{500, 10, 20}) {
+            Order order = new Order(amount);
+            flow.start(order);
+            order.trigger(submit);
+        }
+
+        assertEquals(3, metrics.getTransitionCount(NEW, submit));
+        assertEquals(1, metrics.getTransitionCount(NEW, submit, REVIEW));
+        assertEquals(2, metrics.getTransitionCount(NEW, submit, APPROVED));
+        assertEquals(2, metrics.getTransitionCounts().values().iterator().next().size());
+    }
+
+    @Test
+    public void testRejectedWhenNoGuardPasses() {
+        EasyFlow<Order> flow = flow(
+            on(submit).when(LARGE).finish(REVIEW),
+            on(submit).when(EMPTY).finish(DECLINED)
+        );
+
+        Order order = new Order(10);
+        flow.start(order);
+        assertFalse(order.safeTrigger(submit));
+        assertEquals(TriggerResult.REJECTED, order.tryTrigger(submit));
+        assertEquals(NEW, order.getState());
+        assertTrue(flow.isEventHandledByState(NEW, submit));
+    }
+
+    @Test
+    public void testOverlappingGuardsFailWhenBothPass() throws Exception {
+        Guard<Order> positive = new Guard<Order>() {
+            @Override
+            public boolean test(Order order) {
+                return order.amount > 0;
+            }
+        };
+        EasyFlow<Order> flow = flow(
+            on(submit).when(LARGE).finish(REVIEW),
+            on(submit).when(positive).finish(APPROVED),
+            on(submit).finish(DECLINED)
+        );
+
+        // only one guard passes
+        Order small = new Order(10);
+        flow.start(small);
+        small.trigger(submit);
+        assertEquals(APPROVED, small.getState());
+
+        Order large = new Order(500);
+        flow.start(large);
+        try {
+            large.trigger(submit);
+            fail("DefinitionError expected");
+        } catch (DefinitionError e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Overlapping guards: "));
+        }
+        assertEquals(NEW, large.getState());
+    }
+
+    @Test
+    public void testDuplicateGuardsAreInvalid() {
+        try {
+            from(NEW).transit(
+                on(submit).when(LARGE).finish(REVIEW),
+                on(submit).when(LARGE).finish(DECLINED)
+            );
+            fail("DefinitionError expected");
+        } catch (DefinitionError e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Duplicate guard: "));
+        }
+
+        try {
+            from(NEW).transit(
+                on(submit).when(LARGE).finish(REVIEW),
+                on(submit).finish(APPROVED),
+                on(submit).finish(DECLINED)
+            );
+            fail("DefinitionError expected");
+        } catch (DefinitionError e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Ambiguous transitions: "));
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.StateHandler;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static au.com.ds.ef.JournalReplayTest.Events.*;
+import static au.com.ds.ef.JournalReplayTest.States.*;
+import static org.junit.Assert.*;
+
+public class JournalReplayTest {
+    private static final int CONTEXTS = 1000;
+
+    public enum States implements StateEnum {
+        START, WAITING, DONE
+    }
+
+    public enum Events implements EventEnum {
+        wait, retry, done
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private final AtomicInteger entered = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        directory = new File(folder.getRoot(), "journal");
+    }
+
+    private static final JournalReplay.Contexts<StatefulContext> NEW_CONTEXTS = new JournalReplay.Contexts<StatefulContext>() {
+        @Override
+        public StatefulContext get(long key) {
+            return new StatefulContext();
+        }
+    };
+
+    private EasyFlow<StatefulContext> buildFlow() {
+        EasyFlow<StatefulContext> flow =
+            from(START).transit(
+                on(wait).to(WAITING).transit(
+                    on(retry).to(START),
+                    on(done).finish(DONE)
+                )
+            );
+
+        return flow
+            .executor(new SyncExecutor())
+            .whenEnter(new StateHandler<StatefulContext>() {
+                @Override
+                public void call(StateEnum state, StatefulContext context) throws Exception {
+                    entered.incrementAndGet();
+                }
+            });
+    }
+
+    @Test
+    public void testReplayWithoutHandlers() throws Exception {
+        TransitionJournal journal = new TransitionJournal(directory).segmentSize(256).open();
+        EasyFlow<StatefulContext> flow = buildFlow().journal(journal);
+
+        List<StatefulContext> contexts = new ArrayList<StatefulContext>();
+        for (int i = 0; i < CONTEXTS; i++) {
+            StatefulContext ctx = new StatefulContext();
+            contexts.add(ctx);
+            flow.start(ctx);
+            for (int j = 0; j < i % 3; j++) {
+                ctx.trigger(wait);
+                ctx.trigger(retry);
+            }
+            if (i % 2 == 0) {
+                ctx.trigger(wait);
+            }
+            if (i % 4 == 0) {
+                ctx.trigger(done);
+            }
+        }
+        journal.close();
+
+        entered.set(0);
+        EasyFlow<StatefulContext> restarted = buildFlow();
+        JournalReplay<StatefulContext> replay = new JournalReplay<StatefulContext>(restarted, NEW_CONTEXTS).parallelism(4);
+        Map<Long, StatefulContext> replayed = replay.replay(directory);
+
+        assertEquals(0, entered.get());
+        assertEquals(journal.getSequence(), replay.getApplied());
+        assertEquals(0, replay.getSkipped());
+        assertEquals(CONTEXTS, replayed.size());
+
+        int running = 0;
+        for (StatefulContext ctx : contexts) {
+            StatefulContext restored = replayed.get(TransitionJournal.key(ctx));
+            assertEquals(ctx.getId(), restored.getId());
+            assertEquals(ctx.getState(), restored.getState());
+            assertEquals(ctx.getLastEvent(), restored.getLastEvent());
+            assertEquals(ctx.isTerminated(), restored.isTerminated());
+            if (!ctx.isTerminated()) {
+                running++;
+            }
+        }
+
+        replay.resumeAll(replayed.values());
+        assertEquals(running, entered.get());
+
+        StatefulContext waiting = replayed.get(TransitionJournal.key(contexts.get(2)));
+        assertEquals(WAITING, waiting.getState());
+        waiting.trigger(done);
+        assertTrue(waiting.isTerminated());
+    }
+
+    @Test
+    public void testOutOfOrderRecords() {
+        TransitionJournal journal = new TransitionJournal(directory).open();
+        StatefulContext ctx = new StatefulContext();
+        // two racing triggers whose records landed the wrong way round, and one the flow doesn't know
+        journal.append(ctx, null, null, START);
+        journal.append(ctx, WAITING, done, DONE);
+        journal.append(ctx, START, wait, WAITING);
+        journal.append(ctx, START, done, DONE);
+        journal.close();
+
+        JournalReplay<StatefulContext> replay = new JournalReplay<StatefulContext>(buildFlow(), NEW_CONTEXTS).parallelism(2);
+        StatefulContext restored = replay.replay(directory).get(TransitionJournal.key(ctx));
+
+        assertEquals(DONE, restored.getState());
+        assertEquals(done, restored.getLastEvent());
+        assertTrue(restored.isTerminated());
+        assertEquals(3, replay.getApplied());
+        assertEquals(1, replay.getSkipped());
+    }
+
+    @Test
+    public void testReplayOntoSnapshot() throws Exception {
+        final Map<Long, StatefulContext> snapshot = new HashMap<Long, StatefulContext>();
+        StatefulContext named = new StatefulContext("order-1");
+        named.setState(START);
+        snapshot.put(TransitionJournal.key(named), named);
+
+        TransitionJournal journal = new TransitionJournal(directory).open();
+        journal.append(named, START, wait, WAITING);
+        journal.append(new StatefulContext("order-2"), null, null, START);
+        journal.close();
+
+        JournalReplay<StatefulContext> replay = new JournalReplay<StatefulContext>(buildFlow(),
+            new JournalReplay.Contexts<StatefulContext>() {
+                @Override
+                public StatefulContext get(long key) {
+                    return snapshot.get(key);
+                }
+            });
+        Map<Long, StatefulContext> replayed = replay.replay(directory);
+
+        assertEquals(1, replayed.size());
+        assertSame(named, replayed.get(TransitionJournal.key(named)));
+        assertEquals(WAITING, named.getState());
+        assertEquals("order-1:StatefulContext", named.getId());
+        assertEquals(1, replay.getSkipped());
+    }
+
+    @Test
+    public void testLateInitialRecordDoesntMoveContextBack() {
+        TransitionJournal journal = new TransitionJournal(directory).open();
+        StatefulContext ctx = new StatefulContext();
+        // a trigger racing start() got its record in first
+        journal.append(ctx, START, wait, WAITING);
+        journal.append(ctx, null, null, START);
+        journal.close();
+
+        JournalReplay<StatefulContext> replay = new JournalReplay<StatefulContext>(buildFlow(), NEW_CONTEXTS);
+        StatefulContext restored = replay.replay(directory).get(TransitionJournal.key(ctx));
+
+        assertEquals(WAITING, restored.getState());
+        assertEquals(wait, restored.getLastEvent());
+        assertEquals(1, replay.getApplied());
+        assertEquals(1, replay.getSkipped());
+    }
+}
@@ -161,7 +161,14 @@ public class JsonArrayParserTest {
 
     @Before
     public void setUp() {
-        flow =
+        flow = buildFlow();
+    }
+
+    /**
+     * Also run by JsonParserBenchmark in easyflow-benchmarks, against the test-jar
+     */
+    static EasyFlow<ParserContext> buildFlow() {
+        EasyFlow<ParserContext> flow =
             from(GETTING_CHAR).transit(
                 on(newChar).to(PROCESSING_CHAR).transit(
                     on(arrayStart).to(STARTING_ARRAY).transit(
@@ -308,6 +315,8 @@ public class JsonArrayParserTest {
                     context.resetResult();
                 }
             });
+
+        return flow;
     }
 
     @Test
@@ -0,0 +1,107 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.StateHandler;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static au.com.ds.ef.MailboxExecutorTest.Events.*;
+import static au.com.ds.ef.MailboxExecutorTest.States.*;
+import static org.junit.Assert.*;
+
+public class MailboxExecutorTest {
+    private static final int CONTEXTS = 200;
+
+    public enum States implements StateEnum {
+        START, STATE_1, STATE_2, STATE_3
+    }
+
+    public enum Events implements EventEnum {
+        event_1, event_2, event_3
+    }
+
+    private static class OrderContext extends StatefulContext {
+        private final List<StateEnum> entered = new ArrayList<StateEnum>();
+    }
+
+    @Test
+    public void testTasksOfOneContextRunInOrder() throws InterruptedException {
+        final int tasks = 10000;
+        final List<Integer> order = new ArrayList<Integer>();
+        final CountDownLatch done = new CountDownLatch(1);
+        MailboxExecutor executor = new MailboxExecutor();
+        StatefulContext ctx = new StatefulContext();
+
+        for (int i = 0; i < tasks; i++) {
+            final int n = i;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(n);
+                    if (n == tasks - 1) {
+                        done.countDown();
+                    }
+                }
+            }, ctx);
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(tasks, order.size());
+        for (int i = 0; i < tasks; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+
+        // the last task counts the latch down before the mailbox marks it as done
+        for (int i = 0; i < 100 && executor.getQueueSize(ctx) > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, executor.getQueueSize(ctx));
+    }
+
+    @Test
+    public void testManyContexts() {
+        EasyFlow<OrderContext> flow =
+            from(START).transit(
+                on(event_1).to(STATE_1).transit(
+                    on(event_2).to(STATE_2).transit(
+                        on(event_3).finish(STATE_3)
+                    )
+                )
+            );
+
+        flow
+            .executor(new MailboxExecutor())
+            .whenEnter(new StateHandler<OrderContext>() {
+                @Override
+                public void call(StateEnum state, OrderContext context) throws Exception {
+                    context.entered.add(state);
+                    if (state == START) {
+                        context.trigger(event_1);
+                    } else if (state == STATE_1) {
+                        context.trigger(event_2);
+                    } else if (state == STATE_2) {
+                        context.trigger(event_3);
+                    }
+                }
+            });
+
+        List<OrderContext> contexts = new ArrayList<OrderContext>();
+        for (int i = 0; i < CONTEXTS; i++) {
+            OrderContext ctx = new OrderContext();
+            contexts.add(ctx);
+            flow.start(ctx);
+        }
+
+        for (OrderContext ctx : contexts) {
+            flow.waitForCompletion(ctx);
+            assertEquals(STATE_3, ctx.getState());
+            assertEquals(Arrays.<StateEnum>asList(START, STATE_1, STATE_2, STATE_3), ctx.entered);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.ContextHandler;
+import au.com.ds.ef.call.ExecutionErrorHandler;
+import au.com.ds.ef.err.ExecutionError;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static au.com.ds.ef.MultipleHandlersTest.Events.*;
+import static au.com.ds.ef.MultipleHandlersTest.States.*;
+import static au.com.ds.ef.call.Handlers.independent;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class MultipleHandlersTest {
+    public enum States implements StateEnum {
+        START, RUNNING, DONE
+    }
+
+    public enum Events implements EventEnum {
+        run, finish
+    }
+
+    private final List<String> calls = Collections.synchronizedList(new ArrayList<String>());
+    private ForkJoinPool pool;
+    private EasyFlow<StatefulContext> flow;
+
+    @Before
+    public void setUp() {
+        pool = new ForkJoinPool(4);
+        flow =
+            from(START).transit(
+                on(run).to(RUNNING).transit(
+                    on(finish).finish(DONE)
+                )
+            );
+        flow.executor(new SyncExecutor()).handlerPool(pool);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    private ContextHandler<StatefulContext> record(final String name) {
+        return new ContextHandler<StatefulContext>() {
+            @Override
+            public void call(StatefulContext context) throws Exception {
+                calls.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testHandlersRunInOrder() throws Exception {
+        flow
+            .whenEnter(RUNNING, record("audit"))
+            .whenEnter(RUNNING, record("cache"))
+            .whenEnter(RUNNING, record("notify"))
+            .whenEvent(run, record("event 1"))
+            .whenEvent(run, record("event 2"));
+
+        StatefulContext ctx = new StatefulContext();
+        flow.start(ctx);
+        ctx.trigger(run);
+
+        assertEquals(asList("event 1", "event 2", "audit", "cache", "notify"), calls);
+    }
+
+    @Test
+    public void testIndependentHandlersRunInParallel() throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(3);
+        final AtomicInteger finished = new AtomicInteger();
+        ContextHandler<StatefulContext> parallel = new ContextHandler<StatefulContext>() {
+            @Override
+            public void call(StatefulContext context) throws Exception {
+                // only passes if all three run at the same time
+                barrier.await(10, TimeUnit.SECONDS);
+                finished.incrementAndGet();
+            }
+        };
+
+        flow
+            .whenEnter(RUNNING, record("first"))
+            .whenEnter(RUNNING, independent(parallel))
+            .whenEnter(RUNNING, independent(parallel))
+            .whenEnter(RUNNING, independent(parallel))
+            .whenEnter(RUNNING, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    calls.add("joined " + finished.get());
+                    context.trigger(finish);
+                }
+            });
+
+        StatefulContext ctx = new StatefulContext();
+        flow.start(ctx);
+        ctx.trigger(run);
+
+        assertEquals(asList("first", "joined 3"), calls);
+        assertEquals(DONE, ctx.getState());
+    }
+
+    @Test
+    public void testFailedIndependentHandlerStopsHook() throws Exception {
+        flow
+            .whenEnter(RUNNING, independent(record("sibling")))
+            .whenEnter(RUNNING, independent(new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    throw new IllegalStateException("broken");
+                }
+            }))
+            .whenEnter(RUNNING, record("after"))
+            .whenError(new ExecutionErrorHandler<StatefulContext>() {
+                @Override
+                public void call(ExecutionError error, StatefulContext context) {
+                    calls.add("error " + error.getCause().getMessage());
+                }
+            })
+            .whenError(new ExecutionErrorHandler<StatefulContext>() {
+                @Override
+                public void call(ExecutionError error, StatefulContext context) {
+                    calls.add("second error handler");
+                }
+            });
+
+        StatefulContext ctx = new StatefulContext();
+        flow.start(ctx);
+        ctx.trigger(run);
+
+        assertEquals(asList("sibling", "error broken", "second error handler"), calls);
+        assertTrue(ctx.isTerminated());
+    }
+
+    private ContextHandler<StatefulContext> await(final CountDownLatch entered, final CountDownLatch latch) {
+        return new ContextHandler<StatefulContext>() {
+            @Override
+            public void call(StatefulContext context) throws Exception {
+                entered.countDown();
+                assertTrue(latch.await(10, TimeUnit.SECONDS));
+            }
+        };
+    }
+
+    private ContextHandler<StatefulContext> finishAfter(final CountDownLatch entered, final CountDownLatch latch) {
+        return new ContextHandler<StatefulContext>() {
+            @Override
+            public void call(StatefulContext context) throws Exception {
+                entered.countDown();
+                assertTrue(latch.await(10, TimeUnit.SECONDS));
+                context.trigger(finish);
+            }
+        };
+    }
+
+    @Test
+    public void testForkedHandlerTriggersAfterShutdown() throws Exception {
+        CountDownLatch entered = new CountDownLatch(2);
+        CountDownLatch shut = new CountDownLatch(1);
+        flow
+            .executor(new MailboxExecutor())
+            .whenEnter(RUNNING, independent(await(entered, shut)))
+            .whenEnter(RUNNING, independent(finishAfter(entered, shut)));
+
+        StatefulContext ctx = new StatefulContext();
+        flow.start(ctx);
+        ctx.trigger(run);
+        assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+        // the forked handler's trigger is the flow's own, not one from outside
+        flow.shutdown();
+        shut.countDown();
+        ctx.getCompletion().toCompletableFuture().get(10, TimeUnit.SECONDS);
+        assertEquals(DONE, ctx.getState());
+    }
+
+    @Test
+    public void testForkedHandlerDoesntBlockOnFullQueue() throws Exception {
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            CountDownLatch entered = new CountDownLatch(2);
+            CountDownLatch filled = new CountDownLatch(1);
+            flow
+                .executor(new MailboxExecutor(single))
+                .queueLimit(1, OverflowPolicy.BLOCK)
+                .whenEnter(RUNNING, independent(await(entered, filled)))
+                .whenEnter(RUNNING, independent(finishAfter(entered, filled)));
+
+            StatefulContext ctx = new StatefulContext();
+            StatefulContext other = new StatefulContext();
+            flow.start(ctx);
+            flow.start(other);
+            ctx.trigger(run);
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+
+            // the only slot goes to a task which can't start before the hook is done
+            other.trigger(run);
+            assertEquals(1, flow.getQueueSize());
+            filled.countDown();
+
+            ctx.getCompletion().toCompletableFuture().get(10, TimeUnit.SECONDS);
+            assertEquals(DONE, ctx.getState());
+        } finally {
+            single.shutdownNow();
+        }
+    }
+}
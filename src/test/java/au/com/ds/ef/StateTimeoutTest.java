@@ -0,0 +1,210 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.ExecutionErrorHandler;
+import au.com.ds.ef.err.DefinitionError;
+import au.com.ds.ef.err.ExecutionError;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static au.com.ds.ef.StateTimeoutTest.Events.*;
+import static au.com.ds.ef.StateTimeoutTest.States.*;
+import static org.junit.Assert.*;
+
+public class StateTimeoutTest {
+    private static final int CONTEXTS = 1000;
+
+    public enum States implements StateEnum {
+        START, WAITING_PAYMENT, PAID, EXPIRED
+    }
+
+    public enum Events implements EventEnum {
+        order, pay, expire
+    }
+
+    private TimingWheel timer;
+
+    @Before
+    public void setUp() {
+        timer = new TimingWheel(2, TimeUnit.MILLISECONDS, 16);
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    private EasyFlow<StatefulContext> buildFlow() {
+        EasyFlow<StatefulContext> flow =
+            from(START).transit(
+                on(order).to(WAITING_PAYMENT).timeout(50, TimeUnit.MILLISECONDS, expire).transit(
+                    on(pay).finish(PAID),
+                    on(expire).finish(EXPIRED)
+                )
+            );
+
+        return flow
+            .executor(new MailboxExecutor())
+            .timer(timer);
+    }
+
+    @Test
+    public void testTimeoutFiresOnlyInState() throws Exception {
+        EasyFlow<StatefulContext> flow = buildFlow();
+        List<StatefulContext> contexts = new ArrayList<StatefulContext>();
+        for (int i = 0; i < CONTEXTS; i++) {
+            StatefulContext ctx = new StatefulContext();
+            contexts.add(ctx);
+            flow.start(ctx);
+            ctx.trigger(order);
+            if (i % 2 == 0) {
+                ctx.trigger(pay);
+            }
+        }
+
+        for (int i = 0; i < CONTEXTS; i++) {
+            StatefulContext ctx = contexts.get(i);
+            flow.waitForCompletion(ctx);
+            assertEquals(i % 2 == 0 ? PAID : EXPIRED, ctx.getState());
+            assertNull(ctx.getTimeout());
+        }
+    }
+
+    @Test
+    public void testStartStateTimeout() {
+        EasyFlow<StatefulContext> flow =
+            FlowBuilder.<StatefulContext>from(START).timeout(10, TimeUnit.MILLISECONDS, expire).transit(
+                on(order).to(WAITING_PAYMENT).transit(
+                    on(pay).finish(PAID)
+                ),
+                on(expire).finish(EXPIRED)
+            );
+        flow.executor(new SyncExecutor()).timer(timer);
+
+        StatefulContext ctx = new StatefulContext();
+        flow.start(ctx);
+        flow.waitForCompletion(ctx);
+        assertEquals(EXPIRED, ctx.getState());
+    }
+
+    @Test
+    public void testStopCancelsTimeout() {
+        EasyFlow<StatefulContext> flow = buildFlow();
+        StatefulContext ctx = new StatefulContext();
+        flow.start(ctx);
+        ctx.safeTrigger(order);
+        while (ctx.getTimeout() == null) {
+            Thread.yield();
+        }
+
+        TimingWheel.Timeout timeout = ctx.getTimeout();
+        ctx.stop();
+        assertTrue(timeout.isCancelled());
+    }
+
+    @Test(expected = DefinitionError.class)
+    public void testTimeoutEventMustBeHandled() {
+        from(START).transit(
+            on(order).to(WAITING_PAYMENT).timeout(1, TimeUnit.SECONDS, order).transit(
+                on(pay).finish(PAID)
+            )
+        );
+    }
+
+    @Test(expected = DefinitionError.class)
+    public void testConflictingTimeouts() {
+        from(START).transit(
+            on(order).to(WAITING_PAYMENT).timeout(1, TimeUnit.SECONDS, expire).transit(
+                on(pay).finish(PAID),
+                on(expire).finish(EXPIRED)
+            ),
+            on(pay).to(WAITING_PAYMENT).timeout(2, TimeUnit.SECONDS, expire)
+        );
+    }
+
+    @Test
+    public void testWheel() {
+        TimingWheel wheel = new TimingWheel(2, TimeUnit.MILLISECONDS, 16, true);
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+
+        List<TimingWheel.Timeout> timeouts = new ArrayList<TimingWheel.Timeout>();
+        for (int i = 0; i < 100; i++) {
+            // up to several rounds of the 16 bucket wheel
+            timeouts.add(wheel.schedule(task, 20 + i, TimeUnit.MILLISECONDS));
+        }
+        for (int i = 0; i < 100; i += 2) {
+            assertTrue(timeouts.get(i).cancel());
+        }
+
+        wheel.advance(19, TimeUnit.MILLISECONDS);
+        assertEquals(0, runs.get());
+
+        // the odd ones are due at 21, 23 .. 119ms
+        wheel.advance(21, TimeUnit.MILLISECONDS);
+        assertEquals(10, runs.get());
+        assertTrue(timeouts.get(1).isExpired());
+        assertFalse(timeouts.get(1).cancel());
+        assertFalse(timeouts.get(21).isExpired());
+
+        wheel.advance(200, TimeUnit.MILLISECONDS);
+        assertEquals(50, runs.get());
+        assertTrue(timeouts.get(0).isCancelled());
+        assertFalse(timeouts.get(0).isExpired());
+    }
+
+    @Test
+    public void testFailedTimeoutGoesToErrorHandler() throws Exception {
+        final AtomicBoolean rejecting = new AtomicBoolean();
+        final AtomicReference<ExecutionError> error = new AtomicReference<ExecutionError>();
+        EasyFlow<StatefulContext> flow = buildFlow()
+            .executor(new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    if (rejecting.get()) {
+                        throw new RejectedExecutionException("busy");
+                    }
+                    command.run();
+                }
+            })
+            .whenError(new ExecutionErrorHandler<StatefulContext>() {
+                @Override
+                public void call(ExecutionError e, StatefulContext context) {
+                    error.set(e);
+                }
+            });
+
+        StatefulContext ctx = new StatefulContext();
+        flow.start(ctx);
+        ctx.trigger(order);
+        // the timeout's task is rejected
+        rejecting.set(true);
+        try {
+            ctx.getCompletion().toCompletableFuture().get(10, TimeUnit.SECONDS);
+            fail("ExecutionException expected");
+        } catch (ExecutionException e) {
+            // expected
+        }
+
+        assertEquals(expire, error.get().getEvent());
+        assertEquals("busy", error.get().getCause().getMessage());
+        assertTrue(ctx.isTerminated());
+    }
+}
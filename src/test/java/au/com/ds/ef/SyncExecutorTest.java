@@ -0,0 +1,122 @@
+package au.com.ds.ef;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class SyncExecutorTest {
+    @Test
+    public void testNestedTasksRunInOrder() {
+        final SyncExecutor executor = new SyncExecutor(2);
+        final List<Integer> order = new ArrayList<Integer>();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                order.add(1);
+                for (int i = 2; i <= 5; i++) {
+                    final int n = i;
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            order.add(n);
+                        }
+                    });
+                }
+                order.add(0);
+            }
+        });
+
+        assertEquals(asList(1, 0, 2, 3, 4, 5), order);
+    }
+
+    @Test
+    public void testDeepChainDoesNotGrowStack() {
+        final SyncExecutor executor = new SyncExecutor();
+        final int[] count = {0};
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (++count[0] < 1000000) {
+                    executor.execute(this);
+                }
+            }
+        });
+
+        assertEquals(1000000, count[0]);
+    }
+
+    @Test
+    public void testFailedTaskDoesNotStopQueue() {
+        final SyncExecutor executor = new SyncExecutor();
+        final List<Integer> order = new ArrayList<Integer>();
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            order.add(1);
+                        }
+                    });
+                    throw new IllegalStateException();
+                }
+            });
+            fail("Exception expected");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                order.add(2);
+            }
+        });
+
+        assertEquals(asList(1, 2), order);
+    }
+
+    @Test
+    public void testSharedBetweenThreads() throws Exception {
+        final SyncExecutor executor = new SyncExecutor();
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < 4; t++) {
+                results.add(threads.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        final int[] count = {0};
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (++count[0] < 100000) {
+                                    executor.execute(this);
+                                }
+                            }
+                        });
+                        return count[0];
+                    }
+                }));
+            }
+
+            for (Future<Integer> result : results) {
+                assertEquals(100000, (int) result.get());
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+}
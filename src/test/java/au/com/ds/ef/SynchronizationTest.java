@@ -4,7 +4,6 @@ import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 
 import au.com.ds.ef.call.*;
-import sun.management.resources.*;
 
 import static au.com.ds.ef.SynchronizationTest.Events.*;
 import static au.com.ds.ef.SynchronizationTest.States.*;
@@ -27,6 +26,14 @@ public class SynchronizationTest {
         DONE
     }
 
+    // built once, every Node gets its own flow on top of it
+    private static final FlowDefinition DEFINITION =
+        from(UNINITIALIZED).define(
+            on(initialize).to(RUNNING).transit(
+                on(terminate).finish(DONE)
+            )
+        );
+
     void doRun() throws InterruptedException {
         ExecutorService threadPool = Executors.newFixedThreadPool(THREAD_NUM);
         for (int i = 0; i < THREAD_NUM; i++) {
@@ -47,13 +54,7 @@ public class SynchronizationTest {
         Node(ExecutorService executor) {
             this.executor = executor;
 
-            flow =
-
-                from(UNINITIALIZED).transit(
-                    on(initialize).to(RUNNING).transit(
-                        on(terminate).finish(DONE)
-                    )
-                );
+            flow = DEFINITION.newFlow();
 
             flow
                 .whenEnter(UNINITIALIZED, new ContextHandler<StatefulContext>() {
@@ -0,0 +1,65 @@
+package au.com.ds.ef;
+
+import org.junit.Test;
+
+import static au.com.ds.ef.TransitionCollectionTest.Events.*;
+import static au.com.ds.ef.TransitionCollectionTest.States.*;
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class TransitionCollectionTest {
+    public enum States implements StateEnum {
+        START, STATE_1, STATE_2, STATE_3
+    }
+
+    public enum Events implements EventEnum {
+        event_1, event_2, event_3
+    }
+
+    private static class NamedState implements StateEnum {
+        private final String name;
+
+        private NamedState(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+    }
+
+    @Test
+    public void testEnumLookup() {
+        Transition t1 = new Transition(event_1, START, STATE_1);
+        Transition t2 = new Transition(event_2, STATE_1, STATE_2, true);
+        Transition t3 = new Transition(event_3, STATE_1, STATE_3, true);
+        TransitionCollection transitions = new TransitionCollection(asList(t1, t2, t3), true);
+
+        assertSame(t1, transitions.getTransition(START, event_1));
+        assertSame(t2, transitions.getTransition(STATE_1, event_2));
+        assertSame(t3, transitions.getTransition(STATE_1, event_3));
+        assertNull(transitions.getTransition(START, event_2));
+        assertNull(transitions.getTransition(STATE_2, event_1));
+        assertNull(transitions.getTransition(null, event_1));
+
+        assertFalse(transitions.isFinal(START));
+        assertFalse(transitions.isFinal(STATE_1));
+        assertTrue(transitions.isFinal(STATE_2));
+        assertTrue(transitions.isFinal(STATE_3));
+    }
+
+    @Test
+    public void testNonEnumLookup() {
+        StateEnum start = new NamedState("START");
+        StateEnum done = new NamedState("DONE");
+        Transition t1 = new Transition(event_1, start, done, true);
+        TransitionCollection transitions = new TransitionCollection(asList(t1), true);
+
+        assertSame(t1, transitions.getTransition(start, event_1));
+        assertNull(transitions.getTransition(start, event_2));
+        assertNull(transitions.getTransition(START, event_1));
+        assertTrue(transitions.isFinal(done));
+        assertFalse(transitions.isFinal(start));
+    }
+}
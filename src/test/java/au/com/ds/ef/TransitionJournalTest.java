@@ -0,0 +1,251 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.ContextHandler;
+import au.com.ds.ef.call.ExecutionErrorHandler;
+import au.com.ds.ef.err.ExecutionError;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static au.com.ds.ef.TransitionJournalTest.Events.*;
+import static au.com.ds.ef.TransitionJournalTest.States.*;
+import static org.junit.Assert.*;
+
+public class TransitionJournalTest {
+    private static final int CONTEXTS = 100;
+
+    public enum States implements StateEnum {
+        START, WAITING, DONE
+    }
+
+    public enum Events implements EventEnum {
+        wait, done
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private TransitionJournal journal;
+
+    @Before
+    public void setUp() {
+        directory = new File(folder.getRoot(), "journal");
+        journal = new TransitionJournal(directory).segmentSize(64).groupCommit().open();
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+    }
+
+    private EasyFlow<StatefulContext> buildFlow(Executor executor) {
+        EasyFlow<StatefulContext> flow =
+            from(START).transit(
+                on(wait).to(WAITING).transit(
+                    on(done).finish(DONE)
+                )
+            );
+
+        return flow
+            .executor(executor)
+            .journal(journal)
+            .whenEnter(START, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    context.trigger(wait);
+                }
+            });
+    }
+
+    private Map<Long, List<Integer>> readStates(File directory) {
+        final Map<Long, List<Integer>> states = new HashMap<Long, List<Integer>>();
+        TransitionJournal.read(directory, new TransitionJournal.Visitor() {
+            @Override
+            public void record(long contextKey, int stateFrom, int event, int stateTo, long timestamp) {
+                List<Integer> path = states.get(contextKey);
+                if (path == null) {
+                    path = new ArrayList<Integer>();
+                    states.put(contextKey, path);
+                    assertEquals(-1, stateFrom);
+                    assertEquals(-1, event);
+                } else {
+                    assertEquals(path.get(path.size() - 1).intValue(), stateFrom);
+                }
+                path.add(stateTo);
+                assertTrue(timestamp > 0);
+            }
+        });
+        return states;
+    }
+
+    private long count(File directory) {
+        return TransitionJournal.read(directory, new TransitionJournal.Visitor() {
+            @Override
+            public void record(long contextKey, int stateFrom, int event, int stateTo, long timestamp) {
+            }
+        });
+    }
+
+    @Test
+    public void testRecordsTransitions() throws Exception {
+        EasyFlow<StatefulContext> flow = buildFlow(new SyncExecutor());
+        List<StatefulContext> contexts = new ArrayList<StatefulContext>();
+        for (int i = 0; i < CONTEXTS; i++) {
+            StatefulContext ctx = i % 10 == 0 ? new StatefulContext("named-" + i) : new StatefulContext();
+            contexts.add(ctx);
+            flow.start(ctx);
+            if (i % 2 == 0) {
+                ctx.trigger(done);
+            }
+        }
+
+        Map<Long, List<Integer>> states = readStates(directory);
+        assertEquals(CONTEXTS, states.size());
+        for (int i = 0; i < CONTEXTS; i++) {
+            List<Integer> path = states.get(TransitionJournal.key(contexts.get(i)));
+            assertEquals(i % 2 == 0 ? 3 : 2, path.size());
+            assertEquals(((Enum<?>) contexts.get(i).getState()).ordinal(), path.get(path.size() - 1).intValue());
+        }
+
+        assertEquals(CONTEXTS * 5 / 2, journal.getSequence());
+        assertEquals(4, directory.list().length);
+    }
+
+    @Test
+    public void testConcurrentWritersAndRetention() throws Exception {
+        journal.close();
+        journal = new TransitionJournal(directory).segmentSize(64).retainSegments(1000).syncInterval(10).open();
+
+        EasyFlow<StatefulContext> flow = buildFlow(new MailboxExecutor());
+        List<StatefulContext> contexts = new ArrayList<StatefulContext>();
+        for (int i = 0; i < CONTEXTS * 10; i++) {
+            StatefulContext ctx = new StatefulContext();
+            contexts.add(ctx);
+            flow.start(ctx);
+        }
+        for (StatefulContext ctx : contexts) {
+            while (ctx.getState() != WAITING) {
+                Thread.yield();
+            }
+            ctx.trigger(done);
+        }
+        for (StatefulContext ctx : contexts) {
+            flow.waitForCompletion(ctx);
+        }
+
+        assertEquals(CONTEXTS * 30, count(directory));
+
+        // the segment being written to is kept
+        long sequence = journal.getSequence();
+        journal.deleteBefore(sequence);
+        assertEquals(1, directory.list().length);
+        assertEquals(sequence % 64, count(directory));
+    }
+
+    @Test
+    public void testGroupCommitWithConcurrentWriters() throws Exception {
+        EasyFlow<StatefulContext> flow = buildFlow(new MailboxExecutor());
+        List<StatefulContext> contexts = new ArrayList<StatefulContext>();
+        for (int i = 0; i < CONTEXTS * 10; i++) {
+            StatefulContext ctx = new StatefulContext();
+            contexts.add(ctx);
+            flow.start(ctx);
+        }
+        for (StatefulContext ctx : contexts) {
+            while (ctx.getState() != WAITING) {
+                Thread.yield();
+            }
+            ctx.trigger(done);
+        }
+        for (StatefulContext ctx : contexts) {
+            flow.waitForCompletion(ctx);
+        }
+
+        assertEquals(CONTEXTS * 30, journal.getSequence());
+        assertEquals(CONTEXTS * 30, count(directory));
+    }
+
+    @Test
+    public void testReopenStartsNewSegment() throws Exception {
+        buildFlow(new SyncExecutor()).start(new StatefulContext());
+        journal.close();
+
+        journal = new TransitionJournal(directory).segmentSize(64).retainSegments(2).open();
+        EasyFlow<StatefulContext> flow = buildFlow(new SyncExecutor());
+        for (int i = 0; i < 200; i++) {
+            flow.start(new StatefulContext());
+        }
+
+        // 400 records go to segments 1 to 7, only the last two are kept
+        assertEquals(2, directory.list().length);
+        assertEquals(400 - 5 * 64, count(directory));
+    }
+
+    @Test
+    public void testFailedAppendRollsBackAndReleasesQueueSlot() throws Exception {
+        journal.close();
+        final AtomicInteger failures = new AtomicInteger();
+        journal = new TransitionJournal(directory) {
+            @Override
+            void append(StatefulContext context, StateEnum stateFrom, EventEnum event, StateEnum stateTo) {
+                if (event == done && failures.getAndDecrement() > 0) {
+                    throw new UncheckedIOException(new IOException("disk full"));
+                }
+                super.append(context, stateFrom, event, stateTo);
+            }
+        }.segmentSize(64).open();
+
+        final AtomicReference<ExecutionError> error = new AtomicReference<ExecutionError>();
+        EasyFlow<StatefulContext> flow = buildFlow(new SyncExecutor())
+            .queueLimit(1, OverflowPolicy.REJECT)
+            .whenError(new ExecutionErrorHandler<StatefulContext>() {
+                @Override
+                public void call(ExecutionError e, StatefulContext context) {
+                    error.set(e);
+                }
+            });
+
+        failures.set(2);
+        StatefulContext first = new StatefulContext();
+        flow.start(first);
+        assertEquals(WAITING, first.getState());
+
+        // the trigger is not accepted, the state goes back and the context fails without throwing here
+        first.trigger(done);
+        assertEquals(WAITING, first.getState());
+        assertTrue(first.isTerminated());
+        assertEquals("disk full", error.get().getCause().getCause().getMessage());
+        assertEquals(0, flow.getQueueSize());
+
+        error.set(null);
+        StatefulContext second = new StatefulContext();
+        flow.start(second);
+        assertFalse(second.safeTrigger(done));
+        assertEquals(WAITING, second.getState());
+        assertNotNull(error.get());
+        assertEquals(0, flow.getQueueSize());
+
+        // the slot is free for contexts that can be journaled
+        StatefulContext third = new StatefulContext();
+        flow.start(third);
+        assertTrue(third.safeTrigger(done));
+        assertEquals(DONE, third.getState());
+        assertEquals(0, flow.getQueueSize());
+    }
+}
@@ -0,0 +1,129 @@
+package au.com.ds.ef;
+
+import au.com.ds.ef.call.ContextHandler;
+import au.com.ds.ef.call.StateHandler;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static au.com.ds.ef.FlowBuilder.from;
+import static au.com.ds.ef.FlowBuilder.on;
+import static au.com.ds.ef.VirtualThreadExecutorTest.Events.*;
+import static au.com.ds.ef.VirtualThreadExecutorTest.States.*;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class VirtualThreadExecutorTest {
+    private static final int CONTEXTS = 200;
+    private static final long SLEEP_MILLIS = 100;
+
+    public enum States implements StateEnum {
+        START, WAITING, DONE
+    }
+
+    public enum Events implements EventEnum {
+        wait, done
+    }
+
+    @Test
+    public void testBlockingHandlers() {
+        // virtual threads need JDK 21; testContextsKeepTheirOrder covers the platform thread fallback
+        assumeTrue(VirtualThreadExecutor.isVirtual());
+
+        EasyFlow<StatefulContext> flow =
+            from(START).transit(
+                on(wait).to(WAITING).transit(
+                    on(done).finish(DONE)
+                )
+            );
+
+        flow
+            .executor(new VirtualThreadExecutor())
+            .whenEnter(START, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    context.trigger(wait);
+                }
+            })
+            .whenEnter(WAITING, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    Thread.sleep(SLEEP_MILLIS);
+                    context.trigger(done);
+                }
+            });
+
+        long started = System.currentTimeMillis();
+        List<StatefulContext> contexts = new ArrayList<StatefulContext>();
+        for (int i = 0; i < CONTEXTS; i++) {
+            StatefulContext ctx = new StatefulContext();
+            contexts.add(ctx);
+            flow.start(ctx);
+        }
+
+        for (StatefulContext ctx : contexts) {
+            flow.waitForCompletion(ctx);
+            assertEquals(DONE, ctx.getState());
+            assertEquals(done, ctx.getLastEvent());
+        }
+
+        long elapsed = System.currentTimeMillis() - started;
+        assertTrue("Blocked handlers should not run one by one, took " + elapsed + "ms",
+            elapsed < CONTEXTS * SLEEP_MILLIS / 4);
+    }
+
+    @Test
+    public void testContextsKeepTheirOrder() throws Exception {
+        final Map<StatefulContext, List<StateEnum>> entered = new ConcurrentHashMap<StatefulContext, List<StateEnum>>();
+        EasyFlow<StatefulContext> flow =
+            from(START).transit(
+                on(wait).to(WAITING).transit(
+                    on(wait).to(START),
+                    on(done).finish(DONE)
+                )
+            );
+
+        flow
+            .executor(new VirtualThreadExecutor())
+            .whenEnter(new StateHandler<StatefulContext>() {
+                @Override
+                public void call(StateEnum state, StatefulContext context) throws Exception {
+                    entered.get(context).add(state);
+                    Thread.yield();
+                }
+            });
+
+        List<StatefulContext> contexts = new ArrayList<StatefulContext>();
+        for (int i = 0; i < CONTEXTS; i++) {
+            StatefulContext ctx = new StatefulContext();
+            entered.put(ctx, Collections.synchronizedList(new ArrayList<StateEnum>()));
+            contexts.add(ctx);
+            flow.start(ctx);
+        }
+
+        final int toggles = 20;
+        for (int i = 0; i < toggles; i++) {
+            for (StatefulContext ctx : contexts) {
+                ctx.trigger(wait);
+            }
+        }
+        for (StatefulContext ctx : contexts) {
+            ctx.trigger(wait);
+            ctx.trigger(done);
+        }
+
+        for (StatefulContext ctx : contexts) {
+            flow.waitForCompletion(ctx);
+            List<StateEnum> states = entered.get(ctx);
+            assertEquals(toggles + 3, states.size());
+            for (int i = 0; i < states.size() - 1; i++) {
+                assertEquals(i % 2 == 0 ? START : WAITING, states.get(i));
+            }
+            assertEquals(DONE, states.get(states.size() - 1));
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package au.com.ds.ef.apt;
+
+import au.com.ds.ef.EasyFlow;
+import au.com.ds.ef.EventEnum;
+import au.com.ds.ef.FlowBuilder;
+import au.com.ds.ef.FlowDispatcher;
+import au.com.ds.ef.StateEnum;
+import au.com.ds.ef.StatefulContext;
+import au.com.ds.ef.SyncExecutor;
+import au.com.ds.ef.Transition;
+import au.com.ds.ef.call.ContextHandler;
+import au.com.ds.ef.err.DefinitionError;
+import org.junit.Test;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static au.com.ds.ef.apt.EnumFlowProcessorTest.Events.*;
+import static au.com.ds.ef.apt.EnumFlowProcessorTest.States.*;
+import static org.junit.Assert.*;
+
+public class EnumFlowProcessorTest {
+    public enum States implements StateEnum {
+        IDLE, BUSY, DONE, FAILED
+    }
+
+    public enum Events implements EventEnum {
+        go, done, fail
+    }
+
+    @EnumFlow(states = States.class, events = Events.class, start = "IDLE", transitions = {
+        @On(from = "IDLE", event = "go", to = "BUSY"),
+        @On(from = "BUSY", event = "done", to = "DONE", finish = true),
+        @On(from = "BUSY", event = "fail", to = "FAILED", finish = true)
+    })
+    interface Job {
+    }
+
+    @Test
+    public void testGeneratedDispatcher() {
+        Transition transition = EnumFlowProcessorTest_JobDispatcher.transition(BUSY, done);
+        assertEquals(BUSY, transition.getStateFrom());
+        assertEquals(DONE, transition.getStateTo());
+        assertTrue(transition.isFinal());
+        assertNull(EnumFlowProcessorTest_JobDispatcher.transition(IDLE, done));
+        assertNull(EnumFlowProcessorTest_JobDispatcher.transition(DONE, go));
+
+        assertTrue(EnumFlowProcessorTest_JobDispatcher.isFinal(FAILED));
+        assertFalse(EnumFlowProcessorTest_JobDispatcher.isFinal(BUSY));
+        assertEquals(3, EnumFlowProcessorTest_JobDispatcher.INSTANCE.getTransitions().size());
+    }
+
+    @Test
+    public void testGeneratedFlowRuns() {
+        EasyFlow<StatefulContext> flow = EnumFlowProcessorTest_JobDispatcher.newFlow();
+        final List<StateEnum> entered = new ArrayList<StateEnum>();
+        flow
+            .executor(new SyncExecutor())
+            .whenEnter(IDLE, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    entered.add(context.getState());
+                    context.trigger(go);
+                }
+            })
+            .whenEnter(BUSY, new ContextHandler<StatefulContext>() {
+                @Override
+                public void call(StatefulContext context) throws Exception {
+                    entered.add(context.getState());
+                    context.trigger(done);
+                }
+            });
+
+        StatefulContext ctx = new StatefulContext();
+        flow.start(ctx);
+
+        assertEquals(Arrays.<StateEnum>asList(IDLE, BUSY), entered);
+        assertEquals(DONE, ctx.getState());
+        assertTrue(ctx.isTerminated());
+        assertFalse(ctx.safeTrigger(go));
+    }
+
+    @Test
+    public void testDispatcherIsCheckedAgainstItsTransitions() {
+        try {
+            FlowBuilder.fromDispatcher(IDLE, new FlowDispatcher() {
+                @Override
+                public Transition getTransition(StateEnum state, EventEnum event) {
+                    // misses IDLE -go-> BUSY
+                    return state == BUSY ? EnumFlowProcessorTest_JobDispatcher.INSTANCE.getTransition(state, event) : null;
+                }
+
+                @Override
+                public boolean isFinal(StateEnum state) {
+                    return EnumFlowProcessorTest_JobDispatcher.INSTANCE.isFinal(state);
+                }
+
+                @Override
+                public List<Transition> getTransitions() {
+                    return EnumFlowProcessorTest_JobDispatcher.INSTANCE.getTransitions();
+                }
+            });
+            fail("DefinitionError expected");
+        } catch (DefinitionError e) {
+            assertEquals("Dispatcher disagrees on Event: go in State: IDLE", e.getMessage());
+        }
+    }
+
+    private static List<String> compileErrors(String source) throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        File classes = new File(EnumFlow.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        File out = Files.createTempDirectory("enumflow").toFile();
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///test/Bad.java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        List<String> options = Arrays.asList("-classpath", classes.getPath(), "-d", out.getPath(), "-s", out.getPath(),
+            "-processor", EnumFlowProcessor.class.getName());
+        assertFalse(compiler.getTask(null, null, diagnostics, options, null, Collections.singletonList(file)).call());
+
+        List<String> errors = new ArrayList<String>();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            if (diagnostic.getKind() == Diagnostic.Kind.ERROR) {
+                errors.add(diagnostic.getMessage(null));
+            }
+        }
+        return errors;
+    }
+
+    private static String flow(String transitions) {
+        return "package test;\n" +
+            "import au.com.ds.ef.*;\n" +
+            "import au.com.ds.ef.apt.*;\n" +
+            "@EnumFlow(states = Bad.S.class, events = Bad.E.class, start = \"A\", transitions = {" + transitions + "})\n" +
+            "public class Bad {\n" +
+            "    public enum S implements StateEnum { A, B, C }\n" +
+            "    public enum E implements EventEnum { x, y }\n" +
+            "}\n";
+    }
+
+    @Test
+    public void testInvalidDefinitionsFailToCompile() throws Exception {
+        assertEquals(Arrays.asList("Unknown State in transition: A -x-> Z", "No events defined for non-final State: Z"),
+            compileErrors(flow("@On(from = \"A\", event = \"x\", to = \"Z\")")));
+
+        assertEquals(Collections.singletonList("Ambiguous transitions: A -x-> C"),
+            compileErrors(flow("@On(from = \"A\", event = \"x\", to = \"B\", finish = true)," +
+                "@On(from = \"A\", event = \"x\", to = \"C\", finish = true)")));
+
+        assertEquals(Collections.singletonList("Some events defined for final State: B"),
+            compileErrors(flow("@On(from = \"A\", event = \"x\", to = \"B\", finish = true)," +
+                "@On(from = \"B\", event = \"y\", to = \"C\", finish = true)")));
+    }
+}